@@ -1,5 +1,15 @@
 package example.micronaut;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import example.micronaut.model.Llama;
+import example.micronaut.service.Llama3Service;
+import example.micronaut.service.ModelRegistry;
+import example.micronaut.utils.TokenUtils;
 import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.annotation.Value;
 import io.micronaut.runtime.Micronaut;
@@ -13,29 +23,72 @@ public class Application {
     private final String parallelism;
     private final String batchSize;
     private final String vectorBitSize;
+    private final String tokenizerCacheSize;
+    private final String kvBlockSize;
 
     public Application(@Value("${java.util.concurrent.ForkJoinPool.common.parallelism:16}") String parallelism,
             @Value("${llama.BatchSize}") String batchSize,
-            @Value("${llama.VectorBitSize}") String vectorBitSize) {
+            @Value("${llama.VectorBitSize}") String vectorBitSize,
+            @Value("${llama.TokenizerCacheSize:65536}") String tokenizerCacheSize,
+            @Value("${llama.KvBlockSize:64}") String kvBlockSize) {
         this.parallelism = parallelism;
         this.batchSize = batchSize;
         this.vectorBitSize = vectorBitSize;
+        this.tokenizerCacheSize = tokenizerCacheSize;
+        this.kvBlockSize = kvBlockSize;
     }
 
     public void run(String[] args) {
         System.getProperties().putIfAbsent("java.util.concurrent.ForkJoinPool.common.parallelism", parallelism);
         System.getProperties().putIfAbsent("llama.BatchSize", batchSize);
         System.getProperties().putIfAbsent("llama.VectorBitSize", vectorBitSize);
+        System.getProperties().putIfAbsent("llama.TokenizerCacheSize", tokenizerCacheSize);
+        System.getProperties().putIfAbsent("llama.KvBlockSize", kvBlockSize);
 
         log.info("ForkJoinPool parallelism: "
                 + System.getProperty("java.util.concurrent.ForkJoinPool.common.parallelism"));
         log.info("llama.BatchSize: " + System.getProperty("llama.BatchSize"));
         log.info("llama.VectorBitSize: " + System.getProperty("llama.VectorBitSize"));
+        log.info("llama.TokenizerCacheSize: " + System.getProperty("llama.TokenizerCacheSize"));
+        log.info("llama.KvBlockSize: " + System.getProperty("llama.KvBlockSize"));
+    }
+
+    /**
+     * Batch perplexity of the default model over a local text file, in
+     * windows of the context length ({@code options.max_tokens}), then
+     * exits. With
+     * {@code options.kv_budget}, the text is also scored as one sequence
+     * within that budget, by context shifting and by heavy-hitter eviction,
+     * to compare their perplexity with the full cache's.
+     */
+    public void perplexity(ApplicationContext context, Path file) throws IOException {
+        Llama model = context.getBean(ModelRegistry.class).get(null);
+        String text = Files.readString(file);
+        double perplexity = context.getBean(Llama3Service.class)
+                .perplexity(model, text, model.configuration().contextLength);
+        log.info("Perplexity of " + file + ": " + perplexity);
+        int budget = context.getProperty("options.kv_budget", Integer.class, 0);
+        if (budget > 0) {
+            Llama3Service service = context.getBean(Llama3Service.class);
+            int sinks = context.getProperty("options.context_sink_tokens", Integer.class, 4);
+            for (boolean heavyHitters : new boolean[]{false, true}) {
+                double budgeted = service.perplexity(model, text,
+                        new TokenUtils.ContextPolicy(sinks, budget, heavyHitters));
+                log.info("Perplexity of " + file + " within " + budget + " cached positions, "
+                        + (heavyHitters ? "heavy hitters" : "context shifting") + ": " + budgeted);
+            }
+        }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         ApplicationContext context = Micronaut.run(Application.class, args);
         Application app = context.getBean(Application.class);
         app.run(args);
+        // --perplexity=<file>
+        Optional<String> perplexityFile = context.getProperty("perplexity", String.class);
+        if (perplexityFile.isPresent()) {
+            app.perplexity(context, Paths.get(perplexityFile.get()));
+            context.close();
+        }
     }
 }
@@ -1,30 +1,73 @@
 package example.micronaut.controller;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
+import example.micronaut.model.ChatFormat;
 import example.micronaut.model.Llama;
+import example.micronaut.model.ChunkCache;
 import example.micronaut.model.LlamaOptions;
+import example.micronaut.model.grammar.ConstrainedSampler;
+import example.micronaut.model.grammar.ConstraintCache;
+import example.micronaut.model.grammar.JsonSchema;
+import example.micronaut.model.grammar.TokenConstraint;
+import example.micronaut.model.speculative.Drafter;
+import example.micronaut.model.speculative.ModelDrafter;
+import example.micronaut.model.speculative.PromptLookupDrafter;
+import example.micronaut.model.speculative.SpeculationMetrics;
 import example.micronaut.model.tensor.Sampler;
 import example.micronaut.service.Llama3Service;
-import example.micronaut.utils.AOT;
+import example.micronaut.service.ModelRegistry;
+import example.micronaut.service.Scheduling;
 import example.micronaut.utils.ModelLoader;
 import example.micronaut.utils.SamplingUtils;
+import example.micronaut.utils.TokenUtils;
 import io.micronaut.context.annotation.Value;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.type.Argument;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
 import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.PathVariable;
+import io.micronaut.http.annotation.Post;
 import io.micronaut.http.annotation.QueryValue;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.micronaut.json.JsonMapper;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.annotation.ExecuteOn;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
 
+@Slf4j
 @Controller("/api/llama3")
 @RequiredArgsConstructor
 public class Llama3Controller {
 
+    private static final int MAX_COMPLETIONS = 16;
+    private static final int MAX_EMBEDDING_INPUTS = 1024;
+    private static final Pattern SESSION_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final Pattern MODEL_NAME = Pattern.compile("[A-Za-z0-9._-]{1,128}");
+
     private final Llama3Service llama3Service;
+    private final ModelRegistry models;
+    private final JsonMapper jsonMapper;
 
     @Value("${options.model_path}")
     private String propModelPath;
@@ -35,6 +78,12 @@ public class Llama3Controller {
     @Value("${options.topp}")
     private float propTopp;
 
+    @Value("${options.topk:40}")
+    private int propTopk;
+
+    @Value("${options.minp:0}")
+    private float propMinp;
+
     @Value("${options.seed}")
     private long propSeed;
 
@@ -50,9 +99,33 @@ public class Llama3Controller {
     @Value("${options.fullResponseStream}")
     private boolean propFullResponseStream;
 
-    private Llama model;
-    private Sampler sampler;
+    @Value("${options.constraint_cache_size:32}")
+    private int propConstraintCacheSize;
+
+    @Value("${options.draft_model_path:}")
+    private String propDraftModelPath;
+
+    @Value("${options.draft_tokens:4}")
+    private int propDraftTokens;
+
+    @Value("${options.prompt_lookup:false}")
+    private boolean propPromptLookup;
+
+    @Value("${options.prompt_lookup_ngram:3}")
+    private int propPromptLookupNgram;
+
+    @Value("${llama.BatchSize}")
+    private int propBatchSize;
+
+    @Value("${options.admin_api_key:}")
+    private String propAdminApiKey;
+
+    private Llama draftModel;
     private LlamaOptions options;
+    private Random seeds; // of requests that do not pick one, drawn from options.seed
+    private final Map<Llama, ConstraintCache> constraints = new ConcurrentHashMap<>();
+    private final SpeculationMetrics draftMetrics = new SpeculationMetrics();
+    private final SpeculationMetrics lookupMetrics = new SpeculationMetrics();
 
     @PostConstruct
     public void init() throws IOException {
@@ -60,33 +133,381 @@ public class Llama3Controller {
             propSeed = System.nanoTime();
         }
         Path modelPath = Paths.get(propModelPath);
-        options = new LlamaOptions(modelPath, null, null, true, propTemperature, propTopp, propSeed, propMaxTokens,
-                propStream, propEcho, propFullResponseStream);
+        options = new LlamaOptions(modelPath, null, null, true, propTemperature, propTopp, propTopk, propMinp, propSeed,
+                propMaxTokens, propStream, propEcho, propFullResponseStream, null, propDraftTokens);
+        seeds = new Random(propSeed);
+
+        // the default model is loaded at startup, the others on first use
+        Llama model = models.get(null);
+        if (!propDraftModelPath.isBlank()) {
+            draftModel = ModelLoader.loadModel(Paths.get(propDraftModelPath), options.getMaxTokens(), true);
+            if (draftModel.configuration().vocabularySize != model.configuration().vocabularySize) {
+                log.warn("Draft model vocabulary does not match the default model's, "
+                        + "speculative decoding only applies to models it matches");
+            }
+        }
+        // per-model state goes with the model
+        models.onUnload(llama3Service::unload);
+        models.onUnload(constraints::remove);
+    }
+
+    // model of a request, the default one if name is null; and defaults, shared with the OpenAI-compatible endpoints
+    Llama model(String name) {
+        try {
+            return models.get(name);
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    LlamaOptions options() {
+        return options;
+    }
+
+    /**
+     * Seed of a request that does not pick one: successive requests get
+     * different samples, the sequence being fixed by {@code options.seed}.
+     */
+    long seed(Long requested) {
+        return requested != null ? requested : seeds.nextLong();
+    }
+
+    // options of one request, on top of the defaults, which requests never modify
+    private LlamaOptions options(String prompt, String systemPrompt, boolean interactive, List<String> stop,
+            Long seed) {
+        return new LlamaOptions(options.getModelPath(), prompt, systemPrompt, interactive, options.getTemperature(),
+                options.getTopp(), options.getTopk(), options.getMinp(), seed(seed), options.getMaxTokens(),
+                options.isStream(), options.isEcho(), options.isFullResponseStream(), stop, options.getDraftTokens());
+    }
+
+    // samplers keep per-generation scratch space, every request gets its own
+    private Sampler newSampler(Llama model, long seed) {
+        return SamplingUtils.selectSampler(model.configuration().vocabularySize, options.getTemperature(),
+                options.getTopp(), options.getTopk(), options.getMinp(), seed);
+    }
 
-        model = AOT.tryUsePreLoaded(options.getModelPath(), options.getMaxTokens());
-        if (model == null) {
-            // No compatible preloaded model found, fallback to fully parse and load the
-            // specified file.
-            model = ModelLoader.loadModel(options.getModelPath(), options.getMaxTokens(), true);
+    // speculative decoding with the draft model, sampling with the same parameters, or with prompt lookup;
+    // null if neither is configured
+    private Drafter newDrafter(Llama model, long seed) {
+        if (draftModel != null && draftModel.configuration().vocabularySize == model.configuration().vocabularySize) {
+            Sampler sampler = SamplingUtils.selectSampler(draftModel.configuration().vocabularySize,
+                    options.getTemperature(), options.getTopp(), options.getTopk(), options.getMinp(), ~seed);
+            return new ModelDrafter(draftModel, llama3Service.statePool(draftModel), sampler, draftMetrics);
+        }
+        if (propPromptLookup) {
+            return new PromptLookupDrafter(propPromptLookupNgram, 1, lookupMetrics);
+        }
+        return null;
+    }
+
+    // wraps the sampler when the output is constrained by a JSON schema or a regular expression
+    private Sampler constrain(Llama model, Sampler sampler, String jsonSchema, String grammar) {
+        TokenConstraint constraint;
+        ConstraintCache cache = constraints.computeIfAbsent(model, m -> {
+            BitSet endTokens = new BitSet();
+            new ChatFormat(m.tokenizer()).getStopTokens().forEach(endTokens::set);
+            return new ConstraintCache(m.tokenizer(), endTokens, propConstraintCacheSize);
+        });
+        try {
+            if (jsonSchema != null) {
+                constraint = cache.get(ConstraintCache.Kind.JSON_SCHEMA, jsonSchema,
+                        () -> JsonSchema.toRegex(parseSchema(jsonSchema)));
+            } else if (grammar != null) {
+                constraint = cache.get(ConstraintCache.Kind.REGEX, grammar, () -> grammar);
+            } else {
+                return sampler;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return new ConstrainedSampler(sampler, constraint);
+    }
+
+    private Map<String, Object> parseSchema(String jsonSchema) {
+        try {
+            return jsonMapper.readValue(jsonSchema, Argument.mapOf(String.class, Object.class));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON schema: " + e.getMessage(), e);
         }
-        sampler = SamplingUtils.selectSampler(model.configuration().vocabularySize, options.getTemperature(),
-                options.getTopp(),
-                options.getSeed());
     }
 
     @Get(value = "/generate", produces = MediaType.TEXT_EVENT_STREAM)
-    public Flux<Object> generate(@QueryValue(defaultValue = "Once upon a time") String prompt) {
-        options.setPrompt(prompt);
-        options.setInteractive(false);
-        return llama3Service.runInstructOnce(model, sampler, options);
+    @ExecuteOn(TaskExecutors.BLOCKING) // the model may be loaded first
+    public Flux<Object> generate(@QueryValue(defaultValue = "Once upon a time") String prompt,
+            @Nullable @QueryValue String json_schema, @Nullable @QueryValue String grammar,
+            @Nullable @QueryValue List<String> stop,
+            @QueryValue(defaultValue = "1") int n, @QueryValue(defaultValue = "false") boolean beam,
+            @Nullable @QueryValue String model, @Nullable @QueryValue Long seed,
+            @Nullable @QueryValue String priority, @Nullable @QueryValue Long deadline_ms, HttpRequest<?> request) {
+        Scheduling scheduling = scheduling(request, priority, deadline_ms);
+        if (n < 1 || n > MAX_COMPLETIONS) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "n must be in [1, " + MAX_COMPLETIONS + "]");
+        }
+        if (beam && (json_schema != null || grammar != null)) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Beam search does not support constraints");
+        }
+        Llama llama = model(model);
+        LlamaOptions options = options(prompt, null, false, stop, seed);
+        if (n == 1 && !beam) {
+            // constrained samplers are not verified speculatively
+            Drafter drafter = json_schema == null && grammar == null ? newDrafter(llama, options.getSeed()) : null;
+            return llama3Service.runInstructOnce(llama,
+                    constrain(llama, newSampler(llama, options.getSeed()), json_schema, grammar), drafter, options,
+                    scheduling);
+        }
+        // every branch samples with its own seed
+        Sampler[] samplers = new Sampler[n];
+        for (int i = 0; i < n; i++) {
+            samplers[i] = constrain(llama, newSampler(llama, options.getSeed() + i), json_schema, grammar);
+        }
+        return llama3Service.runInstructBranches(llama, samplers, beam, options, scheduling);
     }
 
     @Get(value = "/chat", produces = MediaType.TEXT_EVENT_STREAM)
+    @ExecuteOn(TaskExecutors.BLOCKING) // the model may be loaded first
     public Flux<Object> chat(@QueryValue(defaultValue = "Once upon a time") String prompt,
-            @QueryValue(defaultValue = "You are a helpful assistant.") String system_prompt) {
-        options.setPrompt(prompt);
-        options.setSystemPrompt(system_prompt);
-        options.setInteractive(true);
-        return llama3Service.runInteractive(model, sampler, options);
+            @QueryValue(defaultValue = "You are a helpful assistant.") String system_prompt,
+            @Nullable @QueryValue List<String> stop, @Nullable @QueryValue String session,
+            @Nullable @QueryValue String model, @Nullable @QueryValue Long seed,
+            @Nullable @QueryValue String priority, @Nullable @QueryValue Long deadline_ms, HttpRequest<?> request) {
+        Scheduling scheduling = scheduling(request, priority, deadline_ms);
+        if (session != null) {
+            sessionId(session);
+        }
+        Llama llama = model(model);
+        LlamaOptions options = options(prompt, system_prompt, true, stop, seed);
+        return llama3Service.runInteractive(llama, newSampler(llama, options.getSeed()),
+                newDrafter(llama, options.getSeed()), options, scheduling, session)
+                .onErrorMap(IllegalStateException.class,
+                        e -> new HttpStatusException(HttpStatus.CONFLICT, e.getMessage()))
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new HttpStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
+    }
+
+    /**
+     * Snapshots chat session {@code id} of the caller's API key to disk, see
+     * {@link Llama3Service#saveSession}.
+     */
+    @Post(value = "/sessions/{id}/save", produces = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public Map<String, Object> saveSession(HttpRequest<?> request, @PathVariable String id) throws IOException {
+        long startNanos = System.nanoTime();
+        long bytes;
+        try {
+            bytes = llama3Service.saveSession(scheduling(request, null, null).tenant(), sessionId(id));
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new HttpStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return Map.of("session", id, "bytes", bytes, "millis", (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * Loads chat session {@code id} of the caller's API key from its
+     * snapshot, for {@code model} (default: the default model), see
+     * {@link Llama3Service#restoreSession}.
+     */
+    @Post(value = "/sessions/{id}/restore", produces = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public Map<String, Object> restoreSession(HttpRequest<?> request, @PathVariable String id,
+            @Nullable @QueryValue String model) throws IOException {
+        Llama llama = model(model);
+        long startNanos = System.nanoTime();
+        int tokens;
+        try {
+            tokens = llama3Service.restoreSession(llama, scheduling(request, null, null).tenant(), sessionId(id));
+        } catch (NoSuchFileException e) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, "No snapshot of session " + id);
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new HttpStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return Map.of("session", id, "tokens", tokens, "millis", (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    // session ids name snapshot files
+    private static String sessionId(String id) {
+        if (!SESSION_ID.matcher(id).matches()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "session must be 1 to 64 letters, digits, '-' or '_'");
+        }
+        return id;
+    }
+
+    @Get(value = "/score", produces = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public List<Map<String, Object>> score(@QueryValue(defaultValue = "") String prompt,
+            @QueryValue List<String> completion, @Nullable @QueryValue String model,
+            @Nullable @QueryValue String priority, @Nullable @QueryValue Long deadline_ms, HttpRequest<?> request) {
+        Scheduling scheduling = scheduling(request, priority, deadline_ms);
+        if (completion.isEmpty() || completion.size() > MAX_COMPLETIONS
+                || completion.stream().anyMatch(String::isEmpty)) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "Between 1 and " + MAX_COMPLETIONS + " non-empty completions are required");
+        }
+        try {
+            return llama3Service.score(model(model), prompt, completion, scheduling);
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Body: {@code input} (a string or an array of strings), optional
+     * {@code pooling} ({@code mean} or {@code last}, default mean),
+     * {@code normalize} (default true), {@code model}, {@code priority} and
+     * {@code deadline_ms}.
+     */
+    @Post(value = "/embeddings", consumes = MediaType.APPLICATION_JSON, produces = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public Map<String, Object> embeddings(@Body Map<String, Object> body, HttpRequest<?> request) {
+        Scheduling scheduling = scheduling(request, body.get("priority") instanceof String p ? p : null,
+                body.get("deadline_ms") instanceof Number deadline ? deadline.longValue() : null);
+        List<String> inputs = switch (body.get("input")) {
+            case String input -> List.of(input);
+            case List<?> list when !list.isEmpty() && list.size() <= MAX_EMBEDDING_INPUTS
+                    && list.stream().allMatch(String.class::isInstance) ->
+                    list.stream().map(String.class::cast).toList();
+            case null, default -> throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "input must be a string or an array of 1 to " + MAX_EMBEDDING_INPUTS + " strings");
+        };
+        TokenUtils.Pooling pooling;
+        try {
+            pooling = TokenUtils.Pooling.valueOf(String.valueOf(body.getOrDefault("pooling", "mean")).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "pooling must be mean or last");
+        }
+        boolean normalize = !Boolean.FALSE.equals(body.get("normalize"));
+        Llama llama = model(body.get("model") instanceof String name ? name : null);
+
+        Llama3Service.Embeddings embeddings;
+        try {
+            embeddings = llama3Service.embed(llama, inputs, pooling, normalize, scheduling);
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        List<Map<String, Object>> data = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            data.add(Map.of("object", "embedding", "index", i, "embedding", embeddings.embeddings()[i]));
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("object", "list");
+        response.put("data", data);
+        response.put("usage", Map.of("prompt_tokens", embeddings.tokens(), "total_tokens", embeddings.tokens()));
+        return response;
+    }
+
+    /**
+     * Scheduling of a request: {@code priority} is {@code interactive}
+     * (default) or {@code batch}, {@code deadlineMillis} is optional and the
+     * tenant is the API key of the {@code Authorization: Bearer} or
+     * {@code X-Api-Key} header, if any.
+     */
+    static Scheduling scheduling(HttpRequest<?> request, String priority, Long deadlineMillis) {
+        Scheduling.Priority parsed;
+        try {
+            parsed = priority == null
+                    ? Scheduling.Priority.INTERACTIVE
+                    : Scheduling.Priority.valueOf(priority.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "priority must be interactive or batch");
+        }
+        return Scheduling.of(parsed, deadlineMillis, apiKey(request));
+    }
+
+    // API key of the Authorization: Bearer or X-Api-Key header, null if none
+    private static String apiKey(HttpRequest<?> request) {
+        String apiKey = request.getHeaders().get("X-Api-Key");
+        String authorization = request.getHeaders().get(HttpHeaders.AUTHORIZATION);
+        if (apiKey == null && authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            apiKey = authorization.substring(7).trim();
+        }
+        return apiKey;
+    }
+
+    /**
+     * The models that requests may name, resident or not.
+     */
+    @Get(value = "/models", produces = MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> models() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (ModelRegistry.Info info : models.models()) {
+            Map<String, Object> model = new LinkedHashMap<>();
+            model.put("name", info.name());
+            model.put("path", info.path().toString());
+            model.put("default", info.name().equals(models.defaultName()));
+            model.put("resident", info.resident());
+            model.put("bytes", info.bytes());
+            list.add(model);
+        }
+        return list;
+    }
+
+    /**
+     * Loads the GGUF file at {@code path} of the body and swaps it in as
+     * model {@code name}, see {@link ModelRegistry#swap}; streams running on
+     * the previous model finish on it. Requires the API key of
+     * {@code options.admin_api_key}.
+     */
+    @Post(value = "/admin/models/{name}", consumes = MediaType.APPLICATION_JSON,
+            produces = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public Map<String, Object> swapModel(@PathVariable String name, @Body Map<String, Object> body,
+            HttpRequest<?> request) {
+        if (propAdminApiKey.isBlank() || !propAdminApiKey.equals(apiKey(request))) {
+            throw new HttpStatusException(HttpStatus.FORBIDDEN, "Admin API key required");
+        }
+        if (!MODEL_NAME.matcher(name).matches()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "name must be 1 to 128 letters, digits, '.', '-' or '_'");
+        }
+        if (!(body.get("path") instanceof String path) || path.isBlank()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "path is required");
+        }
+        long startNanos = System.nanoTime();
+        Llama model;
+        try {
+            model = models.swap(name, Paths.get(path));
+        } catch (NoSuchFileException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "No such model file: " + path);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Cannot load " + path + ": " + e.getMessage());
+        }
+        return Map.of("name", name, "path", path, "contextLength", model.configuration().contextLength,
+                "millis", (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    @Get(value = "/metrics", produces = MediaType.APPLICATION_JSON)
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        Llama model = models.peek(null);
+        ChunkCache.Stats cacheStats = model == null ? null : model.tokenizer().cacheStats();
+        if (cacheStats != null) {
+            metrics.put("tokenizer.cache.hits", cacheStats.hits());
+            metrics.put("tokenizer.cache.misses", cacheStats.misses());
+            metrics.put("tokenizer.cache.hitRate", cacheStats.hitRate());
+            metrics.put("tokenizer.cache.size", cacheStats.size());
+            metrics.put("tokenizer.cache.capacity", cacheStats.capacity());
+        }
+        metrics.put("grammar.cache.size", constraints.values().stream().mapToInt(ConstraintCache::size).sum());
+        metrics.putAll(models.metrics());
+        metrics.putAll(llama3Service.metrics());
+        putSpeculationMetrics(metrics, "speculative.draft", draftMetrics.stats());
+        putSpeculationMetrics(metrics, "speculative.lookup", lookupMetrics.stats());
+        return metrics;
+    }
+
+    private static void putSpeculationMetrics(Map<String, Object> metrics, String prefix,
+            SpeculationMetrics.Stats stats) {
+        metrics.put(prefix + ".proposals", stats.proposals());
+        metrics.put(prefix + ".drafted", stats.drafted());
+        metrics.put(prefix + ".accepted", stats.accepted());
+        metrics.put(prefix + ".skipped", stats.skipped());
+        metrics.put(prefix + ".acceptanceRate", stats.acceptanceRate());
+        metrics.put(prefix + ".tokensPerStep", stats.tokensPerStep());
     }
 }
@@ -0,0 +1,264 @@
+package example.micronaut.controller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import example.micronaut.model.ChatFormat;
+import example.micronaut.model.Llama;
+import example.micronaut.model.LlamaOptions;
+import example.micronaut.model.tensor.Sampler;
+import example.micronaut.service.Llama3Service;
+import example.micronaut.service.ModelRegistry;
+import example.micronaut.service.Scheduling;
+import example.micronaut.utils.SamplingUtils;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Body;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.Post;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.micronaut.http.sse.Event;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.annotation.ExecuteOn;
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+
+/**
+ * OpenAI-compatible completions API: JSON bodies, {@code usage} token counts
+ * (plus llama.cpp style {@code timings}) and, with {@code "stream": true},
+ * server-sent events ending with {@code [DONE]}. An array of prompts, times
+ * {@code n}, is generated as one batch. The {@code model} of a request
+ * picks one of {@code /v1/models}, other names get the default model.
+ */
+@Controller("/v1")
+@RequiredArgsConstructor
+public class OpenAiController {
+
+    private static final int MAX_SEQUENCES = 64;
+
+    private final Llama3Controller llama3Controller;
+    private final Llama3Service llama3Service;
+    private final ModelRegistry models;
+
+    /**
+     * The models that requests may name in {@code model}.
+     */
+    @Get(value = "/models", produces = MediaType.APPLICATION_JSON)
+    public Map<String, Object> models() {
+        List<Map<String, Object>> data = new ArrayList<>();
+        for (ModelRegistry.Info info : models.models()) {
+            data.add(Map.of("id", info.name(), "object", "model", "owned_by", "local"));
+        }
+        return Map.of("object", "list", "data", data);
+    }
+
+    /**
+     * Body: {@code prompt} (a string or an array of strings) and the
+     * sampling parameters of {@link #chatCompletions}.
+     */
+    @Post(value = "/completions", consumes = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public HttpResponse<?> completions(@Body Map<String, Object> body, HttpRequest<?> request) {
+        String modelName = modelName(body);
+        Llama model = llama3Controller.model(modelName);
+        int beginOfText = new ChatFormat(model.tokenizer()).beginOfText;
+        List<int[]> prompts = new ArrayList<>();
+        for (String prompt : strings(body.get("prompt"), "prompt")) {
+            int[] encoded = model.tokenizer().encode(prompt);
+            int[] tokens = new int[encoded.length + 1];
+            tokens[0] = beginOfText;
+            System.arraycopy(encoded, 0, tokens, 1, encoded.length);
+            prompts.add(tokens);
+        }
+        return complete(body, model, modelName, prompts, false, request);
+    }
+
+    /**
+     * Body: {@code messages} ({@code role} and {@code content} each) and
+     * optional {@code max_tokens}, {@code temperature}, {@code top_p},
+     * {@code top_k}, {@code min_p}, {@code seed}, {@code n}, {@code stop}
+     * (a string or an array) and {@code stream}; defaults come from the
+     * configuration. Scheduling: {@code priority} ({@code interactive} or
+     * {@code batch}, also {@code "service_tier": "flex"}) and
+     * {@code deadline_ms}, accounted to the bearer API key.
+     */
+    @Post(value = "/chat/completions", consumes = MediaType.APPLICATION_JSON)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public HttpResponse<?> chatCompletions(@Body Map<String, Object> body, HttpRequest<?> request) {
+        String modelName = modelName(body);
+        Llama model = llama3Controller.model(modelName);
+        if (!(body.get("messages") instanceof List<?> messages) || messages.isEmpty()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "messages must be a non-empty array");
+        }
+        List<ChatFormat.Message> dialog = new ArrayList<>(messages.size());
+        for (Object message : messages) {
+            if (!(message instanceof Map<?, ?> m) || !(m.get("role") instanceof String role)
+                    || !(m.get("content") instanceof String content)) {
+                throw new HttpStatusException(HttpStatus.BAD_REQUEST, "every message needs a role and a content");
+            }
+            dialog.add(new ChatFormat.Message(new ChatFormat.Role(role), content));
+        }
+        List<Integer> tokens = new ChatFormat(model.tokenizer()).encodeDialogPrompt(true, dialog);
+        return complete(body, model, modelName, List.of(tokens.stream().mapToInt(Integer::intValue).toArray()), true,
+                request);
+    }
+
+    // the model named in the body, the default one if none or an unknown one (clients often name their own)
+    private String modelName(Map<String, Object> body) {
+        return body.get("model") instanceof String name && models.contains(name) ? name : models.defaultName();
+    }
+
+    private HttpResponse<?> complete(Map<String, Object> body, Llama model, String modelName, List<int[]> prompts,
+            boolean chat, HttpRequest<?> request) {
+        LlamaOptions defaults = llama3Controller.options();
+        int n = intValue(body, "n", 1);
+        if (n < 1 || prompts.size() * n > MAX_SEQUENCES) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    "At most " + MAX_SEQUENCES + " completions (prompts times n) per request");
+        }
+        for (int[] prompt : prompts) {
+            if (prompt.length >= model.configuration().contextLength) {
+                throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Prompt exceeds the context length");
+            }
+        }
+        String priority = "flex".equals(body.get("service_tier")) ? "batch"
+                : body.get("priority") instanceof String p ? p : null;
+        Scheduling scheduling = Llama3Controller.scheduling(request, priority,
+                body.get("deadline_ms") instanceof Number deadline ? deadline.longValue() : null);
+        boolean stream = Boolean.TRUE.equals(body.get("stream"));
+        LlamaOptions options = new LlamaOptions(defaults.getModelPath(), null, null, chat,
+                floatValue(body, "temperature", defaults.getTemperature()),
+                floatValue(body, "top_p", defaults.getTopp()),
+                intValue(body, "top_k", defaults.getTopk()),
+                floatValue(body, "min_p", defaults.getMinp()),
+                llama3Controller.seed(body.get("seed") instanceof Number seed ? seed.longValue() : null),
+                intValue(body, "max_tokens", defaults.getMaxTokens()), stream, defaults.isEcho(), false,
+                body.get("stop") == null ? null : strings(body.get("stop"), "stop"), 0);
+
+        // every prompt n times, each sequence samples with its own seed
+        List<int[]> sequences = new ArrayList<>(prompts.size() * n);
+        Sampler[] samplers = new Sampler[prompts.size() * n];
+        for (int[] prompt : prompts) {
+            for (int i = 0; i < n; i++) {
+                samplers[sequences.size()] = SamplingUtils.selectSampler(model.configuration().vocabularySize,
+                        options.getTemperature(), options.getTopp(), options.getTopk(), options.getMinp(),
+                        options.getSeed() + sequences.size());
+                sequences.add(prompt);
+            }
+        }
+
+        String id = (chat ? "chatcmpl-" : "cmpl-") + UUID.randomUUID();
+        long created = System.currentTimeMillis() / 1000;
+        Flux<Object> events = llama3Service.runBatch(model, sequences, samplers, options, scheduling);
+        if (stream) {
+            Flux<Event<?>> chunks = events
+                    .<Object>map(event -> chunk(event, id, created, modelName, chat))
+                    .concatWith(Flux.just("[DONE]"))
+                    .map(Event::of);
+            return HttpResponse.ok(chunks).contentType(MediaType.TEXT_EVENT_STREAM_TYPE);
+        }
+
+        List<Map<String, Object>> choices = new ArrayList<>();
+        Map<String, Object> response = response(id, chat ? "chat.completion" : "text_completion", created,
+                modelName);
+        for (Object event : events.collectList().block()) {
+            switch (event) {
+                case Llama3Service.Finished finished -> {
+                    Map<String, Object> choice = new LinkedHashMap<>();
+                    choice.put("index", finished.index());
+                    if (chat) {
+                        choice.put("message", Map.of("role", "assistant", "content", finished.text()));
+                    } else {
+                        choice.put("text", finished.text());
+                    }
+                    choice.put("finish_reason", finished.stopped() ? "stop" : "length");
+                    choices.add(choice);
+                }
+                case Llama3Service.Usage usage -> {
+                    response.put("choices", choices);
+                    putUsage(response, usage);
+                }
+                default -> {
+                }
+            }
+        }
+        return HttpResponse.ok(response).contentType(MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    private static Map<String, Object> chunk(Object event, String id, long created, String model, boolean chat) {
+        Map<String, Object> chunk = response(id, chat ? "chat.completion.chunk" : "text_completion", created, model);
+        switch (event) {
+            case Llama3Service.Delta delta -> chunk.put("choices", List.of(choice(delta.index(),
+                    delta.text(), null, chat)));
+            case Llama3Service.Finished finished -> chunk.put("choices", List.of(choice(finished.index(),
+                    "", finished.stopped() ? "stop" : "length", chat)));
+            case Llama3Service.Usage usage -> {
+                chunk.put("choices", List.of());
+                putUsage(chunk, usage);
+            }
+            default -> throw new IllegalStateException("Unexpected event " + event);
+        }
+        return chunk;
+    }
+
+    private static Map<String, Object> choice(int index, String text, String finishReason, boolean chat) {
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", index);
+        if (chat) {
+            choice.put("delta", text.isEmpty() ? Map.of() : Map.of("content", text));
+        } else {
+            choice.put("text", text);
+        }
+        choice.put("finish_reason", finishReason);
+        return choice;
+    }
+
+    private static Map<String, Object> response(String id, String object, long created, String model) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("id", id);
+        response.put("object", object);
+        response.put("created", created);
+        response.put("model", model);
+        return response;
+    }
+
+    private static void putUsage(Map<String, Object> response, Llama3Service.Usage usage) {
+        response.put("usage", Map.of(
+                "prompt_tokens", usage.promptTokens(),
+                "completion_tokens", usage.completionTokens(),
+                "total_tokens", usage.promptTokens() + usage.completionTokens()));
+        double promptMs = usage.promptNanos() / 1e6;
+        double predictedMs = usage.completionNanos() / 1e6;
+        response.put("timings", Map.of(
+                "prompt_n", usage.promptTokens(),
+                "prompt_ms", promptMs,
+                "prompt_per_second", promptMs == 0 ? 0.0 : usage.promptTokens() / (promptMs / 1000),
+                "predicted_n", usage.completionTokens(),
+                "predicted_ms", predictedMs,
+                "predicted_per_second", predictedMs == 0 ? 0.0 : usage.completionTokens() / (predictedMs / 1000)));
+    }
+
+    private static List<String> strings(Object value, String name) {
+        return switch (value) {
+            case String string -> List.of(string);
+            case List<?> list when !list.isEmpty() && list.stream().allMatch(String.class::isInstance) ->
+                    list.stream().map(String.class::cast).toList();
+            case null, default -> throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    name + " must be a string or a non-empty array of strings");
+        };
+    }
+
+    private static int intValue(Map<String, Object> body, String name, int defaultValue) {
+        return body.get(name) instanceof Number number ? number.intValue() : defaultValue;
+    }
+
+    private static float floatValue(Map<String, Object> body, String name, float defaultValue) {
+        return body.get(name) instanceof Number number ? number.floatValue() : defaultValue;
+    }
+}
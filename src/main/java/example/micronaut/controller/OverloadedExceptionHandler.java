@@ -0,0 +1,30 @@
+package example.micronaut.controller;
+
+import java.util.Map;
+
+import example.micronaut.service.OverloadedException;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.annotation.Produces;
+import io.micronaut.http.server.exceptions.ExceptionHandler;
+import jakarta.inject.Singleton;
+
+/**
+ * Answers requests shed by admission control with {@code 429 Too Many
+ * Requests} and a {@code Retry-After} header.
+ */
+@Produces
+@Singleton
+@Requires(classes = {OverloadedException.class, ExceptionHandler.class})
+public class OverloadedExceptionHandler implements ExceptionHandler<OverloadedException, HttpResponse<?>> {
+
+    @Override
+    public HttpResponse<?> handle(HttpRequest request, OverloadedException exception) {
+        return HttpResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(exception.getRetryAfterSeconds()))
+                .body(Map.of("message", exception.getMessage()));
+    }
+}
@@ -14,7 +14,7 @@ public class ChatFormat {
     public final int beginOfText;
     final int endHeader;
     final int startHeader;
-    final int endOfTurn;
+    public final int endOfTurn;
     final int endOfText;
     final int endOfMessage;
     final Set<Integer> stopTokens;
@@ -58,6 +58,17 @@ public class ChatFormat {
         return tokens;
     }
 
+    /**
+     * Appends {@code message} to {@code prompt}, tokenizing long contents in
+     * parallel segments that can be prefilled as they become ready.
+     */
+    public PromptTokens encodeMessage(ChatFormat.Message message, PromptTokens prompt) {
+        prompt.add(this.encodeHeader(message));
+        prompt.addAll(this.tokenizer.encodeSegments(message.content().strip()));
+        prompt.add(new int[]{endOfTurn});
+        return prompt;
+    }
+
     public List<Integer> encodeDialogPrompt(boolean appendAssistantTurn, List<ChatFormat.Message> dialog) {
         List<Integer> tokens = new ArrayList<>();
         tokens.add(beginOfText);
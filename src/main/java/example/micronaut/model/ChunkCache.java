@@ -0,0 +1,178 @@
+package example.micronaut.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent LRU cache from pre-token chunks to their BPE encoding.
+ * <p>
+ * The cache is split into independently locked segments, each an
+ * access-ordered {@link LinkedHashMap}. Lookups go through a reusable
+ * {@link Lookup} key that points into the text being encoded, so a hit
+ * neither copies the chunk nor allocates a {@code String}; the chunk is only
+ * copied when a miss is inserted.
+ */
+public final class ChunkCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ChunkCache(int capacity) {
+        this(capacity, SEGMENTS);
+    }
+
+    // segments must be a power of two, a single one makes the cache a plain LRU
+    ChunkCache(int capacity, int segmentCount) {
+        this.capacity = capacity;
+        int segmentCapacity = Math.max(1, capacity / segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int h = end - start;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 28) & (segments.length - 1)];
+    }
+
+    public Lookup lookup() {
+        return new Lookup();
+    }
+
+    /**
+     * Returns the cached encoding of {@code text[start, end)}, or null. The
+     * returned array is shared and must not be modified.
+     */
+    public int[] get(Lookup lookup, CharSequence text, int start, int end) {
+        lookup.text = text;
+        lookup.start = start;
+        lookup.end = end;
+        lookup.hash = hash(text, start, end);
+        int[] ids = segmentFor(lookup.hash).get(lookup);
+        lookup.text = null;
+        if (ids != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return ids;
+    }
+
+    public void put(CharSequence text, int start, int end, int[] ids) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = text.charAt(start + i);
+        }
+        int hash = hash(text, start, end);
+        segmentFor(hash).put(new Key(chars, hash), ids);
+    }
+
+    public Stats stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return new Stats(hits.sum(), misses.sum(), size, capacity);
+    }
+
+    public record Stats(long hits, long misses, int size, int capacity) {
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+    }
+
+    private static final class Segment {
+
+        private final LinkedHashMap<Object, int[]> map;
+
+        Segment(int segmentCapacity) {
+            this.map = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, int[]> eldest) {
+                    return size() > segmentCapacity;
+                }
+            };
+        }
+
+        synchronized int[] get(Lookup lookup) {
+            return map.get(lookup);
+        }
+
+        synchronized void put(Key key, int[] ids) {
+            map.putIfAbsent(key, ids);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
+    /**
+     * Stored key, a private copy of the chunk.
+     */
+    private record Key(char[] chars, int hash) {
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key other) {
+                return hash == other.hash && Arrays.equals(chars, other.chars);
+            }
+            return obj instanceof Lookup lookup && lookup.equals(this);
+        }
+    }
+
+    /**
+     * Probe key that views a range of the text being encoded. Not
+     * thread-safe, each encoding call uses its own.
+     */
+    public static final class Lookup {
+
+        private CharSequence text;
+        private int start;
+        private int end;
+        private int hash;
+
+        private Lookup() {
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key key) || key.hash != hash || key.chars.length != end - start) {
+                return false;
+            }
+            char[] chars = key.chars;
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package example.micronaut.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental, UTF-8-safe decoding of a token stream.
+ * <p>
+ * A multi-byte character can be split across tokens, so decoding tokens one
+ * by one would emit broken characters. Each call to {@link #next(int)}
+ * returns only the text completed by that token and holds back a trailing
+ * incomplete UTF-8 sequence until the next token completes it. The cost per
+ * token is proportional to the token's byte length. One instance per stream,
+ * not thread-safe.
+ * <p>
+ * With {@link StopStrings}, bytes that may be the beginning of a stop string
+ * are held back as well; once a stop string completes, {@link #isStopped()}
+ * turns true and neither it nor anything after it is returned.
+ */
+public final class Detokenizer {
+
+    private final Tokenizer tokenizer;
+    private byte[] buffer = new byte[16];
+    private int length; // bytes held back from the previous token, at most 3
+    private final StopStrings stopStrings; // null if none
+    private int stopState;
+    private byte[] pending = new byte[16]; // partial stop string match, not yet released to buffer
+    private int pendingLength;
+    private boolean stopped;
+
+    public Detokenizer(Tokenizer tokenizer) {
+        this(tokenizer, null);
+    }
+
+    public Detokenizer(Tokenizer tokenizer, StopStrings stopStrings) {
+        this.tokenizer = tokenizer;
+        this.stopStrings = stopStrings;
+        this.stopState = stopStrings != null ? stopStrings.start() : 0;
+    }
+
+    /**
+     * True once a stop string has been completed, generation should end.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Appends {@code token} and returns the newly completed text, possibly
+     * empty. Special tokens are not text and are skipped.
+     */
+    public String next(int token) {
+        if (tokenizer.isSpecialToken(token)) {
+            return "";
+        }
+        byte[] bytes = tokenizer.tokenBytes(token);
+        if (stopStrings != null) {
+            return stopped ? "" : nextWithStops(bytes);
+        }
+        if (length == 0 && completeLength(bytes, bytes.length) == bytes.length) {
+            return new String(bytes, StandardCharsets.UTF_8); // common case: no carry over
+        }
+        if (length + bytes.length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes.length));
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return drain(completeLength(buffer, length));
+    }
+
+    private String nextWithStops(byte[] bytes) {
+        for (byte b : bytes) {
+            stopState = stopStrings.step(stopState, b & 0xFF);
+            if (pendingLength == pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            pending[pendingLength++] = b;
+            int match = stopStrings.matchLength(stopState);
+            if (match > 0) {
+                release(pendingLength - match);
+                pendingLength = 0;
+                stopped = true;
+                return drain(length); // the text before the stop string is final
+            }
+            release(pendingLength - stopStrings.depth(stopState));
+        }
+        return drain(completeLength(buffer, length));
+    }
+
+    private void append(byte[] src, int n) {
+        if (length + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
+        System.arraycopy(src, 0, buffer, length, n);
+        length += n;
+    }
+
+    // moves the first n pending bytes to the UTF-8 buffer
+    private void release(int n) {
+        if (n <= 0) {
+            return;
+        }
+        append(pending, n);
+        System.arraycopy(pending, n, pending, 0, pendingLength - n);
+        pendingLength -= n;
+    }
+
+    /**
+     * Returns whatever is held back, incomplete sequences decode as U+FFFD.
+     * A partial stop string match at the end of the stream is not a match
+     * and is returned too.
+     */
+    public String flush() {
+        release(pendingLength);
+        return drain(length);
+    }
+
+    private String drain(int n) {
+        if (n == 0) {
+            return "";
+        }
+        String text = new String(buffer, 0, n, StandardCharsets.UTF_8);
+        System.arraycopy(buffer, n, buffer, 0, length - n);
+        length -= n;
+        return text;
+    }
+
+    /**
+     * Length of the longest prefix of {@code bytes[0, n)} that does not end
+     * inside a UTF-8 sequence that later bytes could still complete.
+     */
+    static int completeLength(byte[] bytes, int n) {
+        // a sequence is at most 4 bytes, so only the last 3 can start an unfinished one
+        for (int i = n - 1; i >= Math.max(0, n - 3); i--) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue; // continuation byte, keep looking for the lead byte
+            }
+            int sequenceLength = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return i + sequenceLength > n ? i : n;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,377 @@
+package example.micronaut.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import example.micronaut.model.tensor.ArrayFloatTensor;
+import example.micronaut.model.tensor.FloatTensor;
+
+/**
+ * Key/value cache of one sequence, paged in blocks of {@link #BLOCK_SIZE}
+ * positions per layer.
+ * <p>
+ * Blocks are allocated on first write, so a short sequence only pays for
+ * the positions it uses. {@link #fork()} shares all blocks with the new
+ * cache; a shared block is copied the first time either side writes to it
+ * (copy-on-write), so forks of a long prompt only copy the block they are
+ * appending to. Reads and writes of one cache must come from one generation
+ * at a time; forks may be used and released concurrently.
+ * <p>
+ * The cache also records the token written at every position, so its
+ * contents can be recomputed after its blocks were dropped, and optionally
+ * the attention every position received, to pick positions to evict (see
+ * {@link #trackAttention(int)}).
+ * <p>
+ * With a {@link KvTier}, older blocks are paged out to memory-mapped files,
+ * keeping only the most recent ones on the heap (see
+ * {@link #useTier(KvTier, int)}).
+ */
+public final class KvCache {
+
+    public static final int BLOCK_SIZE = Integer.getInteger("llama.KvBlockSize", 64);
+
+    private static final class Block {
+
+        final FloatTensor keys; // (BLOCK_SIZE, kvDim)
+        final FloatTensor values; // (BLOCK_SIZE, kvDim)
+        final AtomicInteger refs = new AtomicInteger(1);
+        final KvTier tier; // holding the keys and values, null if on the heap
+        final int slot;
+
+        Block(int kvDim) {
+            this(ArrayFloatTensor.allocate(BLOCK_SIZE, kvDim), ArrayFloatTensor.allocate(BLOCK_SIZE, kvDim), null, -1);
+        }
+
+        Block(FloatTensor keys, FloatTensor values, KvTier tier, int slot) {
+            this.keys = keys;
+            this.values = values;
+            this.tier = tier;
+            this.slot = slot;
+        }
+
+        // drops a reference, the last one frees its slot in the tier
+        void unref() {
+            if (refs.decrementAndGet() == 0 && tier != null) {
+                tier.free(slot);
+            }
+        }
+    }
+
+    private final int kvDim;
+    private final Block[][] blocks; // (n_layer, ceil(seq_len / BLOCK_SIZE))
+    private final int[] tokens; // (seq_len,) token at every written position
+    private int length; // 1 + highest written position
+    private float[][] attention; // (n_heads, seq_len) accumulated attention weights, null if not tracked
+    private KvTier tier; // null if every block stays on the heap
+    private int hotBlocks;
+
+    public KvCache(int numberOfLayers, int contextLength, int kvDim) {
+        this.kvDim = kvDim;
+        this.blocks = new Block[numberOfLayers][(contextLength + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        this.tokens = new int[contextLength];
+    }
+
+    private KvCache(KvCache other) {
+        this.kvDim = other.kvDim;
+        this.tokens = other.tokens.clone();
+        this.length = other.length;
+        this.tier = other.tier;
+        this.hotBlocks = other.hotBlocks;
+        if (other.attention != null) {
+            this.attention = new float[other.attention.length][];
+            for (int h = 0; h < attention.length; h++) {
+                attention[h] = other.attention[h].clone();
+            }
+        }
+        this.blocks = new Block[other.blocks.length][];
+        for (int l = 0; l < blocks.length; l++) {
+            blocks[l] = other.blocks[l].clone();
+            for (Block block : blocks[l]) {
+                if (block != null) {
+                    block.refs.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public int kvDim() {
+        return kvDim;
+    }
+
+    public int numberOfLayers() {
+        return blocks.length;
+    }
+
+    public int contextLength() {
+        return tokens.length;
+    }
+
+    /**
+     * Tensor holding the keys of {@code position}, at {@link #offset(int)}.
+     */
+    public FloatTensor keys(int layer, int position) {
+        return blocks[layer][position / BLOCK_SIZE].keys;
+    }
+
+    /**
+     * Tensor holding the values of {@code position}, at {@link #offset(int)}.
+     */
+    public FloatTensor values(int layer, int position) {
+        return blocks[layer][position / BLOCK_SIZE].values;
+    }
+
+    public int offset(int position) {
+        return (position % BLOCK_SIZE) * kvDim;
+    }
+
+    /**
+     * Records that {@code token} is written at {@code position}.
+     */
+    public void record(int position, int token) {
+        tokens[position] = token;
+        length = Math.max(length, position + 1);
+    }
+
+    /**
+     * 1 + the highest position written since the cache was created or
+     * released. Positions past the current one of a generation (e.g. rejected
+     * draft tokens) may be included.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Tokens recorded at positions {@code [0, length())}.
+     */
+    public int[] tokens() {
+        return Arrays.copyOf(tokens, length);
+    }
+
+    /**
+     * Makes the block holding {@code position} private to this cache,
+     * allocating or copying it if needed. Must be called, from one thread,
+     * before writing {@code position}.
+     */
+    public void prepareWrite(int layer, int position) {
+        int index = position / BLOCK_SIZE;
+        Block block = blocks[layer][index];
+        if (block == null) {
+            blocks[layer][index] = new Block(kvDim);
+            if (tier != null && index >= hotBlocks) {
+                pageOut(layer, index - hotBlocks); // no longer among the most recent
+            }
+        } else if (block.refs.get() > 1) {
+            Block copy = new Block(kvDim);
+            copy(block, copy);
+            blocks[layer][index] = copy;
+            block.unref();
+        }
+    }
+
+    /**
+     * Pages blocks out to {@code tier} as the sequence grows: once a block is
+     * allocated, the one {@code hotBlocks} before it moves to the tier, so at
+     * most {@code hotBlocks} blocks per layer stay on the heap while
+     * generating. Blocks stay where they are if the tier is full. Forks use
+     * the same tier.
+     *
+     * @param tier null to keep new blocks on the heap
+     */
+    public void useTier(KvTier tier, int hotBlocks) {
+        this.tier = tier;
+        this.hotBlocks = Math.max(1, hotBlocks);
+    }
+
+    /**
+     * Pages every block on the heap out to the tier, e.g. once the sequence
+     * is idle; a no-op without a tier.
+     *
+     * @return number of blocks paged out
+     */
+    public int pageOut() {
+        int count = 0;
+        for (int l = 0; l < blocks.length && tier != null; l++) {
+            for (int i = 0; i < blocks[l].length; i++) {
+                if (pageOut(l, i)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // moves a block on the heap to the tier, a shared one only for this cache
+    private boolean pageOut(int layer, int index) {
+        Block block = blocks[layer][index];
+        if (block == null || block.tier != null) {
+            return false;
+        }
+        int slot = tier.allocate();
+        if (slot < 0) {
+            return false;
+        }
+        Block paged = new Block(tier.keys(slot), tier.values(slot), tier, slot);
+        copy(block, paged);
+        blocks[layer][index] = paged;
+        block.unref();
+        return true;
+    }
+
+    private void copy(Block from, Block to) {
+        int size = BLOCK_SIZE * kvDim;
+        from.keys.copyTo(0, to.keys, 0, size);
+        from.values.copyTo(0, to.values, 0, size);
+    }
+
+    /**
+     * Writes the key and value of {@code position}, see
+     * {@link #prepareWrite(int, int)}.
+     */
+    public void write(int layer, int position, FloatTensor key, FloatTensor value) {
+        int offset = offset(position);
+        Block block = blocks[layer][position / BLOCK_SIZE];
+        key.copyTo(0, block.keys, offset, kvDim);
+        value.copyTo(0, block.values, offset, kvDim);
+    }
+
+    /**
+     * Starts accumulating, per head, the attention weights every position
+     * receives (see {@link #addAttention}); a no-op if already tracking.
+     */
+    public void trackAttention(int numberOfHeads) {
+        if (attention == null) {
+            attention = new float[numberOfHeads][tokens.length];
+        }
+    }
+
+    public boolean tracksAttention() {
+        return attention != null;
+    }
+
+    /**
+     * Adds the attention weights of one query of {@code head}, over
+     * positions {@code [0, count)}, from {@code weights} at {@code offset}.
+     * Calls for one head must not run concurrently.
+     */
+    public void addAttention(int head, FloatTensor weights, int offset, int count) {
+        float[] received = attention[head];
+        for (int t = 0; t < count; t++) {
+            received[t] += weights.getFloat(offset + t);
+        }
+    }
+
+    /**
+     * The {@code count} positions in {@code [from, to)} that received the
+     * least attention over all heads, see {@link #trackAttention(int)}.
+     */
+    public BitSet leastAttended(int from, int to, int count) {
+        float[] total = new float[to - from];
+        for (float[] received : attention) {
+            for (int t = from; t < to; t++) {
+                total[t - from] += received[t];
+            }
+        }
+        Integer[] order = new Integer[total.length];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> Float.compare(total[a], total[b]));
+        BitSet positions = new BitSet(to);
+        for (int i = 0; i < Math.min(count, order.length); i++) {
+            positions.set(from + order[i]);
+        }
+        return positions;
+    }
+
+    /**
+     * Drops the positions in {@code dropped}: the keys, values, tokens and
+     * attention of the others move down to close the gaps, and blocks past
+     * the new length are released. Moved keys keep the rotation of their
+     * old positions, see {@code TransformerUtils.evict}.
+     */
+    public void compact(BitSet dropped) {
+        int to = dropped.nextSetBit(0);
+        if (to < 0 || to >= length) {
+            return;
+        }
+        for (int from = to; from < length; from++) {
+            if (dropped.get(from)) {
+                continue;
+            }
+            for (int l = 0; l < blocks.length; l++) {
+                prepareWrite(l, to);
+                Block source = blocks[l][from / BLOCK_SIZE];
+                Block target = blocks[l][to / BLOCK_SIZE];
+                source.keys.copyTo(offset(from), target.keys, offset(to), kvDim);
+                source.values.copyTo(offset(from), target.values, offset(to), kvDim);
+            }
+            tokens[to] = tokens[from];
+            if (attention != null) {
+                for (float[] received : attention) {
+                    received[to] = received[from];
+                }
+            }
+            to++;
+        }
+        if (attention != null) {
+            for (float[] received : attention) {
+                Arrays.fill(received, to, length, 0f);
+            }
+        }
+        length = to;
+        for (Block[] layer : blocks) {
+            for (int i = (length + BLOCK_SIZE - 1) / BLOCK_SIZE; i < layer.length; i++) {
+                if (layer[i] != null) {
+                    layer[i].unref();
+                    layer[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * New cache sharing every block with this one, copy-on-write.
+     */
+    public KvCache fork() {
+        return new KvCache(this);
+    }
+
+    /**
+     * Drops this cache's references to its blocks, leaving it empty as if
+     * new, except that attention tracking stays on, with nothing received
+     * yet: a generation whose cache is dropped and recomputed (e.g. once
+     * parked) keeps evicting by attention.
+     */
+    public void release() {
+        if (attention != null) {
+            for (float[] received : attention) {
+                Arrays.fill(received, 0f);
+            }
+        }
+        length = 0;
+        for (Block[] layer : blocks) {
+            for (int i = 0; i < layer.length; i++) {
+                if (layer[i] != null) {
+                    layer[i].unref();
+                    layer[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of allocated blocks referenced by this cache, shared ones
+     * included.
+     */
+    public int blockCount() {
+        int count = 0;
+        for (Block[] layer : blocks) {
+            for (Block block : layer) {
+                if (block != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
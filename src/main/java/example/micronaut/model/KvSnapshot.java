@@ -0,0 +1,204 @@
+package example.micronaut.model;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import example.micronaut.gguf.Float16;
+import example.micronaut.model.tensor.FloatTensor;
+
+/**
+ * Binary snapshot of a sequence: its {@link KvCache} (keys, values and the
+ * token at every position) and the latest token, not yet ingested. Written
+ * and read through a memory-mapped file, one mapping for the header and one
+ * per layer (mappings are limited to 2 GB), keys and values optionally
+ * compressed:
+ * <pre>
+ * int magic, version, compression, layers, kvDim, length, latestToken
+ * int[length] tokens
+ * per layer: keys then values of positions [0, length), one row of kvDim each
+ * </pre>
+ * Rows are F32, F16 or Q8 (blocks of {@value #Q8_BLOCK} values: an F16 scale,
+ * then one signed byte per value, as GGUF's Q8_0). Little-endian throughout.
+ */
+public final class KvSnapshot {
+
+    public enum Compression {
+        F32, F16, Q8
+    }
+
+    private static final int MAGIC = 0x534B564C; // "LKVS"
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 7;
+    private static final int Q8_BLOCK = 32;
+
+    private KvSnapshot() {
+    }
+
+    /**
+     * Writes {@code cache} and {@code latestToken} to {@code file}, replacing
+     * it atomically.
+     *
+     * @return size of the file in bytes
+     */
+    public static long save(Path file, KvCache cache, int latestToken, Compression compression) throws IOException {
+        int layers = cache.numberOfLayers();
+        int kvDim = cache.kvDim();
+        int length = cache.length();
+        long headerBytes = (long) (HEADER_INTS + length) * Integer.BYTES;
+        long layerBytes = 2L * length * rowBytes(kvDim, compression);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+            header.putInt(MAGIC).putInt(VERSION).putInt(compression.ordinal())
+                    .putInt(layers).putInt(kvDim).putInt(length).putInt(latestToken);
+            for (int token : cache.tokens()) {
+                header.putInt(token);
+            }
+            header.force();
+            for (int l = 0; l < layers; l++) {
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, headerBytes + l * layerBytes,
+                        layerBytes);
+                for (int position = 0; position < length; position++) {
+                    putRow(buffer, cache.keys(l, position), cache.offset(position), kvDim, compression);
+                }
+                for (int position = 0; position < length; position++) {
+                    putRow(buffer, cache.values(l, position), cache.offset(position), kvDim, compression);
+                }
+                buffer.force();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return headerBytes + layers * layerBytes;
+    }
+
+    /**
+     * Replaces the contents of {@code cache} with the snapshot in
+     * {@code file}.
+     *
+     * @return the latest token of the snapshot
+     * @throws IllegalArgumentException if the snapshot does not fit the
+     * cache, e.g. it was taken with another model
+     */
+    public static int restore(Path file, KvCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), HEADER_INTS * Integer.BYTES));
+            if (header.remaining() < HEADER_INTS * Integer.BYTES || header.getInt() != MAGIC
+                    || header.getInt() != VERSION) {
+                throw new IllegalArgumentException("Not a KV snapshot: " + file);
+            }
+            int format = header.getInt();
+            if (format < 0 || format >= Compression.values().length) {
+                throw new IllegalArgumentException("Unknown compression in KV snapshot: " + file);
+            }
+            Compression compression = Compression.values()[format];
+            int layers = header.getInt();
+            int kvDim = header.getInt();
+            int length = header.getInt();
+            int latestToken = header.getInt();
+            if (layers != cache.numberOfLayers() || kvDim != cache.kvDim() || length > cache.contextLength()) {
+                throw new IllegalArgumentException("Snapshot " + file + " does not fit the model");
+            }
+            long headerBytes = (long) (HEADER_INTS + length) * Integer.BYTES;
+            long layerBytes = 2L * length * rowBytes(kvDim, compression);
+            if (channel.size() != headerBytes + layers * layerBytes) {
+                throw new IllegalArgumentException("Truncated KV snapshot: " + file);
+            }
+            MappedByteBuffer tokens = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_INTS * Integer.BYTES,
+                    (long) length * Integer.BYTES);
+            cache.release();
+            for (int position = 0; position < length; position++) {
+                cache.record(position, tokens.getInt());
+            }
+            for (int l = 0; l < layers; l++) {
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, headerBytes + l * layerBytes,
+                        layerBytes);
+                for (int position = 0; position < length; position++) {
+                    cache.prepareWrite(l, position);
+                    getRow(buffer, cache.keys(l, position), cache.offset(position), kvDim, compression);
+                }
+                for (int position = 0; position < length; position++) {
+                    getRow(buffer, cache.values(l, position), cache.offset(position), kvDim, compression);
+                }
+            }
+            return latestToken;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long size)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static int rowBytes(int kvDim, Compression compression) {
+        return switch (compression) {
+            case F32 -> kvDim * Float.BYTES;
+            case F16 -> kvDim * Float16.BYTES;
+            case Q8 -> (kvDim + Q8_BLOCK - 1) / Q8_BLOCK * Float16.BYTES + kvDim;
+        };
+    }
+
+    private static void putRow(MappedByteBuffer buffer, FloatTensor row, int offset, int size,
+            Compression compression) {
+        switch (compression) {
+            case F32 -> {
+                for (int i = 0; i < size; i++) {
+                    buffer.putFloat(row.getFloat(offset + i));
+                }
+            }
+            case F16 -> {
+                for (int i = 0; i < size; i++) {
+                    buffer.putShort(Float.floatToFloat16(row.getFloat(offset + i)));
+                }
+            }
+            case Q8 -> {
+                for (int from = 0; from < size; from += Q8_BLOCK) {
+                    int to = Math.min(size, from + Q8_BLOCK);
+                    float max = 0;
+                    for (int i = from; i < to; i++) {
+                        max = Math.max(max, Math.abs(row.getFloat(offset + i)));
+                    }
+                    short scale = Float.floatToFloat16(max / 127f);
+                    float inverse = Float.float16ToFloat(scale) == 0 ? 0 : 1f / Float.float16ToFloat(scale);
+                    buffer.putShort(scale);
+                    for (int i = from; i < to; i++) {
+                        buffer.put((byte) Math.clamp(Math.round(row.getFloat(offset + i) * inverse), -127, 127));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void getRow(MappedByteBuffer buffer, FloatTensor row, int offset, int size,
+            Compression compression) {
+        switch (compression) {
+            case F32 -> {
+                for (int i = 0; i < size; i++) {
+                    row.setFloat(offset + i, buffer.getFloat());
+                }
+            }
+            case F16 -> {
+                for (int i = 0; i < size; i++) {
+                    row.setFloat(offset + i, Float.float16ToFloat(buffer.getShort()));
+                }
+            }
+            case Q8 -> {
+                for (int from = 0; from < size; from += Q8_BLOCK) {
+                    float scale = Float.float16ToFloat(buffer.getShort());
+                    for (int i = from; i < Math.min(size, from + Q8_BLOCK); i++) {
+                        row.setFloat(offset + i, buffer.get() * scale);
+                    }
+                }
+            }
+        }
+    }
+}
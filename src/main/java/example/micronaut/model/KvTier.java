@@ -0,0 +1,109 @@
+package example.micronaut.model;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import example.micronaut.model.tensor.F32FloatTensor;
+import example.micronaut.model.tensor.FloatTensor;
+
+/**
+ * Disk tier of {@link KvCache} blocks: slots in memory-mapped files, ideally
+ * on local NVMe, which the OS pages in and out on demand, so blocks moved
+ * there cost page cache rather than heap (see
+ * {@link KvCache#useTier(KvTier, int)}). Files of 64 MB are added as slots
+ * run out, up to {@code maxBytes}; they are deleted as soon as they are
+ * mapped, so their space is reclaimed when the process exits, even if it
+ * crashes. One tier serves all caches of a model.
+ */
+public final class KvTier {
+
+    private static final long EXTENT_BYTES = 64L << 20;
+
+    public record Stats(int files, long mappedBytes, long usedBytes, long pagedOut) {
+    }
+
+    private final Path directory;
+    private final int blockFloats; // BLOCK_SIZE * kvDim, of the keys or the values of a block
+    private final long slotBytes; // keys and values
+    private final int extentSlots;
+    private int maxSlots;
+    private final List<MemorySegment> extents = new ArrayList<>();
+    private final BitSet used = new BitSet();
+    private final Arena arena = Arena.ofAuto();
+    private long pagedOut;
+
+    /**
+     * @param maxBytes size limit of the files, 0 for none
+     */
+    public KvTier(Path directory, int kvDim, long maxBytes) {
+        this.directory = directory;
+        this.blockFloats = KvCache.BLOCK_SIZE * kvDim;
+        this.slotBytes = 2L * blockFloats * Float.BYTES;
+        this.extentSlots = (int) Math.max(1, EXTENT_BYTES / slotBytes);
+        this.maxSlots = maxBytes > 0 ? (int) Math.min(Integer.MAX_VALUE, maxBytes / slotBytes) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Takes a free slot for the keys and values of one block.
+     *
+     * @return -1 if the tier is full
+     */
+    synchronized int allocate() {
+        int slot = used.nextClearBit(0);
+        if (slot >= maxSlots) {
+            return -1;
+        }
+        if (slot / extentSlots >= extents.size()) {
+            try {
+                extents.add(map());
+            } catch (IOException e) {
+                System.err.println("KV tier stops growing, mapping a file in " + directory + " failed: " + e);
+                maxSlots = extents.size() * extentSlots;
+                return -1;
+            }
+        }
+        used.set(slot);
+        pagedOut++;
+        return slot;
+    }
+
+    synchronized void free(int slot) {
+        used.clear(slot);
+    }
+
+    synchronized FloatTensor keys(int slot) {
+        return new F32FloatTensor(blockFloats, slice(slot, 0));
+    }
+
+    synchronized FloatTensor values(int slot) {
+        return new F32FloatTensor(blockFloats, slice(slot, (long) blockFloats * Float.BYTES));
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(extents.size(), extents.size() * extentSlots * slotBytes, used.cardinality() * slotBytes,
+                pagedOut);
+    }
+
+    private MemorySegment slice(int slot, long offset) {
+        return extents.get(slot / extentSlots).asSlice((slot % extentSlots) * slotBytes + offset,
+                (long) blockFloats * Float.BYTES);
+    }
+
+    private MemorySegment map() throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "kv-", ".tier");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            // the file grows sparse to the mapped size, pages are only written once touched
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, extentSlots * slotBytes, arena);
+        }
+    }
+}
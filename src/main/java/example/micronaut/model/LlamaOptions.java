@@ -1,6 +1,7 @@
 package example.micronaut.model;
 
 import java.nio.file.Path;
+import java.util.List;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -17,9 +18,13 @@ public class LlamaOptions {
     boolean interactive;
     float temperature;
     float topp;
+    int topk;
+    float minp;
     long seed;
     int maxTokens;
     boolean stream;
     boolean echo;
     boolean fullResponseStream;
+    List<String> stop; // stop strings, null if none
+    int draftTokens; // speculative decoding: draft tokens verified per step
 }
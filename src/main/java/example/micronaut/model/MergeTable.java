@@ -0,0 +1,77 @@
+package example.micronaut.model;
+
+import java.util.Arrays;
+
+/**
+ * Primitive open-addressing map from a BPE token pair to the token id the pair
+ * merges into.
+ * <p>
+ * Pairs are packed into a single {@code long} (first id in the high word,
+ * second id in the low word) so lookups never box. Token ids are never
+ * negative, which leaves {@code -1L} free as the empty-slot marker.
+ */
+public final class MergeTable {
+
+    private static final long EMPTY = -1L;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size;
+
+    public MergeTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1; // load factor <= 0.5
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public static long pack(int first, int second) {
+        return ((long) first << 32) | (second & 0xFFFF_FFFFL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E37_79B9_7F4A_7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public void put(int first, int second, int mergeIndex) {
+        long key = pack(first, second);
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = mergeIndex;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size + 1 > (keys.length >> 1)) {
+            throw new IllegalStateException("MergeTable capacity exceeded: " + size);
+        }
+        keys[slot] = key;
+        values[slot] = mergeIndex;
+        size++;
+    }
+
+    /**
+     * Returns the token id {@code (first, second)} merges into, or -1 if the
+     * pair cannot be merged.
+     */
+    public int get(int first, int second) {
+        long key = pack(first, second);
+        int slot = hash(key) & mask;
+        long k;
+        while ((k = keys[slot]) != EMPTY) {
+            if (k == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+}
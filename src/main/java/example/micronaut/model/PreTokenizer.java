@@ -0,0 +1,188 @@
+package example.micronaut.model;
+
+import example.micronaut.utils.ModelLoader;
+
+/**
+ * Single-pass scanner equivalent to {@link ModelLoader#LLAMA_3_PATTERN}.
+ * <p>
+ * Splits text into exactly the pieces {@code java.util.regex} finds for
+ * <pre>
+ * (?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\r\n\p{L}\p{N}]?\p{L}+|\p{N}{1,3}| ?[^\s\p{L}\p{N}]+[\r\n]*|\s*[\r\n]+|\s+(?!\S)|\s+
+ * </pre>
+ * but without backtracking and without allocating a {@code String} per
+ * piece. The alternatives are tried in the same order as the regex; the
+ * backtracking of {@code \s*[\r\n]+} and {@code \s+(?!\S)} is resolved
+ * directly from the extent of the whitespace run. Character classes follow
+ * Java's (non-{@code UNICODE_CHARACTER_CLASS}) semantics: {@code \s} is ASCII
+ * whitespace and {@code (?i)} folds ASCII only.
+ */
+public final class PreTokenizer {
+
+    private static final byte LETTER = 1; // \p{L}
+    private static final byte NUMBER = 2; // \p{N}
+    private static final byte SPACE = 4; // \s
+    private static final byte NEWLINE = 8; // [\r\n]
+
+    // classification of every BMP code point, supplementary ones are classified on the fly
+    private static final byte[] BMP_CLASSES = new byte[Character.MAX_VALUE + 1];
+
+    static {
+        for (int cp = 0; cp <= Character.MAX_VALUE; cp++) {
+            BMP_CLASSES[cp] = computeClass(cp);
+        }
+    }
+
+    private PreTokenizer() {
+    }
+
+    private static byte computeClass(int cp) {
+        switch (cp) {
+            case '\r', '\n':
+                return SPACE | NEWLINE;
+            case ' ', '\t', 0x0B, '\f':
+                return SPACE;
+            default:
+                break;
+        }
+        return switch (Character.getType(cp)) {
+            case Character.UPPERCASE_LETTER, Character.LOWERCASE_LETTER, Character.TITLECASE_LETTER,
+                    Character.MODIFIER_LETTER, Character.OTHER_LETTER ->
+                LETTER;
+            case Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER ->
+                NUMBER;
+            default ->
+                0;
+        };
+    }
+
+    private static int classOf(int cp) {
+        return cp <= Character.MAX_VALUE ? BMP_CLASSES[cp] : computeClass(cp);
+    }
+
+    // [^\s\p{L}\p{N}]
+    private static boolean isSymbol(int cls) {
+        return (cls & (LETTER | NUMBER | SPACE)) == 0;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int skipLetters(CharSequence text, int index) {
+        int length = text.length();
+        while (index < length) {
+            int cp = Character.codePointAt(text, index);
+            if ((classOf(cp) & LETTER) == 0) {
+                break;
+            }
+            index += Character.charCount(cp);
+        }
+        return index;
+    }
+
+    private static int contraction(CharSequence text, int index) {
+        int length = text.length();
+        if (index >= length) {
+            return -1;
+        }
+        char a = toLowerAscii(text.charAt(index));
+        if (a == 's' || a == 't' || a == 'm' || a == 'd') {
+            return index + 1;
+        }
+        if (index + 1 < length) {
+            char b = toLowerAscii(text.charAt(index + 1));
+            if ((a == 'r' && b == 'e') || (a == 'v' && b == 'e') || (a == 'l' && b == 'l')) {
+                return index + 2;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the (exclusive) end of the piece starting at {@code start}.
+     * Every position starts a piece, so {@code text} is fully covered by
+     * repeatedly calling this with the previous end.
+     */
+    public static int nextPiece(CharSequence text, int start) {
+        int length = text.length();
+        int cp = Character.codePointAt(text, start);
+        int next = start + Character.charCount(cp);
+        int cls = classOf(cp);
+
+        // (?i:'s|'t|'re|'ve|'m|'ll|'d)
+        if (cp == '\'') {
+            int end = contraction(text, next);
+            if (end >= 0) {
+                return end;
+            }
+        }
+
+        // [^\r\n\p{L}\p{N}]?\p{L}+
+        if ((cls & LETTER) != 0) {
+            return skipLetters(text, next);
+        }
+        if ((cls & (NUMBER | NEWLINE)) == 0 && next < length
+                && (classOf(Character.codePointAt(text, next)) & LETTER) != 0) {
+            return skipLetters(text, next);
+        }
+
+        // \p{N}{1,3}
+        if ((cls & NUMBER) != 0) {
+            int end = next;
+            for (int count = 1; count < 3 && end < length; count++) {
+                int c = Character.codePointAt(text, end);
+                if ((classOf(c) & NUMBER) == 0) {
+                    break;
+                }
+                end += Character.charCount(c);
+            }
+            return end;
+        }
+
+        // ' ?[^\s\p{L}\p{N}]+[\r\n]*'
+        int symbolStart = -1;
+        if (isSymbol(cls)) {
+            symbolStart = start;
+        } else if (cp == ' ' && next < length && isSymbol(classOf(Character.codePointAt(text, next)))) {
+            symbolStart = next;
+        }
+        if (symbolStart >= 0) {
+            int end = symbolStart;
+            while (end < length) {
+                int c = Character.codePointAt(text, end);
+                if (!isSymbol(classOf(c))) {
+                    break;
+                }
+                end += Character.charCount(c);
+            }
+            while (end < length && (text.charAt(end) == '\r' || text.charAt(end) == '\n')) {
+                end++;
+            }
+            return end;
+        }
+
+        // only (ASCII) whitespace is left: measure the run and remember its last newline
+        int end = start;
+        int lastNewline = -1;
+        while (end < length) {
+            int cl = BMP_CLASSES[text.charAt(end)];
+            if ((cl & SPACE) == 0) {
+                break;
+            }
+            if ((cl & NEWLINE) != 0) {
+                lastNewline = end;
+            }
+            end++;
+        }
+        // \s*[\r\n]+ backtracks to the last newline of the run
+        if (lastNewline >= 0) {
+            return lastNewline + 1;
+        }
+        // \s+(?!\S) leaves the last space for the next piece, unless the run ends the text
+        if (end < length && end - start > 1) {
+            return end - 1;
+        }
+        // \s+
+        return end;
+    }
+}
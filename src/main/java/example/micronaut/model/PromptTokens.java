@@ -0,0 +1,84 @@
+package example.micronaut.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Prompt token ids that may still be in the making.
+ * <p>
+ * The prompt is a queue of segments, some already known (e.g. chat headers)
+ * and some still being tokenized in the background (see
+ * {@link Tokenizer#encodeSegments(String)}). Prompt ingestion takes tokens
+ * from the head as soon as they are available, so prefill of the first
+ * segments overlaps with tokenization of the later ones. Segments must not
+ * be empty. Not thread-safe: one consumer.
+ */
+public final class PromptTokens {
+
+    private final Deque<CompletableFuture<int[]>> pending = new ArrayDeque<>();
+    private int[] current = new int[0];
+    private int currentIndex;
+    private int consumed;
+
+    public static PromptTokens of(List<Integer> tokens) {
+        return new PromptTokens().add(tokens);
+    }
+
+    public PromptTokens add(int[] tokens) {
+        if (tokens.length > 0) {
+            pending.add(CompletableFuture.completedFuture(tokens));
+        }
+        return this;
+    }
+
+    public PromptTokens add(List<Integer> tokens) {
+        return add(tokens.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public PromptTokens addAll(List<CompletableFuture<int[]>> segments) {
+        pending.addAll(segments);
+        return this;
+    }
+
+    /**
+     * Returns true if there are tokens left to take, never blocks.
+     */
+    public boolean hasNext() {
+        return currentIndex < current.length || !pending.isEmpty();
+    }
+
+    /**
+     * Copies up to {@code max} tokens into {@code dst}. Only waits for a
+     * pending segment if no token at all is available yet; otherwise returns
+     * what is ready so it can be processed while the rest is tokenized.
+     *
+     * @return number of tokens copied, 0 iff there are no tokens left
+     */
+    public int next(int[] dst, int max) {
+        int count = 0;
+        while (count < max) {
+            if (currentIndex < current.length) {
+                int n = Math.min(max - count, current.length - currentIndex);
+                System.arraycopy(current, currentIndex, dst, count, n);
+                currentIndex += n;
+                count += n;
+            } else if (!pending.isEmpty() && (count == 0 || pending.peek().isDone())) {
+                current = pending.poll().join();
+                currentIndex = 0;
+            } else {
+                break;
+            }
+        }
+        consumed += count;
+        return count;
+    }
+
+    /**
+     * Number of tokens taken so far.
+     */
+    public int consumed() {
+        return consumed;
+    }
+}
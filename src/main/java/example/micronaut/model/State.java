@@ -1,6 +1,7 @@
 package example.micronaut.model;
 
-import java.util.stream.Stream;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
 
 import example.micronaut.model.tensor.ArrayFloatTensor;
 import example.micronaut.model.tensor.FloatTensor;
@@ -21,9 +22,8 @@ public class State {
     public final FloatTensor[] att; // buffer for scores/attention values (n_heads, seq_len)
     public final FloatTensor logits; // output logits
 
-    // kv cache
-    public final FloatTensor[] keyCache; // (n_layer, seq_len, kv_dim)
-    public final FloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+    // kv cache (n_layer, seq_len, kv_dim), paged
+    public KvCache kvCache;
 
     /**
      * last index in previous block
@@ -32,6 +32,18 @@ public class State {
 
     public int latestToken;
 
+    /**
+     * Cancellation signal of the generation using this state, checked before
+     * every forward pass; null if it cannot be cancelled.
+     */
+    public volatile BooleanSupplier cancelled;
+
+    /**
+     * Prompt tokens the next prefill chunk may ingest, see
+     * {@link #prefillChunk()}; null to always use {@code batchsize}.
+     */
+    public volatile IntSupplier prefillBudget;
+
     State(Configuration config, int batchsize) {
         this.batchsize = batchsize;
         this.x = TransformerUtils.allocate(batchsize, config.dim);
@@ -47,9 +59,20 @@ public class State {
 
         this.logits = ArrayFloatTensor.allocate(config.vocabularySize);
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-        this.keyCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim))
-                .limit(config.numberOfLayers).toArray(FloatTensor[]::new);
-        this.valueCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim))
-                .limit(config.numberOfLayers).toArray(FloatTensor[]::new);
+        this.kvCache = new KvCache(config.numberOfLayers, config.contextLength, kvDim);
+    }
+
+    public boolean isCancelled() {
+        BooleanSupplier signal = cancelled;
+        return signal != null && signal.getAsBoolean();
+    }
+
+    /**
+     * Size of the next chunk of prompt tokens: {@code batchsize}, or less
+     * while a scheduler shares forward passes with decoding sequences.
+     */
+    public int prefillChunk() {
+        IntSupplier budget = prefillBudget;
+        return budget == null ? batchsize : Math.clamp(budget.getAsInt(), 1, batchsize);
     }
 }
@@ -0,0 +1,93 @@
+package example.micronaut.model;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable {@link State}s of one model and batch size. The activation
+ * buffers of a state (the attention scores alone are batch size x heads x
+ * context length floats) are allocated once instead of per request; its
+ * paged {@link KvCache} only holds the positions in use and is emptied on
+ * {@link #release(State)}, so nothing leaks between requests. With a
+ * {@link KvTier}, older cache blocks are paged out to it.
+ */
+public final class StatePool {
+
+    private final Llama model;
+    private final int batchsize;
+    private final int capacity;
+    private final KvTier tier;
+    private final int hotBlocks;
+    private final ConcurrentLinkedDeque<State> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * @param capacity maximum number of idle states kept, more may be in use
+     */
+    public StatePool(Llama model, int batchsize, int capacity) {
+        this(model, batchsize, capacity, null, 0);
+    }
+
+    /**
+     * @param tier disk tier of the caches, null for none, see
+     * {@link KvCache#useTier(KvTier, int)}
+     */
+    public StatePool(Llama model, int batchsize, int capacity, KvTier tier, int hotBlocks) {
+        this.model = model;
+        this.batchsize = batchsize;
+        this.capacity = capacity;
+        this.tier = tier;
+        this.hotBlocks = hotBlocks;
+    }
+
+    public State acquire() {
+        State state = idle.pollFirst();
+        if (state == null) {
+            created.increment();
+            state = model.createNewState(batchsize);
+            state.kvCache.useTier(tier, hotBlocks);
+            return state;
+        }
+        idleCount.decrementAndGet();
+        reused.increment();
+        return state;
+    }
+
+    /**
+     * Returns {@code state} to the pool, dropping its cache blocks. The
+     * state must not be used by the caller afterwards.
+     */
+    public void release(State state) {
+        state.kvCache.release();
+        state.idxPrevBlock = -1;
+        state.cancelled = null;
+        state.prefillBudget = null;
+        state.latestToken = model.tokenizer().getSpecialTokens().get("<|begin_of_text|>");
+        if (idleCount.incrementAndGet() <= capacity) {
+            idle.offerFirst(state); // most recently used first, its buffers are likely still in cache
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Empty cache like those of the pooled states.
+     */
+    public KvCache newCache() {
+        Configuration config = model.configuration();
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        KvCache cache = new KvCache(config.numberOfLayers, config.contextLength, kvDim);
+        cache.useTier(tier, hotBlocks);
+        return cache;
+    }
+
+    public Stats stats() {
+        return new Stats(created.sum(), reused.sum(), idleCount.get());
+    }
+
+    public record Stats(long created, long reused, int idle) {
+    }
+}
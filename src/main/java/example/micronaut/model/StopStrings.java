@@ -0,0 +1,102 @@
+package example.micronaut.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton over the UTF-8 bytes of a set of stop strings.
+ * <p>
+ * Transitions are precomputed for all 256 byte values, so matching costs one
+ * array lookup per generated byte regardless of the number of stop strings,
+ * and matches spanning any number of tokens are found. Immutable; the match
+ * state lives in the caller, see {@link Detokenizer}.
+ */
+public final class StopStrings {
+
+    private final int[][] next;
+    // number of trailing bytes that may still be the start of a stop string
+    private final int[] depth;
+    // length of the longest stop string ending at a state, 0 if none
+    private final int[] matchLength;
+
+    public StopStrings(List<String> stops) {
+        byte[][] patterns = stops.stream()
+                .filter(s -> s != null && !s.isEmpty())
+                .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        if (patterns.length == 0) {
+            throw new IllegalArgumentException("No stop strings");
+        }
+        int maxStates = 1 + Arrays.stream(patterns).mapToInt(p -> p.length).sum();
+        int[][] trie = new int[maxStates][];
+        int[] depths = new int[maxStates];
+        int[] matches = new int[maxStates];
+        trie[0] = new int[256];
+        int states = 1;
+        for (byte[] pattern : patterns) {
+            int s = 0;
+            for (byte b : pattern) {
+                int c = b & 0xFF;
+                if (trie[s][c] == 0) {
+                    trie[states] = new int[256];
+                    depths[states] = depths[s] + 1;
+                    trie[s][c] = states++;
+                }
+                s = trie[s][c];
+            }
+            matches[s] = pattern.length;
+        }
+
+        // breadth-first: fill missing transitions through the failure links
+        int[] fail = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < 256; c++) {
+            if (trie[0][c] != 0) {
+                queue.add(trie[0][c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            matches[s] = Math.max(matches[s], matches[fail[s]]);
+            for (int c = 0; c < 256; c++) {
+                int t = trie[s][c];
+                if (t != 0) {
+                    fail[t] = trie[fail[s]][c];
+                    queue.add(t);
+                } else {
+                    trie[s][c] = trie[fail[s]][c];
+                }
+            }
+        }
+        this.next = Arrays.copyOf(trie, states);
+        this.depth = Arrays.copyOf(depths, states);
+        this.matchLength = Arrays.copyOf(matches, states);
+    }
+
+    public int start() {
+        return 0;
+    }
+
+    public int step(int state, int b) {
+        return next[state][b];
+    }
+
+    /**
+     * Length of the current partial match: that many trailing bytes must be
+     * held back, a stop string may still complete over them.
+     */
+    public int depth(int state) {
+        return depth[state];
+    }
+
+    /**
+     * Length of the (longest) stop string completed at {@code state}, 0 if
+     * none.
+     */
+    public int matchLength(int state) {
+        return matchLength[state];
+    }
+}
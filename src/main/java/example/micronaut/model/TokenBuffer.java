@@ -0,0 +1,80 @@
+package example.micronaut.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable {@code int} list used on the tokenizer hot paths to avoid boxing
+ * every token id.
+ */
+public final class TokenBuffer {
+
+    private int[] tokens;
+    private int size;
+
+    public TokenBuffer() {
+        this(16);
+    }
+
+    public TokenBuffer(int initialCapacity) {
+        this.tokens = new int[Math.max(1, initialCapacity)];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > tokens.length) {
+            tokens = Arrays.copyOf(tokens, Math.max(capacity, tokens.length * 2));
+        }
+    }
+
+    public void add(int token) {
+        ensureCapacity(size + 1);
+        tokens[size++] = token;
+    }
+
+    public void addAll(int[] src, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(src, offset, tokens, size, length);
+        size += length;
+    }
+
+    public void addAll(int[] src) {
+        addAll(src, 0, src.length);
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return tokens[index];
+    }
+
+    public void set(int index, int token) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        tokens[index] = token;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(tokens, size);
+    }
+
+    public int[] toArray(int from, int to) {
+        if (to > size) {
+            throw new IndexOutOfBoundsException(to);
+        }
+        return Arrays.copyOfRange(tokens, from, to);
+    }
+
+    public List<Integer> toList() {
+        return Arrays.stream(tokens, 0, size).boxed().toList();
+    }
+}
@@ -3,17 +3,22 @@ package example.micronaut.model;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import example.micronaut.model.grammar.VocabularyTrie;
+import example.micronaut.utils.ModelLoader;
+import example.micronaut.utils.Parallel;
+
 /**
  * Byte Pair Encoding tokenizer.
  * <p>
@@ -24,10 +29,27 @@ import java.util.stream.IntStream;
  */
 public class Tokenizer {
 
+    // chunks longer than this are rare enough not to be worth caching
+    private static final int MAX_CACHED_CHUNK_LENGTH = 64;
+    // (byte-encoded) texts at least this long are BPE-encoded in parallel segments
+    private static final int PARALLEL_MIN_LENGTH = Integer.getInteger("llama.ParallelTokenizeThreshold", 16384);
+    private static final int SEGMENT_LENGTH = 4096;
+
     private final Pattern compiledPattern;
+    // the Llama 3 split pattern is served by the hand-written PreTokenizer
+    private final boolean usePreTokenizer;
     private final Vocabulary vocabulary;
-    private final Map<Pair<Integer, Integer>, Integer> merges;
+    private final MergeTable merges;
     private final Map<String, Integer> specialTokens;
+    // token id of every single (byte-encoded) character, -1 if not in the vocabulary
+    private final int[] charTokens;
+    // encodings of recently seen chunks, null if disabled
+    private final ChunkCache chunkCache;
+    // raw (UTF-8) bytes of every token, shared, must not be modified
+    private final byte[][] tokenBytes;
+    private final BitSet specialTokenIds;
+    // built on first use by constrained decoding
+    private volatile VocabularyTrie vocabularyTrie;
 
     public String regexPattern() {
         if (compiledPattern == null) {
@@ -41,7 +63,7 @@ public class Tokenizer {
     }
 
     public boolean isSpecialToken(int tokenIndex) {
-        return specialTokens.containsValue(tokenIndex);
+        return specialTokenIds.get(tokenIndex);
     }
 
     public Tokenizer(Vocabulary vocabulary, List<Pair<Integer, Integer>> merges, String regexPattern,
@@ -51,19 +73,77 @@ public class Tokenizer {
 
         this.vocabulary = vocabulary;
         this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
+        this.usePreTokenizer = ModelLoader.LLAMA_3_PATTERN.equals(regexPattern);
         this.specialTokens = new HashMap<>(specialTokens);
-        this.merges = new HashMap<>();
+        this.merges = new MergeTable(merges.size());
         for (Pair<Integer, Integer> pair : merges) {
             int firstIndex = pair.first();
             int secondIndex = pair.second();
             int mergeIndex = vocabulary.getIndex(vocabulary.get(firstIndex) + vocabulary.get(secondIndex))
                     .orElseThrow();
-            this.merges.put(pair, mergeIndex);
+            this.merges.put(firstIndex, secondIndex, mergeIndex);
+        }
+        this.charTokens = new int[BYTE_DECODER.keySet().stream().mapToInt(Integer::intValue).max().orElseThrow() + 1];
+        for (int c = 0; c < charTokens.length; c++) {
+            charTokens[c] = vocabulary.getIndex(String.valueOf((char) c)).orElse(-1);
         }
+        int cacheSize = Integer.getInteger("llama.TokenizerCacheSize", 65536);
+        this.chunkCache = cacheSize > 0 ? new ChunkCache(cacheSize) : null;
+        this.tokenBytes = new byte[vocabulary.size()][];
+        for (int i = 0; i < tokenBytes.length; i++) {
+            tokenBytes[i] = decodeTokenBytes(vocabulary.get(i));
+        }
+        this.specialTokenIds = new BitSet(vocabulary.size());
+        this.specialTokens.values().forEach(specialTokenIds::set);
+    }
+
+    private static byte[] decodeTokenBytes(String token) {
+        int[] codePoints = token.codePoints().toArray();
+        byte[] bytes = new byte[codePoints.length];
+        for (int i = 0; i < codePoints.length; i++) {
+            Integer decodedByte = BYTE_DECODER.get(codePoints[i]);
+            bytes[i] = (byte) (decodedByte != null ? decodedByte : '?');
+        }
+        return bytes;
+    }
+
+    /**
+     * Raw bytes of {@code token}. A token may hold an incomplete UTF-8
+     * sequence, see {@link Detokenizer}. The array is shared and must not be
+     * modified.
+     */
+    public byte[] tokenBytes(int token) {
+        return tokenBytes[token];
+    }
+
+    /**
+     * Byte trie over all non-special tokens, built on first call.
+     */
+    public VocabularyTrie vocabularyTrie() {
+        VocabularyTrie trie = vocabularyTrie;
+        if (trie == null) {
+            synchronized (this) {
+                trie = vocabularyTrie;
+                if (trie == null) {
+                    vocabularyTrie = trie = new VocabularyTrie(tokenBytes, specialTokenIds);
+                }
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * Hit/miss counters of the chunk encoding cache, null if the cache is
+     * disabled ({@code llama.TokenizerCacheSize=0}).
+     */
+    public ChunkCache.Stats cacheStats() {
+        return chunkCache != null ? chunkCache.stats() : null;
     }
 
     private int[] encodeImpl(String text) {
-        return encode(text, Set.of()).stream().mapToInt(i -> i).toArray();
+        TokenBuffer ids = new TokenBuffer(text.length());
+        encode(text, Set.of(), ids);
+        return ids.toArray();
     }
 
     /**
@@ -74,12 +154,19 @@ public class Tokenizer {
      * now as well any other behavior is either annoying, or a major footgun.
      */
     List<Integer> encode(String text, Set<String> allowedSpecial) {
+        TokenBuffer ids = new TokenBuffer(text.length());
+        encode(text, allowedSpecial, ids);
+        return ids.toList();
+    }
+
+    private void encode(String text, Set<String> allowedSpecial, TokenBuffer ids) {
         // decode the user desire w.r.t. handling of special tokens
         Set<String> special = allowedSpecial;
         assert getSpecialTokens().keySet().containsAll(special);
         if (special.isEmpty()) {
             // shortcut: if no special tokens, just use the ordinary encoding
-            return encodeOrdinary(text);
+            encodeOrdinary(text, ids);
+            return;
         }
 
         // otherwise, we have to be careful with potential special tokens in text
@@ -95,95 +182,188 @@ public class Tokenizer {
         String[] specialChunks = text.split(specialPattern);
         // now all the special characters are separated from the rest of the text
         // all chunks of text are encoded separately, then results are joined
-        List<Integer> ids = new ArrayList<>();
         for (String part : specialChunks) {
             if (special.contains(part)) {
                 // this is a special token, encode it separately as a special case
                 ids.add(getSpecialTokens().get(part));
             } else {
                 // this is an ordinary sequence, encode it normally
-                ids.addAll(encodeOrdinary(part));
+                encodeOrdinary(part, ids);
             }
         }
-        return ids;
-    }
-
-    private static List<String> findAll(Pattern pattern, String text) {
-        List<String> allMatches = new ArrayList<>();
-        Matcher matcher = pattern.matcher(text);
-        while (matcher.find()) {
-            allMatches.add(matcher.group());
-        }
-        return allMatches;
     }
 
     /**
      * Encoding that ignores any special tokens.
      */
     public List<Integer> encodeOrdinary(String text) {
+        TokenBuffer ids = new TokenBuffer(text.length());
+        encodeOrdinary(text, ids);
+        return ids.toList();
+    }
+
+    private void encodeOrdinary(String text, TokenBuffer ids) {
         // split text into chunks of text by categories defined in regex pattern
-        List<String> textChunks = findAll(compiledPattern, text);
         // all chunks of text are encoded separately, then results are joined
-        List<Integer> ids = new ArrayList<>();
-        for (String chunk : textChunks) {
-            List<Integer> chunkIds = encodeChunk(chunk);
-            ids.addAll(chunkIds);
+        ChunkCache.Lookup lookup = chunkCache != null ? chunkCache.lookup() : null;
+        if (usePreTokenizer) {
+            for (int start = 0, end; start < text.length(); start = end) {
+                end = PreTokenizer.nextPiece(text, start);
+                encodeCachedChunk(text, start, end, ids, lookup);
+            }
+        } else {
+            Matcher matcher = compiledPattern.matcher(text);
+            while (matcher.find()) {
+                encodeCachedChunk(text, matcher.start(), matcher.end(), ids, lookup);
+            }
         }
-        return ids;
     }
 
-    private Map<Pair<Integer, Integer>, Integer> getStats(List<Integer> ids) {
-        Map<Pair<Integer, Integer>, Integer> map = new HashMap<>();
-        for (int i = 0; i + 1 < ids.size(); i++) {
-            Pair<Integer, Integer> key = new Pair<>(ids.get(i), ids.get(i + 1));
-            map.put(key, map.getOrDefault(key, 0) + 1);
+    private void encodeCachedChunk(CharSequence text, int start, int end, TokenBuffer ids, ChunkCache.Lookup lookup) {
+        int length = end - start;
+        if (lookup == null || length < 2 || length > MAX_CACHED_CHUNK_LENGTH) {
+            encodeChunk(text, start, end, ids);
+            return;
         }
-        return map;
+        int[] cached = chunkCache.get(lookup, text, start, end);
+        if (cached != null) {
+            ids.addAll(cached);
+            return;
+        }
+        int mark = ids.size();
+        encodeChunk(text, start, end, ids);
+        chunkCache.put(text, start, end, ids.toArray(mark, ids.size()));
     }
 
-    private List<Integer> encodeChunk(String chunk) {
-        // return the token ids
+    private int charToken(char c) {
+        int tokenIndex = c < charTokens.length ? charTokens[c] : -1;
+        if (tokenIndex < 0) {
+            tokenIndex = this.vocabulary.getIndex(String.valueOf(c)).orElseThrow();
+        }
+        return tokenIndex;
+    }
+
+    /**
+     * BPE-encodes {@code text[start, end)} into {@code out}.
+     * <p>
+     * Symbols are kept in a doubly linked list over arrays and candidate pairs
+     * in a min-heap keyed by {@code (rank, position)}, so a chunk of n
+     * characters is merged in O(n log n). As in minbpe, the rank of a pair is
+     * the id of the token it merges into, and all occurrences of the
+     * lowest-rank pair are merged left to right before pairs created by those
+     * merges are considered. Stale heap entries are detected lazily by
+     * re-checking the pair at their position.
+     */
+    private void encodeChunk(CharSequence text, int start, int end, TokenBuffer out) {
+        int n = end - start;
+        if (n == 1) {
+            out.add(charToken(text.charAt(start)));
+            return;
+        }
         // let's begin. first, convert all bytes to integers in range 0..255
-        List<Integer> ids = new ArrayList<>();
-        for (int b : chunk.toCharArray()) {
-            int tokenIndex = this.vocabulary.getIndex(String.valueOf((char) b)).orElseThrow();
-            ids.add(tokenIndex);
+        int[] ids = new int[n];
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = charToken(text.charAt(start + i));
+            prev[i] = i - 1;
+            next[i] = i + 1;
         }
 
-        while (ids.size() >= 2) {
-            // find the pair with the lowest merge index
-            Map<Pair<Integer, Integer>, Integer> stats = getStats(ids);
-            Pair<Integer, Integer> pair = stats.keySet().stream()
-                    .min(Comparator.comparingInt(key -> this.merges.getOrDefault(key, Integer.MAX_VALUE)))
-                    .orElseThrow();
-            // subtle: if there are no more merges available, the key will
-            // result in an inf for every single pair, and the min will be
-            // just the first pair in the list, arbitrarily
-            // we can detect this terminating case by a membership check
-            if (!this.merges.containsKey(pair)) {
-                break; // nothing else can be merged anymore
+        long[] heap = new long[3 * n]; // bounds the total number of pushes
+        int heapSize = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            int rank = merges.get(ids[i], ids[i + 1]);
+            if (rank >= 0) {
+                heapSize = heapPush(heap, heapSize, rank, i);
+            }
+        }
+
+        int[] merged = new int[n];
+        while (heapSize > 0) {
+            // merge every occurrence of the best pair (lowest merge index), left to right
+            int rank = (int) (heap[0] >>> 32);
+            int mergedCount = 0;
+            while (heapSize > 0 && (int) (heap[0] >>> 32) == rank) {
+                int i = (int) heap[0];
+                heapSize = heapPop(heap, heapSize);
+                int j = next[i];
+                if (ids[i] < 0 || j >= n || merges.get(ids[i], ids[j]) != rank) {
+                    continue; // stale: one side was already merged away
+                }
+                ids[i] = rank;
+                ids[j] = -1;
+                next[i] = next[j];
+                if (next[j] < n) {
+                    prev[next[j]] = i;
+                }
+                merged[mergedCount++] = i;
+            }
+            // only now look at the pairs the new tokens formed with their neighbours
+            for (int m = 0; m < mergedCount; m++) {
+                int i = merged[m];
+                if (ids[i] != rank) {
+                    continue; // merged again into its left neighbour in this round
+                }
+                int p = prev[i];
+                if (p >= 0) {
+                    int r = merges.get(ids[p], ids[i]);
+                    if (r >= 0) {
+                        heapSize = heapPush(heap, heapSize, r, p);
+                    }
+                }
+                int j = next[i];
+                if (j < n) {
+                    int r = merges.get(ids[i], ids[j]);
+                    if (r >= 0) {
+                        heapSize = heapPush(heap, heapSize, r, i);
+                    }
+                }
             }
-            // otherwise let's merge the best pair (lowest merge index)
-            int idx = this.merges.get(pair);
-            ids = merge(ids, pair, idx);
         }
-        return ids;
+
+        for (int i = 0; i < n; i = next[i]) {
+            out.add(ids[i]);
+        }
     }
 
-    private static List<Integer> merge(List<Integer> ids, Pair<Integer, Integer> pair, int idx) {
-        List<Integer> newids = new ArrayList<>();
+    private static int heapPush(long[] heap, int size, int rank, int position) {
+        if (size == heap.length) {
+            throw new IllegalStateException("BPE heap overflow");
+        }
+        long entry = ((long) rank << 32) | position;
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+        return size + 1;
+    }
+
+    private static int heapPop(long[] heap, int size) {
+        long last = heap[--size];
         int i = 0;
-        while (i < ids.size()) {
-            // if not at the very last position AND the pair matches, replace it
-            if (ids.get(i).equals(pair.first()) && i < ids.size() - 1 && ids.get(i + 1).equals(pair.second())) {
-                newids.add(idx);
-                i += 2;
-            } else {
-                newids.add(ids.get(i));
-                i += 1;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
             }
+            if (heap[child] >= last) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
         }
-        return newids;
+        heap[i] = last;
+        return size;
     }
 
     public String decodeImpl(List<Integer> tokens) {
@@ -232,13 +412,84 @@ public class Tokenizer {
             .stream()
             .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
 
-    public int[] encode(String text) {
+    private static String byteEncode(String text) {
         StringBuilder sb = new StringBuilder();
         byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
         for (byte b : bytes) {
             sb.appendCodePoint(BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
         }
-        return encodeImpl(sb.toString());
+        return sb.toString();
+    }
+
+    private boolean encodeInParallel(String encoded) {
+        // segments can only be cut at piece boundaries the PreTokenizer reports
+        return usePreTokenizer && encoded.length() >= PARALLEL_MIN_LENGTH;
+    }
+
+    public int[] encode(String text) {
+        String encoded = byteEncode(text);
+        if (!encodeInParallel(encoded)) {
+            return encodeImpl(encoded);
+        }
+        TokenBuffer ids = new TokenBuffer(encoded.length() / 2);
+        for (CompletableFuture<int[]> segment : encodeSegmentsImpl(encoded)) {
+            ids.addAll(segment.join());
+        }
+        return ids.toArray();
+    }
+
+    /**
+     * Encodes {@code text} (no special tokens) as a list of consecutive,
+     * non-empty segments.
+     * <p>
+     * Long texts are cut at pre-token chunk boundaries and the segments are
+     * BPE-encoded concurrently on the inference pool. Since BPE never merges
+     * across chunks, the concatenation is exactly {@link #encode(String)}.
+     * Segments are submitted while the text is still being scanned, so the
+     * first ones can be consumed (e.g. prefilled, see {@link PromptTokens})
+     * before the last ones are done.
+     */
+    public List<CompletableFuture<int[]>> encodeSegments(String text) {
+        String encoded = byteEncode(text);
+        if (encoded.isEmpty()) {
+            return List.of();
+        }
+        if (!encodeInParallel(encoded)) {
+            return List.of(CompletableFuture.completedFuture(encodeImpl(encoded)));
+        }
+        return encodeSegmentsImpl(encoded);
+    }
+
+    private List<CompletableFuture<int[]>> encodeSegmentsImpl(String encoded) {
+        List<CompletableFuture<int[]>> segments = new ArrayList<>();
+        TokenBuffer pieceEnds = new TokenBuffer(SEGMENT_LENGTH / 2);
+        int segmentStart = 0;
+        for (int start = 0, end; start < encoded.length(); start = end) {
+            end = PreTokenizer.nextPiece(encoded, start);
+            pieceEnds.add(end);
+            if (end - segmentStart >= SEGMENT_LENGTH) {
+                segments.add(encodeSegmentAsync(encoded, segmentStart, pieceEnds.toArray()));
+                segmentStart = end;
+                pieceEnds.clear();
+            }
+        }
+        if (pieceEnds.size() > 0) {
+            segments.add(encodeSegmentAsync(encoded, segmentStart, pieceEnds.toArray()));
+        }
+        return segments;
+    }
+
+    private CompletableFuture<int[]> encodeSegmentAsync(String encoded, int segmentStart, int[] pieceEnds) {
+        return Parallel.supplyAsync(() -> {
+            TokenBuffer ids = new TokenBuffer(SEGMENT_LENGTH / 2);
+            ChunkCache.Lookup lookup = chunkCache != null ? chunkCache.lookup() : null;
+            int start = segmentStart;
+            for (int end : pieceEnds) {
+                encodeCachedChunk(encoded, start, end, ids, lookup);
+                start = end;
+            }
+            return ids.toArray();
+        });
     }
 
     public static String replaceControlCharacters(int[] codePoints) {
@@ -266,23 +517,21 @@ public class Tokenizer {
     }
 
     public String decode(List<Integer> tokens) {
-        String decoded = decodeImpl(tokens);
-
-        //int[] decodedBytesAsInts = decoded.codePoints().map(BYTE_DECODER::get).toArray();
-        int[] decodedBytesAsInts = decoded.codePoints()
-                .map(cp -> {
-                    Integer decodedByte = BYTE_DECODER.get(cp);
-                    if (decodedByte == null) {
-                        return (int) '?';
-                    }
-                    return decodedByte;
-                })
-                .toArray();
-
-        byte[] rawBytes = new byte[decodedBytesAsInts.length];
-        for (int i = 0; i < decoded.length(); i++) {
-            rawBytes[i] = (byte) decodedBytesAsInts[i];
+        int length = 0;
+        for (int token : tokens) {
+            length += tokenBytes[token].length;
+        }
+        byte[] rawBytes = new byte[length];
+        int offset = 0;
+        for (int token : tokens) {
+            byte[] bytes = tokenBytes[token];
+            System.arraycopy(bytes, 0, rawBytes, offset, bytes.length);
+            offset += bytes.length;
         }
         return new String(rawBytes, StandardCharsets.UTF_8);
     }
+
+    public String decode(int token) {
+        return new String(tokenBytes[token], StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,232 @@
+package example.micronaut.model.grammar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import example.micronaut.model.TokenBuffer;
+
+/**
+ * Deterministic automaton over bytes, compiled from a regular expression.
+ * <p>
+ * The expression is turned into a Thompson NFA; DFA states (sets of NFA
+ * states) are built lazily on first use, so only the part of the automaton
+ * that generation actually visits is ever materialized. Instances are
+ * thread-safe and meant to be shared.
+ */
+public final class ByteAutomaton {
+
+    public static final int DEAD = -1;
+    private static final int UNKNOWN = -2;
+    private static final int MAX_NFA_STATES = 1 << 20;
+
+    // NFA: a state either consumes one byte out of a set, or has epsilon edges
+    private final long[][] nfaBytes;
+    private final int[] nfaNext;
+    private final int[][] nfaEpsilon;
+    private final int nfaAccept;
+
+    private final List<BitSet> dfaStates = new ArrayList<>();
+    private final Map<BitSet, Integer> dfaIndex = new HashMap<>();
+    private final List<int[]> transitions = new ArrayList<>();
+    private final BitSet accepting = new BitSet();
+    private final int start;
+
+    private ByteAutomaton(NfaBuilder nfa, int nfaStart, int nfaAccept) {
+        int n = nfa.bytes.size();
+        this.nfaBytes = nfa.bytes.toArray(new long[n][]);
+        this.nfaNext = nfa.next.toArray();
+        this.nfaEpsilon = new int[n][];
+        for (int i = 0; i < n; i++) {
+            this.nfaEpsilon[i] = nfa.epsilon.get(i).toArray();
+        }
+        this.nfaAccept = nfaAccept;
+        BitSet initial = new BitSet(n);
+        initial.set(nfaStart);
+        this.start = intern(closure(initial));
+    }
+
+    public static ByteAutomaton fromRegex(String pattern) {
+        NfaBuilder nfa = new NfaBuilder();
+        int[] fragment = nfa.compile(RegexParser.parse(pattern));
+        return new ByteAutomaton(nfa, fragment[0], fragment[1]);
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public synchronized boolean isAccepting(int state) {
+        return state != DEAD && accepting.get(state);
+    }
+
+    /**
+     * State reached from {@code state} by consuming byte {@code b}, or
+     * {@link #DEAD} if the byte cannot continue any match.
+     */
+    public synchronized int step(int state, int b) {
+        int[] row = transitions.get(state);
+        int next = row[b];
+        if (next == UNKNOWN) {
+            next = computeStep(state, b);
+            row[b] = next;
+        }
+        return next;
+    }
+
+    /**
+     * Consumes {@code bytes}, stops early on {@link #DEAD}.
+     */
+    public int walk(int state, byte[] bytes) {
+        for (int i = 0; i < bytes.length && state != DEAD; i++) {
+            state = step(state, bytes[i] & 0xFF);
+        }
+        return state;
+    }
+
+    private int computeStep(int state, int b) {
+        BitSet current = dfaStates.get(state);
+        BitSet moved = new BitSet(nfaBytes.length);
+        for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+            long[] set = nfaBytes[s];
+            if (set != null && RegexParser.contains(set, b)) {
+                moved.set(nfaNext[s]);
+            }
+        }
+        if (moved.isEmpty()) {
+            return DEAD;
+        }
+        return intern(closure(moved));
+    }
+
+    private BitSet closure(BitSet states) {
+        int[] stack = new int[nfaBytes.length];
+        int top = 0;
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            stack[top++] = s;
+        }
+        while (top > 0) {
+            int s = stack[--top];
+            for (int e : nfaEpsilon[s]) {
+                if (!states.get(e)) {
+                    states.set(e);
+                    stack[top++] = e;
+                }
+            }
+        }
+        // epsilon-only states never consume input, drop them to merge equivalent sets
+        BitSet key = new BitSet(nfaBytes.length);
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            if (nfaBytes[s] != null || s == nfaAccept) {
+                key.set(s);
+            }
+        }
+        return key;
+    }
+
+    private int intern(BitSet states) {
+        Integer existing = dfaIndex.get(states);
+        if (existing != null) {
+            return existing;
+        }
+        int id = dfaStates.size();
+        dfaStates.add(states);
+        dfaIndex.put(states, id);
+        int[] row = new int[256];
+        Arrays.fill(row, UNKNOWN);
+        transitions.add(row);
+        if (states.get(nfaAccept)) {
+            accepting.set(id);
+        }
+        return id;
+    }
+
+    /**
+     * Thompson construction, every fragment is a (start, end) pair of states
+     * where the end state has no outgoing edges yet.
+     */
+    private static final class NfaBuilder {
+
+        final List<long[]> bytes = new ArrayList<>();
+        final TokenBuffer next = new TokenBuffer();
+        final List<TokenBuffer> epsilon = new ArrayList<>();
+
+        int newState() {
+            if (bytes.size() >= MAX_NFA_STATES) {
+                throw new IllegalArgumentException("Pattern too large");
+            }
+            bytes.add(null);
+            next.add(-1);
+            epsilon.add(new TokenBuffer(2));
+            return bytes.size() - 1;
+        }
+
+        void link(int from, int to) {
+            epsilon.get(from).add(to);
+        }
+
+        int[] compile(RegexParser.Node node) {
+            return switch (node) {
+                case RegexParser.Bytes b -> {
+                    int s = newState();
+                    int e = newState();
+                    bytes.set(s, b.set());
+                    next.set(s, e);
+                    yield new int[]{s, e};
+                }
+                case RegexParser.Concat c -> {
+                    int s = newState();
+                    int e = s;
+                    for (RegexParser.Node child : c.nodes()) {
+                        int[] f = compile(child);
+                        link(e, f[0]);
+                        e = f[1];
+                    }
+                    yield new int[]{s, e};
+                }
+                case RegexParser.Alt a -> {
+                    int s = newState();
+                    int e = newState();
+                    for (RegexParser.Node child : a.nodes()) {
+                        int[] f = compile(child);
+                        link(s, f[0]);
+                        link(f[1], e);
+                    }
+                    yield new int[]{s, e};
+                }
+                case RegexParser.Repeat r -> {
+                    int s = newState();
+                    int e = s;
+                    for (int i = 0; i < r.min(); i++) {
+                        int[] f = compile(r.node());
+                        link(e, f[0]);
+                        e = f[1];
+                    }
+                    if (r.max() < 0) {
+                        int[] f = compile(r.node());
+                        int end = newState();
+                        link(e, f[0]);
+                        link(e, end);
+                        link(f[1], f[0]);
+                        link(f[1], end);
+                        e = end;
+                    } else {
+                        int end = newState();
+                        for (int i = r.min(); i < r.max(); i++) {
+                            int[] f = compile(r.node());
+                            link(e, f[0]);
+                            link(e, end);
+                            e = f[1];
+                        }
+                        link(e, end);
+                        e = end;
+                    }
+                    yield new int[]{s, e};
+                }
+            };
+        }
+    }
+}
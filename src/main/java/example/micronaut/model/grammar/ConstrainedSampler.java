@@ -0,0 +1,57 @@
+package example.micronaut.model.grammar;
+
+import java.util.BitSet;
+
+import example.micronaut.model.tensor.FloatTensor;
+import example.micronaut.model.tensor.Sampler;
+
+/**
+ * Restricts another {@link Sampler} to the tokens a {@link TokenConstraint}
+ * allows, tracking the constraint state across sampled tokens. One instance
+ * per generation.
+ * <p>
+ * When the forward pass can apply the mask itself (see
+ * {@code TokenUtils.generateTokens}) it samples with the {@link #delegate()}
+ * and reports the token through {@link #accept(int)}; otherwise
+ * {@link #sampleToken(FloatTensor)} masks the full logits.
+ */
+public final class ConstrainedSampler implements Sampler {
+
+    private final Sampler delegate;
+    private final TokenConstraint constraint;
+    private int state;
+
+    public ConstrainedSampler(Sampler delegate, TokenConstraint constraint) {
+        this.delegate = delegate;
+        this.constraint = constraint;
+        this.state = constraint.start();
+    }
+
+    public Sampler delegate() {
+        return delegate;
+    }
+
+    public BitSet allowedTokens() {
+        return constraint.allowedTokens(state);
+    }
+
+    public void accept(int token) {
+        state = constraint.advance(state, token);
+    }
+
+    public boolean isComplete() {
+        return constraint.isAccepting(state);
+    }
+
+    @Override
+    public int sampleToken(FloatTensor logits) {
+        BitSet allowed = allowedTokens();
+        int vocabularySize = constraint.vocabularySize();
+        for (int i = allowed.nextClearBit(0); i < vocabularySize; i = allowed.nextClearBit(i + 1)) {
+            logits.setFloat(i, Float.NEGATIVE_INFINITY);
+        }
+        int token = delegate.sampleToken(logits);
+        accept(token);
+        return token;
+    }
+}
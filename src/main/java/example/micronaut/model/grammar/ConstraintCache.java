@@ -0,0 +1,83 @@
+package example.micronaut.model.grammar;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import example.micronaut.model.Tokenizer;
+
+/**
+ * Compiled {@link TokenConstraint}s of one vocabulary, keyed by the SHA-256
+ * of their source (schema or pattern text), least recently used evicted.
+ * Compiling is cheap, the token masks each constraint accumulates are what
+ * is worth keeping across requests.
+ */
+public final class ConstraintCache {
+
+    public enum Kind {
+        REGEX, JSON_SCHEMA
+    }
+
+    private final Tokenizer tokenizer;
+    private final BitSet endTokens;
+    private final Map<String, TokenConstraint> cache;
+
+    /**
+     * @param endTokens tokens that end generation, only allowed once the
+     * output is complete
+     */
+    public ConstraintCache(Tokenizer tokenizer, BitSet endTokens, int capacity) {
+        this.tokenizer = tokenizer;
+        this.endTokens = endTokens;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenConstraint> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached constraint for {@code source}, compiling the regular
+     * expression given by {@code toRegex} on a miss.
+     *
+     * @throws IllegalArgumentException if the source cannot be compiled
+     */
+    public TokenConstraint get(Kind kind, String source, Supplier<String> toRegex) {
+        String key = hash(kind, source);
+        synchronized (cache) {
+            TokenConstraint constraint = cache.get(key);
+            if (constraint != null) {
+                return constraint;
+            }
+        }
+        TokenConstraint constraint = new TokenConstraint(ByteAutomaton.fromRegex(toRegex.get()),
+                tokenizer.vocabularyTrie(), endTokens);
+        synchronized (cache) {
+            return cache.merge(key, constraint, (existing, compiled) -> existing);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static String hash(Kind kind, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(kind.name().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package example.micronaut.model.grammar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Translates a JSON schema into a regular expression matching the compact
+ * JSON documents it describes, for {@link ByteAutomaton#fromRegex}.
+ * <p>
+ * Supported: {@code type} (a single type or a list), {@code enum},
+ * {@code const}, {@code anyOf}/{@code oneOf}, object {@code properties}
+ * (emitted in declaration order, all of them), array {@code items} with
+ * {@code minItems}/{@code maxItems}, string {@code pattern},
+ * {@code minLength}/{@code maxLength}. An object without
+ * {@code properties} accepts string keys with scalar values, since nested
+ * free-form JSON is not regular. A single optional space is allowed after
+ * {@code :} and {@code ,}.
+ */
+@UtilityClass
+public class JsonSchema {
+
+    private static final String WS = " ?";
+    private static final String STRING_CHAR = "([^\"\\\\\\x00-\\x1F]|\\\\([\"\\\\/bfnrt]|u[0-9a-fA-F]{4}))";
+    private static final String STRING = "\"" + STRING_CHAR + "*\"";
+    private static final String INTEGER = "-?(0|[1-9][0-9]*)";
+    private static final String NUMBER = INTEGER + "(\\.[0-9]+)?([eE][+-]?[0-9]+)?";
+    private static final String BOOLEAN = "(true|false)";
+    private static final String NULL = "null";
+    private static final String SCALAR = "(" + STRING + "|" + NUMBER + "|" + BOOLEAN + "|" + NULL + ")";
+
+    public String toRegex(Map<String, Object> schema) {
+        return value(schema);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String value(Map<String, Object> schema) {
+        if (schema.containsKey("const")) {
+            return literal(schema.get("const"));
+        }
+        if (schema.get("enum") instanceof List<?> values) {
+            StringJoiner alternatives = new StringJoiner("|", "(", ")");
+            for (Object v : values) {
+                alternatives.add(literal(v));
+            }
+            return alternatives.toString();
+        }
+        Object anyOf = schema.containsKey("anyOf") ? schema.get("anyOf") : schema.get("oneOf");
+        if (anyOf instanceof List<?> options) {
+            StringJoiner alternatives = new StringJoiner("|", "(", ")");
+            for (Object option : options) {
+                alternatives.add(value((Map<String, Object>) option));
+            }
+            return alternatives.toString();
+        }
+        Object type = schema.get("type");
+        if (type instanceof List<?> types) {
+            StringJoiner alternatives = new StringJoiner("|", "(", ")");
+            for (Object t : types) {
+                alternatives.add(typed(String.valueOf(t), schema));
+            }
+            return alternatives.toString();
+        }
+        if (type == null) {
+            return schema.containsKey("properties") ? typed("object", schema) : SCALAR;
+        }
+        return typed(String.valueOf(type), schema);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String typed(String type, Map<String, Object> schema) {
+        return switch (type) {
+            case "string" -> string(schema);
+            case "integer" -> INTEGER;
+            case "number" -> NUMBER;
+            case "boolean" -> BOOLEAN;
+            case "null" -> NULL;
+            case "array" -> {
+                String item = schema.get("items") instanceof Map<?, ?> items
+                        ? value((Map<String, Object>) items)
+                        : SCALAR;
+                yield "\\[" + WS + repeated(item, "," + WS, intValue(schema, "minItems", 0),
+                        intValue(schema, "maxItems", -1)) + WS + "\\]";
+            }
+            case "object" -> {
+                if (!(schema.get("properties") instanceof Map<?, ?> properties) || properties.isEmpty()) {
+                    String entry = STRING + WS + ":" + WS + SCALAR;
+                    yield "\\{" + WS + repeated(entry, "," + WS, 0, -1) + WS + "\\}";
+                }
+                List<String> members = new ArrayList<>();
+                for (Map.Entry<?, ?> property : properties.entrySet()) {
+                    members.add(escape(quote(String.valueOf(property.getKey()))) + WS + ":" + WS
+                            + value((Map<String, Object>) property.getValue()));
+                }
+                yield "\\{" + WS + String.join("," + WS, members) + WS + "\\}";
+            }
+            default -> throw new IllegalArgumentException("Unsupported JSON schema type: " + type);
+        };
+    }
+
+    private String string(Map<String, Object> schema) {
+        if (schema.get("pattern") instanceof String pattern) {
+            return "\"(" + pattern + ")\"";
+        }
+        int min = intValue(schema, "minLength", 0);
+        int max = intValue(schema, "maxLength", -1);
+        if (min == 0 && max < 0) {
+            return STRING;
+        }
+        return "\"" + STRING_CHAR + "{" + min + "," + (max < 0 ? "" : max) + "}\"";
+    }
+
+    // item (sep item)* with the number of items in [min, max], max < 0 for unbounded
+    private String repeated(String item, String separator, int min, int max) {
+        if (max == 0) {
+            return "";
+        }
+        String rest = "(" + separator + item + ")";
+        String tail = max < 0
+                ? rest + "{" + Math.max(min - 1, 0) + ",}"
+                : rest + "{" + Math.max(min - 1, 0) + "," + (max - 1) + "}";
+        String items = "(" + item + tail + ")";
+        return min == 0 ? items + "?" : items;
+    }
+
+    private int intValue(Map<String, Object> schema, String key, int defaultValue) {
+        return schema.get(key) instanceof Number n ? n.intValue() : defaultValue;
+    }
+
+    private String literal(Object value) {
+        if (value instanceof String s) {
+            return escape(quote(s));
+        }
+        return escape(String.valueOf(value));
+    }
+
+    private String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length() * 2);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,440 @@
+package example.micronaut.model.grammar;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a regular expression into a byte-level syntax tree.
+ * <p>
+ * Supported: literals, {@code .}, character classes (with ranges and
+ * negation), {@code \d \w \s \D \W \S}, {@code \xHH}, {@code \\uHHHH},
+ * groups (capturing or {@code (?:...)}), alternation and the quantifiers
+ * {@code * + ? {m} {m,} {m,n}}. The whole input must match, so {@code ^}
+ * and {@code $} are ignored. As in {@link java.util.regex.Pattern}, a
+ * literal, class or {@code .} (any character but a line terminator)
+ * matches one code point: its UTF-8 bytes, or the byte sequences encoding
+ * the code point ranges of the class, so only valid UTF-8 is accepted.
+ */
+final class RegexParser {
+
+    sealed interface Node permits Bytes, Concat, Alt, Repeat {
+    }
+
+    /** One byte out of a set of 256, as four 64-bit words. */
+    record Bytes(long[] set) implements Node {
+    }
+
+    record Concat(List<Node> nodes) implements Node {
+    }
+
+    record Alt(List<Node> nodes) implements Node {
+    }
+
+    /** {@code max < 0} means unbounded. */
+    record Repeat(Node node, int min, int max) implements Node {
+    }
+
+    private static final int MAX_REPEAT = 1000;
+
+    // code points of the line terminators that '.' does not match
+    private static final int[] LINE_TERMINATORS = {'\n', '\r', 0x85, 0x2028, 0x2029};
+
+    private final String pattern;
+    private int pos;
+
+    private RegexParser(String pattern) {
+        this.pattern = pattern;
+    }
+
+    static Node parse(String pattern) {
+        RegexParser parser = new RegexParser(pattern);
+        Node node = parser.parseAlt();
+        if (parser.pos < pattern.length()) {
+            throw parser.error("unbalanced ')'");
+        }
+        return node;
+    }
+
+    private Node parseAlt() {
+        List<Node> alternatives = new ArrayList<>();
+        alternatives.add(parseConcat());
+        while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+            pos++;
+            alternatives.add(parseConcat());
+        }
+        return alternatives.size() == 1 ? alternatives.getFirst() : new Alt(alternatives);
+    }
+
+    private Node parseConcat() {
+        List<Node> nodes = new ArrayList<>();
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            if (c == '|' || c == ')') {
+                break;
+            }
+            if (c == '^' || c == '$') {
+                pos++;
+                continue;
+            }
+            nodes.add(parseRepeat(parseAtom()));
+        }
+        return nodes.size() == 1 ? nodes.getFirst() : new Concat(nodes);
+    }
+
+    private Node parseRepeat(Node atom) {
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            int min;
+            int max;
+            if (c == '*') {
+                min = 0;
+                max = -1;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                pos++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (c == '{' && isCountedRepeat()) {
+                pos++;
+                min = parseNumber();
+                max = min;
+                if (pattern.charAt(pos) == ',') {
+                    pos++;
+                    max = pattern.charAt(pos) == '}' ? -1 : parseNumber();
+                }
+                pos++; // '}'
+                if (max >= 0 && max < min) {
+                    throw error("invalid repetition range");
+                }
+            } else {
+                break;
+            }
+            if (pos < pattern.length() && pattern.charAt(pos) == '?') {
+                pos++; // lazy quantifiers match the same language
+            }
+            atom = new Repeat(atom, min, max);
+        }
+        return atom;
+    }
+
+    private boolean isCountedRepeat() {
+        int i = pos + 1;
+        int digits = 0;
+        while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (digits == 0 || i >= pattern.length()) {
+            return false;
+        }
+        if (pattern.charAt(i) == ',') {
+            i++;
+            while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                i++;
+            }
+        }
+        return i < pattern.length() && pattern.charAt(i) == '}';
+    }
+
+    private int parseNumber() {
+        int start = pos;
+        while (Character.isDigit(pattern.charAt(pos))) {
+            pos++;
+        }
+        int value = Integer.parseInt(pattern, start, pos, 10);
+        if (value > MAX_REPEAT) {
+            throw error("repetition count too large");
+        }
+        return value;
+    }
+
+    private Node parseAtom() {
+        int c = pattern.codePointAt(pos);
+        switch (c) {
+            case '(' -> {
+                pos++;
+                if (pattern.startsWith("?:", pos)) {
+                    pos += 2;
+                }
+                Node node = parseAlt();
+                if (pos >= pattern.length() || pattern.charAt(pos) != ')') {
+                    throw error("missing ')'");
+                }
+                pos++;
+                return node;
+            }
+            case '[' -> {
+                pos++;
+                return parseClass();
+            }
+            case '.' -> {
+                pos++;
+                List<int[]> ranges = new ArrayList<>();
+                for (int terminator : LINE_TERMINATORS) {
+                    ranges.add(new int[]{terminator, terminator});
+                }
+                return utf8(complement(normalize(ranges)));
+            }
+            case '\\' -> {
+                pos++;
+                List<int[]> ranges = parseClassEscape();
+                if (ranges != null) {
+                    return utf8(ranges);
+                }
+                return literal(parseEscapedChar());
+            }
+            case '*', '+', '?' -> throw error("nothing to repeat");
+            default -> {
+                pos += Character.charCount(c);
+                return literal(c);
+            }
+        }
+    }
+
+    private Node parseClass() {
+        boolean negated = pos < pattern.length() && pattern.charAt(pos) == '^';
+        if (negated) {
+            pos++;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        boolean first = true;
+        while (true) {
+            if (pos >= pattern.length()) {
+                throw error("missing ']'");
+            }
+            int c = pattern.codePointAt(pos);
+            if (c == ']' && !first) {
+                pos++;
+                break;
+            }
+            first = false;
+            int lo;
+            if (c == '\\') {
+                pos++;
+                List<int[]> escaped = parseClassEscape();
+                if (escaped != null) {
+                    ranges.addAll(escaped);
+                    continue;
+                }
+                lo = parseEscapedChar();
+            } else {
+                pos += Character.charCount(c);
+                lo = c;
+            }
+            int hi = lo;
+            if (pos + 1 < pattern.length() && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                pos++;
+                int d = pattern.codePointAt(pos);
+                if (d == '\\') {
+                    pos++;
+                    hi = parseEscapedChar();
+                } else {
+                    pos += Character.charCount(d);
+                    hi = d;
+                }
+                if (hi < lo) {
+                    throw error("invalid class range");
+                }
+            }
+            ranges.add(new int[]{lo, hi});
+        }
+        ranges = normalize(ranges);
+        return utf8(negated ? complement(ranges) : ranges);
+    }
+
+    /**
+     * Parses the shorthand classes after a backslash into code point ranges,
+     * returns null (without consuming) for any other escape.
+     */
+    private List<int[]> parseClassEscape() {
+        if (pos >= pattern.length()) {
+            throw error("trailing backslash");
+        }
+        char c = pattern.charAt(pos);
+        List<int[]> ranges = new ArrayList<>();
+        switch (Character.toLowerCase(c)) {
+            case 'd' -> ranges.add(new int[]{'0', '9'});
+            case 'w' -> {
+                ranges.add(new int[]{'a', 'z'});
+                ranges.add(new int[]{'A', 'Z'});
+                ranges.add(new int[]{'0', '9'});
+                ranges.add(new int[]{'_', '_'});
+            }
+            case 's' -> {
+                ranges.add(new int[]{'\t', '\r'}); // \t \n \v \f \r
+                ranges.add(new int[]{' ', ' '});
+            }
+            default -> {
+                return null;
+            }
+        }
+        pos++;
+        ranges = normalize(ranges);
+        return Character.isUpperCase(c) ? complement(ranges) : ranges;
+    }
+
+    private int parseEscapedChar() {
+        char c = pattern.charAt(pos++);
+        return switch (c) {
+            case 'n' -> '\n';
+            case 't' -> '\t';
+            case 'r' -> '\r';
+            case 'f' -> '\f';
+            case 'v' -> 0x0B;
+            case '0' -> 0;
+            case 'x' -> parseHex(2);
+            case 'u' -> parseHex(4);
+            default -> {
+                if (Character.isLetterOrDigit(c)) {
+                    throw error("unsupported escape \\" + c);
+                }
+                yield c;
+            }
+        };
+    }
+
+    private int parseHex(int digits) {
+        if (pos + digits > pattern.length()) {
+            throw error("truncated hex escape");
+        }
+        int value = Integer.parseInt(pattern, pos, pos + digits, 16);
+        pos += digits;
+        return value;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at index " + pos + " in pattern: " + pattern);
+    }
+
+    private static Node literal(int codePoint) {
+        byte[] utf8 = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+        if (utf8.length == 1) {
+            return new Bytes(single(utf8[0] & 0xFF));
+        }
+        List<Node> bytes = new ArrayList<>(utf8.length);
+        for (byte b : utf8) {
+            bytes.add(new Bytes(single(b & 0xFF)));
+        }
+        return new Concat(bytes);
+    }
+
+    // sorts code point ranges and merges those that overlap or touch
+    private static List<int[]> normalize(List<int[]> ranges) {
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        List<int[]> merged = new ArrayList<>(ranges.size());
+        for (int[] range : ranges) {
+            int[] last = merged.isEmpty() ? null : merged.getLast();
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new int[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    // code points not in normalized ranges
+    private static List<int[]> complement(List<int[]> ranges) {
+        List<int[]> complement = new ArrayList<>(ranges.size() + 1);
+        int next = 0;
+        for (int[] range : ranges) {
+            if (range[0] > next) {
+                complement.add(new int[]{next, range[0] - 1});
+            }
+            next = range[1] + 1;
+        }
+        if (next <= Character.MAX_CODE_POINT) {
+            complement.add(new int[]{next, Character.MAX_CODE_POINT});
+        }
+        return complement;
+    }
+
+    /**
+     * Matches one code point out of normalized ranges: ASCII ones as a single
+     * byte, others as the alternation of their UTF-8 byte sequences, each a
+     * lead byte range followed by continuation byte ranges. Surrogates have
+     * no encoding and are left out.
+     */
+    private static Node utf8(List<int[]> ranges) {
+        long[] ascii = new long[4];
+        List<Node> sequences = new ArrayList<>();
+        for (int[] range : ranges) {
+            int lo = range[0];
+            int hi = Math.min(range[1], Character.MAX_CODE_POINT);
+            for (int end : new int[]{0x7F, 0x7FF, Character.MIN_SURROGATE - 1, 0xFFFF, Character.MAX_CODE_POINT}) {
+                if (lo >= Character.MIN_SURROGATE && lo <= Character.MAX_SURROGATE) {
+                    lo = Character.MAX_SURROGATE + 1;
+                }
+                if (lo <= Math.min(hi, end)) {
+                    if (end == 0x7F) {
+                        range(ascii, lo, Math.min(hi, end));
+                    } else {
+                        utf8(lo, Math.min(hi, end), sequences);
+                    }
+                    lo = end + 1;
+                }
+            }
+        }
+        if (sequences.isEmpty()) {
+            return new Bytes(ascii);
+        }
+        if (ascii[0] != 0 || ascii[1] != 0) {
+            sequences.addFirst(new Bytes(ascii));
+        }
+        return sequences.size() == 1 ? sequences.getFirst() : new Alt(sequences);
+    }
+
+    // code points [lo, hi] encoded in as many bytes: split until every byte ranges independently
+    private static void utf8(int lo, int hi, List<Node> sequences) {
+        int length = Character.toString(lo).getBytes(StandardCharsets.UTF_8).length;
+        for (int i = 1; i < length; i++) {
+            int mask = (1 << (6 * i)) - 1; // bits of the last i bytes
+            if ((lo & ~mask) != (hi & ~mask)) {
+                if ((lo & mask) != 0) {
+                    utf8(lo, lo | mask, sequences);
+                    utf8((lo | mask) + 1, hi, sequences);
+                    return;
+                }
+                if ((hi & mask) != mask) {
+                    utf8(lo, (hi & ~mask) - 1, sequences);
+                    utf8(hi & ~mask, hi, sequences);
+                    return;
+                }
+            }
+        }
+        byte[] from = Character.toString(lo).getBytes(StandardCharsets.UTF_8);
+        byte[] to = Character.toString(hi).getBytes(StandardCharsets.UTF_8);
+        List<Node> bytes = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            long[] set = new long[4];
+            range(set, from[i] & 0xFF, to[i] & 0xFF);
+            bytes.add(new Bytes(set));
+        }
+        sequences.add(new Concat(bytes));
+    }
+
+    static long[] single(int b) {
+        long[] set = new long[4];
+        set(set, b);
+        return set;
+    }
+
+    static boolean contains(long[] set, int b) {
+        return (set[b >>> 6] & (1L << b)) != 0;
+    }
+
+    private static void set(long[] set, int b) {
+        set[b >>> 6] |= 1L << b;
+    }
+
+    private static void range(long[] set, int lo, int hi) {
+        for (int b = lo; b <= hi; b++) {
+            set(set, b);
+        }
+    }
+}
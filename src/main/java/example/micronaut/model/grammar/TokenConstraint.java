@@ -0,0 +1,75 @@
+package example.micronaut.model.grammar;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link ByteAutomaton} lifted to tokens: for every automaton state, the
+ * set of tokens that keep the output a valid prefix. Masks are computed once
+ * per state, with a single scan of the {@link VocabularyTrie}, and cached, so
+ * per decode step the cost is a lookup plus walking the sampled token's bytes.
+ * <p>
+ * End tokens (e.g. end-of-turn) are only allowed once the output is a
+ * complete match. Instances are thread-safe and shared between generations
+ * through the {@link ConstraintCache}.
+ */
+public final class TokenConstraint {
+
+    private final ByteAutomaton automaton;
+    private final VocabularyTrie trie;
+    private final BitSet endTokens;
+    private final ConcurrentHashMap<Integer, BitSet> masks = new ConcurrentHashMap<>();
+
+    public TokenConstraint(ByteAutomaton automaton, VocabularyTrie trie, BitSet endTokens) {
+        this.automaton = automaton;
+        this.trie = trie;
+        this.endTokens = endTokens;
+    }
+
+    public int start() {
+        return automaton.start();
+    }
+
+    public int vocabularySize() {
+        return trie.vocabularySize();
+    }
+
+    public boolean isAccepting(int state) {
+        return automaton.isAccepting(state);
+    }
+
+    /**
+     * Tokens allowed after {@code state}, the returned set must not be
+     * modified.
+     */
+    public BitSet allowedTokens(int state) {
+        return masks.computeIfAbsent(state, this::computeMask);
+    }
+
+    /**
+     * State after emitting {@code token}; end tokens leave the state
+     * unchanged.
+     */
+    public int advance(int state, int token) {
+        if (state == ByteAutomaton.DEAD || endTokens.get(token)) {
+            return state;
+        }
+        return automaton.walk(state, trie.tokenBytes(token));
+    }
+
+    public int cachedMasks() {
+        return masks.size();
+    }
+
+    private BitSet computeMask(int state) {
+        BitSet mask = new BitSet(trie.vocabularySize());
+        if (state != ByteAutomaton.DEAD) {
+            trie.allowedTokens(automaton, state, mask);
+        }
+        // complete match, or no way forward (should not happen): let generation end
+        if (mask.isEmpty() || automaton.isAccepting(state)) {
+            mask.or(endTokens);
+        }
+        return mask;
+    }
+}
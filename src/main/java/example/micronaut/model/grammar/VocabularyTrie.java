@@ -0,0 +1,132 @@
+package example.micronaut.model.grammar;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import example.micronaut.model.TokenBuffer;
+
+/**
+ * Trie over the UTF-8 bytes of every (non-special) token of a vocabulary.
+ * <p>
+ * Nodes are stored in pre-order with a skip pointer past each subtree, so
+ * walking an automaton over the whole vocabulary is a single forward scan
+ * that jumps over every subtree the automaton rejects; tokens sharing a
+ * prefix share the automaton steps for it.
+ */
+public final class VocabularyTrie {
+
+    private final byte[][] tokenBytes;
+    private final int vocabularySize;
+    // per node, root is node 0
+    private final int[] label;
+    private final int[] depth;
+    private final int[] subtreeEnd;
+    private final int[] terminalStart;
+    private final int[] terminalCount;
+    // token ids sorted by their bytes, terminalStart indexes into this
+    private final int[] sortedTokens;
+    private final int maxDepth;
+
+    /**
+     * @param tokenBytes UTF-8 bytes of every token id
+     * @param excluded tokens left out of the trie e.g. special tokens
+     */
+    public VocabularyTrie(byte[][] tokenBytes, BitSet excluded) {
+        this.tokenBytes = tokenBytes;
+        this.vocabularySize = tokenBytes.length;
+        this.sortedTokens = IntStream.range(0, tokenBytes.length)
+                .filter(t -> !excluded.get(t) && tokenBytes[t].length > 0)
+                .boxed()
+                .sorted((a, b) -> Arrays.compareUnsigned(tokenBytes[a], tokenBytes[b]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        TokenBuffer labels = new TokenBuffer(sortedTokens.length * 2);
+        TokenBuffer depths = new TokenBuffer(sortedTokens.length * 2);
+        TokenBuffer ends = new TokenBuffer(sortedTokens.length * 2);
+        TokenBuffer starts = new TokenBuffer(sortedTokens.length * 2);
+        TokenBuffer counts = new TokenBuffer(sortedTokens.length * 2);
+        labels.add(-1);
+        depths.add(0);
+        ends.add(0);
+        starts.add(0);
+        counts.add(0);
+
+        int longest = Arrays.stream(sortedTokens).map(t -> tokenBytes[t].length).max().orElse(0);
+        int[] path = new int[longest + 1]; // path[d] = node at depth d of the previous token
+        int pathLength = 0;
+        byte[] previous = new byte[0];
+        for (int i = 0; i < sortedTokens.length; i++) {
+            byte[] bytes = tokenBytes[sortedTokens[i]];
+            int mismatch = Arrays.mismatch(previous, bytes);
+            int common = mismatch < 0 ? bytes.length : mismatch; // length of the shared prefix
+            // close the subtrees the new token leaves
+            for (int d = pathLength; d > common; d--) {
+                ends.set(path[d], labels.size());
+            }
+            for (int d = common + 1; d <= bytes.length; d++) {
+                int node = labels.size();
+                labels.add(bytes[d - 1] & 0xFF);
+                depths.add(d);
+                ends.add(0);
+                starts.add(0);
+                counts.add(0);
+                path[d] = node;
+            }
+            pathLength = bytes.length;
+            int terminal = path[bytes.length];
+            if (counts.get(terminal) == 0) {
+                starts.set(terminal, i);
+            }
+            counts.set(terminal, counts.get(terminal) + 1);
+            previous = bytes;
+        }
+        for (int d = pathLength; d > 0; d--) {
+            ends.set(path[d], labels.size());
+        }
+        ends.set(0, labels.size());
+
+        this.label = labels.toArray();
+        this.depth = depths.toArray();
+        this.subtreeEnd = ends.toArray();
+        this.terminalStart = starts.toArray();
+        this.terminalCount = counts.toArray();
+        this.maxDepth = longest;
+    }
+
+    public int vocabularySize() {
+        return vocabularySize;
+    }
+
+    public int nodeCount() {
+        return label.length;
+    }
+
+    public byte[] tokenBytes(int token) {
+        return tokenBytes[token];
+    }
+
+    /**
+     * Sets in {@code mask} every token whose bytes, consumed from
+     * {@code state}, do not kill the automaton.
+     */
+    public void allowedTokens(ByteAutomaton automaton, int state, BitSet mask) {
+        int[] stateAtDepth = new int[maxDepth + 1];
+        stateAtDepth[0] = state;
+        int node = 1;
+        while (node < label.length) {
+            int d = depth[node];
+            int next = automaton.step(stateAtDepth[d - 1], label[node]);
+            if (next == ByteAutomaton.DEAD) {
+                node = subtreeEnd[node];
+                continue;
+            }
+            stateAtDepth[d] = next;
+            for (int i = terminalStart[node], end = i + terminalCount[node]; i < end; i++) {
+                mask.set(sortedTokens[i]);
+            }
+            node++;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package example.micronaut.model.speculative;
+
+import example.micronaut.model.TokenBuffer;
+import example.micronaut.model.tensor.Candidates;
+
+/**
+ * Proposes the next few tokens of a sequence cheaply, to be verified by the
+ * target model in one batched forward pass (speculative decoding). A drafter
+ * keeps per-generation state: one instance per generation.
+ */
+public interface Drafter {
+
+    /**
+     * Proposes up to {@code max} tokens following {@code history}, the whole
+     * sequence so far (prompt and accepted tokens).
+     *
+     * @param tokens receives the proposed tokens
+     * @return number of proposed tokens, possibly 0
+     */
+    int propose(TokenBuffer history, int max, int[] tokens);
+
+    /**
+     * Distribution the {@code index}-th token of the last proposal was
+     * sampled from, as left by
+     * {@link example.micronaut.model.tensor.SamplerChain#sampleToken(Candidates)};
+     * null if it was proposed deterministically.
+     */
+    Candidates distribution(int index);
+
+    /**
+     * The first {@code count} tokens of the last proposal were accepted, the
+     * rest rejected.
+     */
+    void accepted(int count);
+
+    /**
+     * Gives back what the drafter holds once its generation is over; it is
+     * not used afterwards.
+     */
+    default void release() {
+    }
+}
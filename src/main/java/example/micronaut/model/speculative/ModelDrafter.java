@@ -0,0 +1,118 @@
+package example.micronaut.model.speculative;
+
+import example.micronaut.model.Llama;
+import example.micronaut.model.State;
+import example.micronaut.model.StatePool;
+import example.micronaut.model.TokenBuffer;
+import example.micronaut.model.tensor.Candidates;
+import example.micronaut.model.tensor.Sampler;
+import example.micronaut.model.tensor.SamplerChain;
+import example.micronaut.utils.TransformerUtils;
+
+/**
+ * Drafts with a smaller model sharing the target's vocabulary. The draft
+ * model keeps its own {@link State}, taken from a pool of draft states on
+ * the first proposal and given back on {@link #release()}: history is
+ * ingested in batches, then draft tokens are decoded one by one. Rejected draft tokens are rolled back
+ * by moving the ingested position back, their keys and values are simply
+ * overwritten later (attention never reads past the current position).
+ */
+public final class ModelDrafter implements Drafter {
+
+    private final Llama model;
+    private final StatePool states;
+    private final Sampler sampler;
+    private final SpeculationMetrics metrics;
+    private final Candidates greedy = new Candidates(1);
+    private State state; // null until the first proposal
+    private Candidates[] distributions = new Candidates[0];
+    // positions of the history in the draft model's cache
+    private int ingested;
+    private int proposedAt;
+    private int proposed;
+
+    /**
+     * @param sampler {@link Sampler#ARGMAX} or a {@link SamplerChain} with
+     * the target's sampling parameters
+     */
+    public ModelDrafter(Llama model, StatePool states, Sampler sampler, SpeculationMetrics metrics) {
+        if (sampler != Sampler.ARGMAX && !(sampler instanceof SamplerChain)) {
+            throw new IllegalArgumentException("Unsupported draft sampler: " + sampler.getClass().getSimpleName());
+        }
+        this.model = model;
+        this.states = states;
+        this.sampler = sampler;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int propose(TokenBuffer history, int max, int[] tokens) {
+        int size = history.size();
+        max = Math.min(max, model.configuration().contextLength - size);
+        proposed = Math.max(0, max);
+        if (max <= 0) {
+            metrics.skipped();
+            return 0;
+        }
+        if (sampler instanceof SamplerChain chain && distributions.length < max) {
+            distributions = new Candidates[max];
+            for (int i = 0; i < max; i++) {
+                distributions[i] = new Candidates(chain.topK());
+            }
+        }
+        if (state == null) {
+            state = states.acquire();
+        }
+        int row = 0;
+        while (ingested < size) {
+            int n = Math.min(state.batchsize, size - ingested);
+            TransformerUtils.forwardLayers(model, state, history.toArray(ingested, ingested + n), ingested);
+            ingested += n;
+            row = n - 1;
+        }
+        for (int i = 0; i < max; i++) {
+            tokens[i] = sample(row, i);
+            if (i + 1 < max) {
+                TransformerUtils.forwardLayers(model, state, new int[]{tokens[i]}, size + i);
+                row = 0;
+            }
+        }
+        // the last draft token is not ingested yet
+        proposedAt = size;
+        ingested = size + max - 1;
+        return max;
+    }
+
+    private int sample(int row, int index) {
+        if (sampler instanceof SamplerChain chain) {
+            TransformerUtils.candidates(model, state, row, chain.candidates(), null);
+            int token = chain.sampleToken(chain.candidates());
+            distributions[index].copyFrom(chain.candidates());
+            return token;
+        }
+        TransformerUtils.candidates(model, state, row, greedy, null);
+        return greedy.token(0);
+    }
+
+    @Override
+    public Candidates distribution(int index) {
+        return sampler instanceof SamplerChain ? distributions[index] : null;
+    }
+
+    @Override
+    public void accepted(int count) {
+        if (proposed > 0) {
+            metrics.record(proposed, count);
+            ingested = Math.min(ingested, proposedAt + count);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (state != null) {
+            states.release(state);
+            state = null;
+            ingested = 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package example.micronaut.model.speculative;
+
+import example.micronaut.model.TokenBuffer;
+import example.micronaut.model.tensor.Candidates;
+
+/**
+ * Drafts without a second model: finds the most recent earlier occurrence
+ * of the last few tokens (an n-gram, longest first) in the prompt and the
+ * generated history, and proposes the tokens that followed it. Works well
+ * when the output copies spans of the input, e.g. summaries and code edits.
+ * <p>
+ * Proposals are deterministic. When their acceptance drops below
+ * {@link #MIN_ACCEPTANCE} drafting pauses, so generation falls back to
+ * regular decoding and does not pay for verifying rejected tokens; every
+ * pause in a row lasts twice as long.
+ */
+public final class PromptLookupDrafter implements Drafter {
+
+    static final float MIN_ACCEPTANCE = 0.3f;
+    private static final int PAUSE_STEPS = 8;
+    private static final int MAX_PAUSE_STEPS = 256;
+
+    private final int maxNgram;
+    private final int minNgram;
+    private final SpeculationMetrics metrics;
+    // moving average of the accepted fraction of recent proposals
+    private float acceptance = 1f;
+    private int pauseSteps = PAUSE_STEPS;
+    private int paused;
+    private int proposed;
+
+    public PromptLookupDrafter(int maxNgram, int minNgram, SpeculationMetrics metrics) {
+        if (minNgram < 1 || maxNgram < minNgram) {
+            throw new IllegalArgumentException("Invalid n-gram range [" + minNgram + ", " + maxNgram + "]");
+        }
+        this.maxNgram = maxNgram;
+        this.minNgram = minNgram;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int propose(TokenBuffer history, int max, int[] tokens) {
+        proposed = 0;
+        if (paused > 0) {
+            paused--;
+        } else if (max > 0) {
+            proposed = lookup(history, max, tokens);
+        }
+        if (proposed == 0) {
+            metrics.skipped();
+        }
+        return proposed;
+    }
+
+    private int lookup(TokenBuffer history, int max, int[] tokens) {
+        int size = history.size();
+        for (int n = Math.min(maxNgram, size - 1); n >= minNgram; n--) {
+            int suffix = size - n;
+            // the match must be followed by at least one token
+            for (int start = suffix - 1; start >= 0; start--) {
+                if (matches(history, start, suffix, n)) {
+                    int from = start + n;
+                    int count = Math.min(max, size - from);
+                    for (int i = 0; i < count; i++) {
+                        tokens[i] = history.get(from + i);
+                    }
+                    return count;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(TokenBuffer history, int a, int b, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            if (history.get(a + i) != history.get(b + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Candidates distribution(int index) {
+        return null;
+    }
+
+    @Override
+    public void accepted(int count) {
+        if (proposed == 0) {
+            return;
+        }
+        metrics.record(proposed, count);
+        acceptance = 0.8f * acceptance + 0.2f * count / proposed;
+        if (count == proposed) {
+            pauseSteps = PAUSE_STEPS;
+        }
+        if (acceptance < MIN_ACCEPTANCE) {
+            paused = pauseSteps;
+            pauseSteps = Math.min(MAX_PAUSE_STEPS, 2 * pauseSteps);
+            acceptance = 1f;
+        }
+    }
+}
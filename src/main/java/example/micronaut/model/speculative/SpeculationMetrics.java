@@ -0,0 +1,49 @@
+package example.micronaut.model.speculative;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Acceptance counters of one kind of drafter, shared by all generations
+ * using it.
+ */
+public final class SpeculationMetrics {
+
+    private final LongAdder proposals = new LongAdder();
+    private final LongAdder drafted = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * A proposal of {@code drafted} tokens, {@code accepted} of which were
+     * kept.
+     */
+    public void record(int drafted, int accepted) {
+        proposals.increment();
+        this.drafted.add(drafted);
+        this.accepted.add(accepted);
+    }
+
+    /**
+     * A step decoded without a draft: nothing to propose or paused.
+     */
+    public void skipped() {
+        skipped.increment();
+    }
+
+    public Stats stats() {
+        return new Stats(proposals.sum(), drafted.sum(), accepted.sum(), skipped.sum());
+    }
+
+    public record Stats(long proposals, long drafted, long accepted, long skipped) {
+
+        public double acceptanceRate() {
+            return drafted == 0 ? 0.0 : (double) accepted / drafted;
+        }
+
+        // tokens generated per target forward pass
+        public double tokensPerStep() {
+            long steps = proposals + skipped;
+            return steps == 0 ? 0.0 : (double) (accepted + steps) / steps;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import example.micronaut.gguf.GGMLType;
 import example.micronaut.utils.TensorUtils;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
 public class ArrayFloatTensor extends FloatTensor {
@@ -53,4 +54,38 @@ public class ArrayFloatTensor extends FloatTensor {
         }
         return FloatVector.fromArray(species, values, index);
     }
+
+    @Override
+    public int argmax(int thisOffset, int size) {
+        if (!USE_VECTOR_API) {
+            return super.argmax(thisOffset, size);
+        }
+        assert size > 0;
+        // first pass: the maximum, lane-wise
+        int lanes = F_SPECIES.length();
+        int upperBound = thisOffset + F_SPECIES.loopBound(size);
+        int endIndex = thisOffset + size;
+        FloatVector maxVector = FloatVector.broadcast(F_SPECIES, Float.NEGATIVE_INFINITY);
+        int i = thisOffset;
+        for (; i < upperBound; i += lanes) {
+            maxVector = maxVector.max(FloatVector.fromArray(F_SPECIES, values, i));
+        }
+        float maxValue = maxVector.reduceLanes(VectorOperators.MAX);
+        for (; i < endIndex; i++) {
+            maxValue = Math.max(maxValue, values[i]);
+        }
+        // second pass: its first occurrence
+        for (i = thisOffset; i < upperBound; i += lanes) {
+            int lane = FloatVector.fromArray(F_SPECIES, values, i).compare(VectorOperators.EQ, maxValue).firstTrue();
+            if (lane < lanes) {
+                return i + lane;
+            }
+        }
+        for (; i < endIndex; i++) {
+            if (values[i] == maxValue) {
+                return i;
+            }
+        }
+        return super.argmax(thisOffset, size); // NaNs
+    }
 }
@@ -0,0 +1,66 @@
+package example.micronaut.model.tensor;
+
+/**
+ * Small set of candidate tokens with their logits, sorted by descending
+ * logit, and scratch space for their probabilities.
+ */
+public final class Candidates {
+
+    final int[] tokens;
+    final float[] logits;
+    final float[] probs;
+    int size;
+    // log-sum-exp of the full logits vector, NaN if it was not computed
+    float logSumExp = Float.NaN;
+
+    public Candidates(int capacity) {
+        this.tokens = new int[capacity];
+        this.logits = new float[capacity];
+        this.probs = new float[capacity];
+    }
+
+    public int capacity() {
+        return tokens.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int token(int index) {
+        return tokens[index];
+    }
+
+    public float logit(int index) {
+        return logits[index];
+    }
+
+    /**
+     * Probability of the candidate at {@code index}, as left by the last
+     * {@link SamplerChain#truncate(Candidates)}.
+     */
+    public float prob(int index) {
+        return probs[index];
+    }
+
+    public float logSumExp() {
+        return logSumExp;
+    }
+
+    /**
+     * Copies the tokens, logits and probabilities of {@code other}, which
+     * must fit.
+     */
+    public void copyFrom(Candidates other) {
+        System.arraycopy(other.tokens, 0, tokens, 0, other.size);
+        System.arraycopy(other.logits, 0, logits, 0, other.size);
+        System.arraycopy(other.probs, 0, probs, 0, other.size);
+        size = other.size;
+        logSumExp = other.logSumExp;
+    }
+
+    public void clear() {
+        size = 0;
+        logSumExp = Float.NaN;
+    }
+}
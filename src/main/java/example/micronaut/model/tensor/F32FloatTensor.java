@@ -0,0 +1,55 @@
+package example.micronaut.model.tensor;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import example.micronaut.gguf.GGMLType;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Writable float32 tensor in a memory segment, e.g. a block of keys or
+ * values paged out to a mapped file (see {@code KvTier}). Native byte order.
+ */
+public class F32FloatTensor extends FloatTensor {
+
+    final int size;
+    final MemorySegment memorySegment;
+
+    public F32FloatTensor(int size, MemorySegment memorySegment) {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public float getFloat(int index) {
+        assert 0 <= index && index < size;
+        // The MemorySegment.get* methods should be used instead but it's slower
+        return UNSAFE.getFloat(memorySegment.address() + (long) index * Float.BYTES);
+    }
+
+    @Override
+    public void setFloat(int index, float value) {
+        assert 0 <= index && index < size;
+        UNSAFE.putFloat(memorySegment.address() + (long) index * Float.BYTES, value);
+    }
+
+    @Override
+    public FloatVector getFloatVector(VectorSpecies<Float> species, int index) {
+        if (!USE_VECTOR_API) {
+            throw new UnsupportedOperationException();
+        }
+        return FloatVector.fromMemorySegment(species, memorySegment, (long) index * Float.BYTES,
+                ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public GGMLType type() {
+        return GGMLType.F32;
+    }
+}
@@ -4,6 +4,8 @@ import sun.misc.Unsafe;
 
 import java.lang.foreign.MemorySegment;
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import example.micronaut.gguf.GGMLType;
 import example.micronaut.utils.Parallel;
@@ -110,6 +112,117 @@ public abstract class FloatTensor {
         });
     }
 
+    /**
+     * Computes {@code this (dim0, dim1) x that (dim1,)} row block by row
+     * block in parallel, but instead of writing the {@code dim0} outputs it
+     * keeps the {@code out.capacity()} largest ones and the log-sum-exp of
+     * all of them. Each block keeps a local top-k and a running (online)
+     * log-sum-exp, the blocks are merged at the end.
+     */
+    public void matmulTopK(FloatTensor that, int dim0, int dim1, Candidates out) {
+        matmulTopK(that, dim0, dim1, out, null);
+    }
+
+    /**
+     * Same as {@link #matmulTopK(FloatTensor, int, int, Candidates)}, but
+     * only the rows set in {@code allowed} are computed (all if null); the
+     * log-sum-exp is over those rows only.
+     */
+    public void matmulTopK(FloatTensor that, int dim0, int dim1, Candidates out, BitSet allowed) {
+        int k = Math.min(out.capacity(), dim0);
+        int numBlocks = Math.max(1, Math.min(dim0 / Math.max(k, 256), 4 * Runtime.getRuntime().availableProcessors()));
+        int rowsPerBlock = (dim0 + numBlocks - 1) / numBlocks;
+        TopK[] blockTopK = new TopK[numBlocks];
+        float[] blockMax = new float[numBlocks];
+        float[] blockSum = new float[numBlocks];
+        Parallel.parallelFor(0, numBlocks, b -> {
+            TopK topK = new TopK(k);
+            float max = Float.NEGATIVE_INFINITY;
+            float sum = 0f;
+            int end = Math.min(dim0, (b + 1) * rowsPerBlock);
+            int i = b * rowsPerBlock;
+            if (allowed != null) {
+                i = allowed.nextSetBit(i);
+            }
+            for (; i >= 0 && i < end; i = allowed != null ? allowed.nextSetBit(i + 1) : i + 1) {
+                float value = dot(i * dim1, that, 0, dim1);
+                if (value > max) {
+                    sum = sum * (float) Math.exp(max - value) + 1f;
+                    max = value;
+                } else {
+                    sum += (float) Math.exp(value - max);
+                }
+                if (value > topK.threshold()) {
+                    topK.offer(i, value);
+                }
+            }
+            blockTopK[b] = topK;
+            blockMax[b] = max;
+            blockSum[b] = sum;
+        });
+        float max = Float.NEGATIVE_INFINITY;
+        for (int b = 0; b < numBlocks; b++) {
+            max = Math.max(max, blockMax[b]);
+        }
+        float sum = 0f;
+        TopK merged = new TopK(k);
+        for (int b = 0; b < numBlocks; b++) {
+            sum += blockSum[b] * (float) Math.exp(blockMax[b] - max);
+            merged.merge(blockTopK[b]);
+        }
+        merged.drainTo(out);
+        out.logSumExp = max + (float) Math.log(sum);
+    }
+
+    /**
+     * Log-softmax of {@code this (dim0, dim1) x that[t]} at
+     * {@code targets[t]}, for the first {@code context} rows of
+     * {@code that}, into {@code out[t]}. Like
+     * {@link #matmulTopK(FloatTensor, int, int, Candidates, BitSet)} the
+     * outputs are folded into a running log-sum-exp per block of
+     * {@code this} rows instead of being written; every row of {@code this}
+     * is multiplied with all {@code that} rows while it is in cache, so
+     * {@code this} is streamed once for the whole batch.
+     */
+    public void matmulLogProbs(int context, FloatTensor[] that, int[] targets, float[] out, int dim0, int dim1) {
+        int numBlocks = Math.max(1, Math.min(dim0 / 256, 4 * Runtime.getRuntime().availableProcessors()));
+        int rowsPerBlock = (dim0 + numBlocks - 1) / numBlocks;
+        float[][] blockMax = new float[numBlocks][context];
+        float[][] blockSum = new float[numBlocks][context];
+        float[] targetLogits = new float[context]; // each written by the block holding the target
+        Parallel.parallelFor(0, numBlocks, b -> {
+            float[] max = blockMax[b];
+            float[] sum = blockSum[b];
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            int end = Math.min(dim0, (b + 1) * rowsPerBlock);
+            for (int i = b * rowsPerBlock; i < end; i++) {
+                for (int t = 0; t < context; t++) {
+                    float value = dot(i * dim1, that[t], 0, dim1);
+                    if (value > max[t]) {
+                        sum[t] = sum[t] * (float) Math.exp(max[t] - value) + 1f;
+                        max[t] = value;
+                    } else {
+                        sum[t] += (float) Math.exp(value - max[t]);
+                    }
+                    if (targets[t] == i) {
+                        targetLogits[t] = value;
+                    }
+                }
+            }
+        });
+        for (int t = 0; t < context; t++) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int b = 0; b < numBlocks; b++) {
+                max = Math.max(max, blockMax[b][t]);
+            }
+            float sum = 0f;
+            for (int b = 0; b < numBlocks; b++) {
+                sum += blockSum[b][t] * (float) Math.exp(blockMax[b][t] - max);
+            }
+            out[t] = targetLogits[t] - (max + (float) Math.log(sum));
+        }
+    }
+
     @FunctionalInterface
     public interface AggregateFunction {
 
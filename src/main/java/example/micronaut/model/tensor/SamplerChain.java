@@ -0,0 +1,178 @@
+package example.micronaut.model.tensor;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Top-k, temperature, min-p and top-p sampling applied in that order.
+ * <p>
+ * Only the top-k candidates are selected from the raw logits; temperature,
+ * softmax, min-p and top-p (nucleus) truncation then run on those few
+ * candidates instead of the whole vocabulary, so the logits tensor is read
+ * once and never written. All scratch space is preallocated: an instance
+ * must not be shared between concurrent generations.
+ */
+public final class SamplerChain implements Sampler {
+
+    private final float temperature;
+    private final float topp;
+    private final float minp;
+    private final RandomGenerator rng;
+    private final TopK topK;
+    private final Candidates candidates;
+
+    /**
+     * @param topk number of candidates kept, the whole vocabulary if
+     * {@code topk <= 0}
+     * @param topp nucleus threshold, disabled if not in (0, 1)
+     * @param minp drops candidates less likely than {@code minp} times the
+     * most likely one, disabled if {@code <= 0}
+     */
+    public SamplerChain(int vocabularySize, int topk, float temperature, float topp, float minp,
+            RandomGenerator rng) {
+        int k = topk <= 0 ? vocabularySize : Math.min(topk, vocabularySize);
+        this.temperature = temperature;
+        this.topp = topp;
+        this.minp = minp;
+        this.rng = rng;
+        this.topK = new TopK(k);
+        this.candidates = new Candidates(k);
+    }
+
+    public int topK() {
+        return candidates.capacity();
+    }
+
+    /**
+     * Candidate buffer of this sampler, sized to its top-k; the forward pass
+     * can fill it directly (see {@link FloatTensor#matmulTopK}).
+     */
+    public Candidates candidates() {
+        return candidates;
+    }
+
+    @Override
+    public int sampleToken(FloatTensor logits) {
+        topK.select(logits, candidates);
+        return sampleToken(candidates);
+    }
+
+    /**
+     * Samples from {@code candidates}, sorted by descending logit. Their
+     * probabilities after temperature and truncation are left in
+     * {@code candidates}.
+     */
+    public int sampleToken(Candidates candidates) {
+        int n = truncate(candidates);
+        float r = rng.nextFloat(1f);
+        float cdf = 0.0f;
+        for (int i = 0; i < n; i++) {
+            cdf += candidates.probs[i];
+            if (r < cdf) {
+                return candidates.tokens[i];
+            }
+        }
+        return candidates.tokens[n - 1]; // in case of rounding errors
+    }
+
+    /**
+     * Speculative sampling step: accepts {@code draftToken}, proposed with
+     * probability q by a draft distribution, with probability min(1, p/q)
+     * where p is this sampler's probability of it over {@code target}.
+     * Otherwise samples a replacement from the residual distribution
+     * max(0, p - q), renormalized, so the output is distributed exactly as
+     * if it had been sampled from {@code target}.
+     *
+     * @param draft distribution the draft token was sampled from, as left by
+     * {@link #sampleToken(Candidates)}, or null if it was proposed
+     * deterministically
+     * @return -1 if the draft token is accepted, the replacement otherwise
+     */
+    public int verify(Candidates target, Candidates draft, int draftToken) {
+        int n = truncate(target);
+        float p = probability(target, draftToken);
+        float q = draft != null ? probability(draft, draftToken) : 1f;
+        if (p > 0 && rng.nextFloat(1f) * q < p) {
+            return -1;
+        }
+        float[] probs = target.probs;
+        float sum = 0f;
+        for (int i = 0; i < n; i++) {
+            int token = target.tokens[i];
+            float qi = draft != null ? probability(draft, token) : (token == draftToken ? 1f : 0f);
+            probs[i] = Math.max(0f, probs[i] - qi);
+            sum += probs[i];
+        }
+        if (sum <= 0f) {
+            // q covers p (rounding), nothing left to correct: sample from the target itself
+            n = truncate(target);
+            sum = 1f;
+        }
+        float r = rng.nextFloat(sum);
+        float cdf = 0.0f;
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+            if (probs[i] > 0) {
+                last = i;
+                cdf += probs[i];
+                if (r < cdf) {
+                    return target.tokens[i];
+                }
+            }
+        }
+        return target.tokens[last]; // in case of rounding errors
+    }
+
+    private static float probability(Candidates candidates, int token) {
+        for (int i = 0; i < candidates.size; i++) {
+            if (candidates.tokens[i] == token) {
+                return candidates.probs[i];
+            }
+        }
+        return 0f;
+    }
+
+    /**
+     * Computes the sampling distribution over {@code candidates}: applies
+     * temperature, softmax, min-p and top-p and renormalizes.
+     *
+     * @return number of leading candidates with non-zero probability
+     */
+    public int truncate(Candidates candidates) {
+        int n = candidates.size;
+        float[] logits = candidates.logits;
+        float[] probs = candidates.probs;
+        // softmax relative to the largest logit (numerically stable), min-p is relative to it too
+        float max = logits[0];
+        float sum = 0f;
+        int kept = n;
+        for (int i = 0; i < n; i++) {
+            float p = (float) Math.exp((logits[i] - max) / temperature);
+            if (minp > 0 && p < minp) {
+                kept = i;
+                break;
+            }
+            probs[i] = p;
+            sum += p;
+        }
+        if (topp > 0 && topp < 1) {
+            // truncate where the cumulative probability of the largest elements exceeds topp
+            float cumulative = 0f;
+            float limit = topp * sum;
+            for (int i = 0; i < kept; i++) {
+                cumulative += probs[i];
+                if (cumulative > limit) {
+                    kept = i + 1;
+                    sum = cumulative;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < kept; i++) {
+            probs[i] /= sum;
+        }
+        for (int i = kept; i < n; i++) {
+            probs[i] = 0f;
+        }
+        return kept;
+    }
+}
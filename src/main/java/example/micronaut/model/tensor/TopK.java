@@ -0,0 +1,134 @@
+package example.micronaut.model.tensor;
+
+import example.micronaut.gguf.GGMLType;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * Streaming top-k selection over (token, value) pairs with a bounded
+ * min-heap over primitive arrays.
+ */
+public final class TopK {
+
+    private final int k;
+    private final int[] tokens;
+    private final float[] values;
+    private int size;
+
+    public TopK(int k) {
+        this.k = k;
+        this.tokens = new int[k];
+        this.values = new float[k];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Values not greater than this cannot enter the selection.
+     */
+    public float threshold() {
+        return size < k ? Float.NEGATIVE_INFINITY : values[0];
+    }
+
+    public void offer(int token, float value) {
+        if (size < k) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (values[parent] <= value) {
+                    break;
+                }
+                tokens[i] = tokens[parent];
+                values[i] = values[parent];
+                i = parent;
+            }
+            tokens[i] = token;
+            values[i] = value;
+        } else if (value > values[0]) {
+            siftDown(token, value, size);
+        }
+    }
+
+    private void siftDown(int token, float value, int n) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && values[child + 1] < values[child]) {
+                child++;
+            }
+            if (values[child] >= value) {
+                break;
+            }
+            tokens[i] = tokens[child];
+            values[i] = values[child];
+            i = child;
+        }
+        tokens[i] = token;
+        values[i] = value;
+    }
+
+    /**
+     * Offers every entry of {@code that} to this selection.
+     */
+    public void merge(TopK that) {
+        for (int i = 0; i < that.size; i++) {
+            offer(that.tokens[i], that.values[i]);
+        }
+    }
+
+    /**
+     * Moves the selection into {@code out}, sorted by descending value, and
+     * leaves this selection empty.
+     */
+    public void drainTo(Candidates out) {
+        int n = size;
+        out.size = n;
+        out.logSumExp = Float.NaN;
+        while (size > 0) {
+            int last = --size;
+            out.tokens[last] = tokens[0];
+            out.logits[last] = values[0];
+            siftDown(tokens[last], values[last], last);
+        }
+    }
+
+    /**
+     * Selects the {@code k} largest logits into {@code out}. For F32 logits
+     * whole vector lanes are skipped when none of them beats the current
+     * threshold, which is the common case once the heap has warmed up.
+     */
+    public void select(FloatTensor logits, Candidates out) {
+        clear();
+        int n = logits.size();
+        int i = 0;
+        if (FloatTensor.USE_VECTOR_API && logits.type() == GGMLType.F32) {
+            int lanes = FloatTensor.F_SPECIES.length();
+            int upperBound = FloatTensor.F_SPECIES.loopBound(n);
+            for (; i < upperBound; i += lanes) {
+                if (size == k) {
+                    FloatVector v = logits.getFloatVector(FloatTensor.F_SPECIES, i);
+                    if (!v.compare(VectorOperators.GT, values[0]).anyTrue()) {
+                        continue;
+                    }
+                }
+                for (int j = i; j < i + lanes; j++) {
+                    offer(j, logits.getFloat(j));
+                }
+            }
+        }
+        for (; i < n; i++) {
+            offer(i, logits.getFloat(i));
+        }
+        drainTo(out);
+        out.logSumExp = Float.NaN;
+    }
+}
@@ -0,0 +1,386 @@
+package example.micronaut.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import example.micronaut.model.Configuration;
+import example.micronaut.model.KvCache;
+import reactor.core.publisher.Mono;
+
+/**
+ * Admission control of inference requests. Every request reserves an
+ * estimate of the memory it will hold (see {@link #estimate}) and one of
+ * {@code maxConcurrent} slots. Requests that do not fit wait in a queue of
+ * up to {@code queueDepth} entries for at most {@code queueTimeout}, or
+ * until their deadline; beyond that they are shed with
+ * {@link OverloadedException}. A request larger than the whole budget is
+ * admitted alone.
+ * <p>
+ * The queue is ordered by priority, then deadline, then the number of
+ * requests each tenant has running (fair share), then arrival. When an
+ * interactive request is blocked, preemptible batch requests are asked to
+ * park (see {@link Ticket#parkRequested()}): they give back all but
+ * {@code parkedBytes} and queue again to resume.
+ */
+final class Admission {
+
+    private static final long POLL_MILLIS = 20; // cancellation is noticed while parked
+    private static final AtomicLong ARRIVALS = new AtomicLong();
+
+    private enum Status {
+        RUNNING, PARK_REQUESTED, PARKED, CLOSED
+    }
+
+    /**
+     * A reservation, released once the request ends; closing it again is a
+     * no-op.
+     */
+    final class Ticket implements AutoCloseable {
+
+        private final Scheduling scheduling;
+        private final long fullBytes;
+        private final long parkedBytes; // < 0 if not preemptible
+        private long bytes; // currently reserved
+        private long admittedNanos;
+        private volatile Status status = Status.RUNNING;
+
+        private Ticket(Scheduling scheduling, long bytes, long parkedBytes) {
+            this.scheduling = scheduling;
+            this.fullBytes = bytes;
+            this.parkedBytes = parkedBytes;
+        }
+
+        /**
+         * True once the request should park at its next step, see
+         * {@link #park(BooleanSupplier)}.
+         */
+        boolean parkRequested() {
+            return status == Status.PARK_REQUESTED;
+        }
+
+        /**
+         * Gives back all but the parked bytes, the caller having dropped its
+         * KV cache, and waits until the request is admitted again.
+         *
+         * @return false if {@code cancelled} became true first
+         */
+        boolean park(BooleanSupplier cancelled) {
+            Waiter waiter;
+            List<Waiter> ready;
+            synchronized (Admission.this) {
+                if (status != Status.PARK_REQUESTED) {
+                    return true;
+                }
+                status = Status.PARKED;
+                running.remove(this);
+                active--;
+                reserved -= bytes - parkedBytes;
+                bytes = parkedBytes;
+                parked.increment();
+                waiter = new Waiter(fullBytes, scheduling, this);
+                queue.add(waiter);
+                ready = drain();
+            }
+            complete(ready);
+            while (true) {
+                if (cancelled.getAsBoolean()) {
+                    leave(waiter);
+                    return false;
+                }
+                try {
+                    waiter.admitted.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (TimeoutException e) {
+                    // poll cancellation
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    leave(waiter);
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            List<Waiter> ready;
+            synchronized (Admission.this) {
+                if (status == Status.CLOSED) {
+                    return;
+                }
+                if (status == Status.PARKED) {
+                    queue.removeIf(waiter -> waiter.ticket == this);
+                } else {
+                    running.remove(this);
+                    active--;
+                    double held = (System.nanoTime() - admittedNanos) / 1e9;
+                    averageHoldSeconds = 0.8 * averageHoldSeconds + 0.2 * held;
+                }
+                status = Status.CLOSED;
+                reserved -= bytes;
+                bytes = 0;
+                ready = drain();
+            }
+            complete(ready);
+        }
+    }
+
+    // a queued request; a parked ticket waiting to resume, or a new one once admitted
+    private static final class Waiter {
+
+        final long bytes;
+        final Scheduling scheduling;
+        final boolean resume;
+        final long arrival = ARRIVALS.getAndIncrement();
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<Ticket> admitted = new CompletableFuture<>();
+        Ticket ticket;
+
+        Waiter(long bytes, Scheduling scheduling, Ticket parked) {
+            this.bytes = bytes;
+            this.scheduling = scheduling;
+            this.resume = parked != null;
+            this.ticket = parked;
+        }
+    }
+
+    private final long budget;
+    private final int maxConcurrent;
+    private final int queueDepth;
+    private final Duration queueTimeout;
+
+    private final List<Waiter> queue = new ArrayList<>();
+    private final List<Ticket> running = new ArrayList<>(); // in admission order
+    private long reserved;
+    private int active;
+    private double averageHoldSeconds = 1; // moving average, for Retry-After
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder preempted = new LongAdder();
+    private final LongAdder parked = new LongAdder();
+
+    /**
+     * @param budget bytes all admitted requests may reserve together
+     */
+    Admission(long budget, int maxConcurrent, int queueDepth, Duration queueTimeout) {
+        this.budget = budget;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.queueDepth = queueDepth;
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * Bytes a request holds: the KV cache of {@code tokens} positions per
+     * sequence, in whole blocks, and the activation buffers of one state.
+     *
+     * @param tokens prompt and completion tokens of every sequence, clamped
+     * to the context length
+     */
+    static long estimate(Configuration config, int batchsize, int tokens, int sequences) {
+        int positions = Math.min(Math.max(tokens, 1), config.contextLength);
+        long blocks = (positions + KvCache.BLOCK_SIZE - 1) / KvCache.BLOCK_SIZE;
+        long kvDim = (long) config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        long kvBytes = blocks * KvCache.BLOCK_SIZE * 2 * kvDim * config.numberOfLayers * Float.BYTES;
+        return sequences * kvBytes + scratch(config, batchsize);
+    }
+
+    /**
+     * Bytes of the activation buffers of one state, kept by a parked request.
+     */
+    static long scratch(Configuration config, int batchsize) {
+        long floats = (long) batchsize * (6L * config.dim + 2L * config.hiddenDim
+                + (long) config.numberOfHeads * config.contextLength) + config.vocabularySize;
+        return floats * Float.BYTES;
+    }
+
+    /**
+     * Reserves {@code bytes} for a request that cannot be preempted, see
+     * {@link #admit(long, long, Scheduling)}.
+     */
+    Mono<Ticket> admit(long bytes, Scheduling scheduling) {
+        return admit(bytes, -1, scheduling);
+    }
+
+    /**
+     * Reserves {@code bytes}, immediately or once earlier requests finish;
+     * errors with {@link OverloadedException} if the queue is full or the
+     * wait times out. Cancelling the subscription leaves the queue.
+     *
+     * @param parkedBytes bytes kept while parked, negative if the request
+     * cannot be preempted
+     */
+    Mono<Ticket> admit(long bytes, long parkedBytes, Scheduling scheduling) {
+        return Mono.defer(() -> {
+            Waiter waiter = new Waiter(bytes, scheduling, null);
+            List<Waiter> ready;
+            synchronized (this) {
+                Ticket ticket = new Ticket(scheduling, bytes, parkedBytes);
+                if (queue.isEmpty() && fits(bytes)) {
+                    reserve(ticket);
+                    admitted.increment();
+                    return Mono.just(ticket);
+                }
+                long now = System.nanoTime();
+                if (queue.size() >= queueDepth || scheduling.deadlineNanos() <= now) {
+                    rejected.increment();
+                    return Mono.error(new OverloadedException("Too many requests, the queue is full",
+                            retryAfterSeconds()));
+                }
+                waiter.ticket = ticket;
+                queue.add(waiter);
+                queued.increment();
+                ready = drain(); // may also ask batch requests to park
+            }
+            complete(ready);
+            Duration timeout = queueTimeout;
+            if (scheduling.deadlineNanos() != Long.MAX_VALUE) {
+                long untilDeadline = scheduling.deadlineNanos() - System.nanoTime();
+                timeout = Duration.ofNanos(Math.max(1_000_000, Math.min(timeout.toNanos(), untilDeadline)));
+            }
+            return Mono.fromFuture(waiter.admitted, true)
+                    .doOnCancel(() -> leave(waiter))
+                    .timeout(timeout, Mono.error(() -> {
+                        timedOut.increment();
+                        return new OverloadedException("Too many requests, timed out waiting for capacity",
+                                retryAfterSeconds());
+                    }));
+        });
+    }
+
+    private boolean fits(long bytes) {
+        return active == 0 || (active < maxConcurrent && reserved + bytes <= budget);
+    }
+
+    private void reserve(Ticket ticket) {
+        reserved += ticket.fullBytes - ticket.bytes;
+        ticket.bytes = ticket.fullBytes;
+        ticket.admittedNanos = System.nanoTime();
+        ticket.status = Status.RUNNING;
+        running.add(ticket);
+        active++;
+    }
+
+    // the subscriber went away (or timed out) while queued, or right after it was admitted
+    private void leave(Waiter waiter) {
+        boolean wasQueued;
+        synchronized (this) {
+            wasQueued = queue.remove(waiter);
+        }
+        // a new request never reserved anything while queued, a parked one still holds its parked bytes
+        if (!wasQueued || waiter.resume) {
+            waiter.ticket.close();
+        }
+    }
+
+    /**
+     * Admits waiters in order while they fit, asks batch requests to park
+     * for a blocked interactive one.
+     *
+     * @return the admitted waiters, to {@link #complete} outside the lock
+     */
+    private List<Waiter> drain() {
+        List<Waiter> ready = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            Waiter head = queue.stream().min(order()).orElseThrow();
+            if (!fits(head.bytes)) {
+                if (head.scheduling.priority() == Scheduling.Priority.INTERACTIVE) {
+                    preemptFor(head.bytes);
+                }
+                break;
+            }
+            queue.remove(head);
+            reserve(head.ticket);
+            if (!head.resume) {
+                admitted.increment();
+                dequeued.increment();
+                waitNanos.add(System.nanoTime() - head.queuedNanos);
+            }
+            ready.add(head);
+        }
+        return ready;
+    }
+
+    private static void complete(List<Waiter> ready) {
+        for (Waiter waiter : ready) {
+            waiter.admitted.complete(waiter.ticket); // dropped if cancelled meanwhile, leave() then closes the ticket
+        }
+    }
+
+    private Comparator<Waiter> order() {
+        Map<String, Integer> runningPerTenant = new HashMap<>();
+        for (Ticket ticket : running) {
+            runningPerTenant.merge(ticket.scheduling.tenant(), 1, Integer::sum);
+        }
+        return Comparator
+                .comparing((Waiter waiter) -> waiter.scheduling.priority())
+                .thenComparing(waiter -> !waiter.resume) // started requests first
+                .thenComparingLong(waiter -> waiter.scheduling.deadlineNanos())
+                .thenComparingInt(waiter -> runningPerTenant.getOrDefault(waiter.scheduling.tenant(), 0))
+                .thenComparingLong(waiter -> waiter.arrival);
+    }
+
+    // asks the most recently admitted preemptible batch requests to park until bytes would fit
+    private void preemptFor(long bytes) {
+        long freeing = 0;
+        int leaving = 0;
+        for (Ticket ticket : running) {
+            if (ticket.status == Status.PARK_REQUESTED) {
+                freeing += ticket.bytes - ticket.parkedBytes;
+                leaving++;
+            }
+        }
+        for (int i = running.size() - 1; i >= 0; i--) {
+            if (reserved - freeing + bytes <= budget && active - leaving < maxConcurrent) {
+                return;
+            }
+            Ticket ticket = running.get(i);
+            if (ticket.status == Status.RUNNING && ticket.parkedBytes >= 0
+                    && ticket.scheduling.priority() == Scheduling.Priority.BATCH) {
+                ticket.status = Status.PARK_REQUESTED;
+                preempted.increment();
+                freeing += ticket.bytes - ticket.parkedBytes;
+                leaving++;
+            }
+        }
+    }
+
+    // time until a newly queued request would likely be admitted
+    private synchronized long retryAfterSeconds() {
+        return Math.max(1, (long) Math.ceil(averageHoldSeconds * (queue.size() + 1) / maxConcurrent));
+    }
+
+    synchronized Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("admission.active", active);
+        metrics.put("admission.reservedBytes", reserved);
+        metrics.put("admission.budgetBytes", budget);
+        metrics.put("admission.queueDepth", queue.size());
+        metrics.put("admission.admitted", admitted.sum());
+        metrics.put("admission.queued", queued.sum());
+        metrics.put("admission.rejected", rejected.sum());
+        metrics.put("admission.timedOut", timedOut.sum());
+        long waited = dequeued.sum();
+        metrics.put("admission.averageWaitMillis", waited == 0 ? 0.0 : waitNanos.sum() / 1e6 / waited);
+        metrics.put("admission.preempted", preempted.sum());
+        metrics.put("admission.parked", parked.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,55 @@
+package example.micronaut.service;
+
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Downstream demand of a {@link FluxSink} fed by a blocking producer. The
+ * producer calls {@link #await()} before every element and waits until the
+ * subscriber has requested it, or it is at most {@code readAhead} elements
+ * ahead, so a slow subscriber pauses generation instead of growing the
+ * sink's buffer.
+ */
+final class Demand {
+
+    private final int readAhead;
+    private long requested;
+    private long emitted;
+    private boolean cancelled;
+
+    Demand(FluxSink<?> sink, int readAhead) {
+        this.readAhead = Math.max(0, readAhead);
+        sink.onRequest(this::request);
+        sink.onCancel(this::cancel);
+    }
+
+    private synchronized void request(long n) {
+        requested = requested + n < 0 ? Long.MAX_VALUE : requested + n; // saturates on unbounded demand
+        notifyAll();
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until one more element may be emitted and counts it.
+     *
+     * @return false if the subscriber cancelled or the thread was interrupted
+     */
+    synchronized boolean await() {
+        while (!cancelled && emitted - readAhead >= requested) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (cancelled) {
+            return false;
+        }
+        emitted++;
+        return true;
+    }
+}
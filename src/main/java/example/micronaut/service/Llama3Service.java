@@ -1,18 +1,42 @@
 package example.micronaut.service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 import example.micronaut.model.ChatFormat;
+import example.micronaut.model.Configuration;
+import example.micronaut.model.Detokenizer;
+import example.micronaut.model.KvCache;
+import example.micronaut.model.KvSnapshot;
+import example.micronaut.model.KvTier;
 import example.micronaut.model.Llama;
 import example.micronaut.model.LlamaOptions;
+import example.micronaut.model.PromptTokens;
 import example.micronaut.model.State;
+import example.micronaut.model.StatePool;
+import example.micronaut.model.StopStrings;
+import example.micronaut.model.TokenBuffer;
+import example.micronaut.model.Tokenizer;
+import example.micronaut.model.speculative.Drafter;
 import example.micronaut.model.tensor.Sampler;
 import example.micronaut.utils.TokenUtils;
+import example.micronaut.utils.TransformerUtils;
 import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PostConstruct;
 import jakarta.inject.Singleton;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.scheduler.Schedulers;
 
 @Singleton
@@ -21,12 +45,171 @@ public class Llama3Service {
     @Value("${llama.BatchSize}")
     private int propBatchSize;
 
-    public Flux<Object> runInteractive(Llama model, Sampler sampler, LlamaOptions options) {
-        return Flux.create(emitter -> {
+    @Value("${options.state_pool_size:4}")
+    private int propStatePoolSize;
 
-            State state = null;
-            List<Integer> conversationTokens = new ArrayList<>();
-            ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+    @Value("${options.stream_read_ahead:4}")
+    private int propStreamReadAhead;
+
+    @Value("${options.admission_memory_mb:0}")
+    private long propAdmissionMemoryMb;
+
+    @Value("${options.admission_max_concurrent:4}")
+    private int propAdmissionMaxConcurrent;
+
+    @Value("${options.admission_queue_depth:16}")
+    private int propAdmissionQueueDepth;
+
+    @Value("${options.admission_queue_timeout_ms:30000}")
+    private long propAdmissionQueueTimeoutMs;
+
+    @Value("${options.scheduler_step_slots:1}")
+    private int propSchedulerStepSlots;
+
+    @Value("${options.scheduler_step_tokens:0}")
+    private int propSchedulerStepTokens;
+
+    @Value("${options.context_shift:false}")
+    private boolean propContextShift;
+
+    @Value("${options.context_sink_tokens:4}")
+    private int propContextSinkTokens;
+
+    @Value("${options.kv_budget:0}")
+    private int propKvBudget;
+
+    @Value("${options.session_dir:sessions}")
+    private String propSessionDir;
+
+    @Value("${options.session_compression:f16}")
+    private String propSessionCompression;
+
+    @Value("${options.session_cache_size:16}")
+    private int propSessionCacheSize;
+
+    @Value("${options.kv_tier_dir:}")
+    private String propKvTierDir;
+
+    @Value("${options.kv_tier_hot_blocks:4}")
+    private int propKvTierHotBlocks;
+
+    @Value("${options.kv_tier_max_mb:0}")
+    private long propKvTierMaxMb;
+
+    // chat template tokens around a prompt, for admission estimates
+    private static final int TEMPLATE_TOKENS = 32;
+
+    private Admission admission;
+    private StepScheduler steps;
+    private Sessions sessions;
+    private ModelStates modelStates;
+    private final LongAdder embeddedInputs = new LongAdder();
+    private final LongAdder embeddedTokens = new LongAdder();
+    private final LongAdder embeddingNanos = new LongAdder();
+    private final LongAdder cancelledGenerations = new LongAdder();
+    private final LongAdder cancelledTokens = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        // by default, half of the heap for the KV caches and activations of admitted requests
+        long budget = propAdmissionMemoryMb > 0 ? propAdmissionMemoryMb << 20 : Runtime.getRuntime().maxMemory() / 2;
+        admission = new Admission(budget, propAdmissionMaxConcurrent, propAdmissionQueueDepth,
+                Duration.ofMillis(propAdmissionQueueTimeoutMs));
+        // by default, a round of steps costs about one full prefill batch
+        steps = new StepScheduler(propSchedulerStepSlots,
+                propSchedulerStepTokens > 0 ? propSchedulerStepTokens : propBatchSize);
+        // an empty directory drops evicted sessions
+        sessions = new Sessions(propSessionDir.isBlank() ? null : Path.of(propSessionDir),
+                KvSnapshot.Compression.valueOf(propSessionCompression.toUpperCase()), propSessionCacheSize);
+        modelStates = new ModelStates(propBatchSize, propStatePoolSize,
+                propKvTierDir.isBlank() ? null : Path.of(propKvTierDir), propKvTierHotBlocks, propKvTierMaxMb << 20);
+    }
+
+    /**
+     * Pool of {@code llama.BatchSize} states of {@code model}, whose caches
+     * keep {@code options.kv_tier_hot_blocks} blocks per layer on the heap
+     * and page older ones out to {@code options.kv_tier_dir}, if set. Once
+     * {@code model} is unloaded, its states are no longer pooled.
+     */
+    public StatePool statePool(Llama model) {
+        return modelStates.statePool(model);
+    }
+
+    /**
+     * Drops the state pool and disk tier of {@code model} for good, once it
+     * is unloaded; generations still running on it keep theirs.
+     */
+    public void unload(Llama model) {
+        modelStates.unload(model);
+    }
+
+    /**
+     * @param drafter if non-null, generation uses speculative decoding with
+     * up to {@code options.draftTokens} draft tokens per step
+     * @param session if non-null, the conversation continues session
+     * {@code session} of {@code scheduling.tenant()}: the turn only
+     * prefills the new message, after the cached conversation so far, whose
+     * last turn is closed first if it ended without a stop token (the
+     * system prompt then only counts for the first turn; sessions do not use
+     * the drafter). Fails with
+     * {@link IllegalStateException} while the session takes another turn,
+     * or {@link IllegalArgumentException} if it was started with a model of
+     * another shape.
+     */
+    public Flux<Object> runInteractive(Llama model, Sampler sampler, Drafter drafter, LlamaOptions options,
+            Scheduling scheduling, String session) {
+        long reservation = pooledReservation(model, options);
+        return generate(model, reservation, true, scheduling, (emit, state) -> {
+            Sessions.Session previous = null;
+            if (session != null) {
+                try {
+                    previous = sessions.checkout(scheduling.tenant(), session, statePool(model)::newCache);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            List<Integer> responseTokens = List.of();
+            try {
+                // speculative decoding may leave rejected rows in the cache a session keeps
+                responseTokens = chat(model, state, sampler, session == null ? drafter : null, options, previous,
+                        emit);
+                Set<Integer> stopTokens = new ChatFormat(model.tokenizer()).getStopTokens();
+                return responseTokens.size()
+                        - (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast()) ? 1 : 0);
+            } finally {
+                if (session != null) {
+                    // the session keeps a turn that generated something, a fork survives the pooled state
+                    if (!responseTokens.isEmpty() && previous != null) {
+                        previous.cache().release();
+                    }
+                    sessions.checkin(scheduling.tenant(), session, responseTokens.isEmpty()
+                            ? previous
+                            : new Sessions.Session(state.kvCache.fork(), responseTokens.getLast()));
+                }
+            }
+        });
+    }
+
+    // one chat turn, after the conversation of previous, if any; returns the response tokens, stop token included
+    private List<Integer> chat(Llama model, State state, Sampler sampler, Drafter drafter, LlamaOptions options,
+            Sessions.Session previous, Consumer<Object> emit) {
+        List<Integer> conversationTokens = new ArrayList<>();
+        ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+        int startPosition = 0;
+        if (previous != null) {
+            Configuration config = model.configuration();
+            KvCache cache = previous.cache();
+            if (cache.numberOfLayers() != config.numberOfLayers || cache.kvDim() != state.kvCache.kvDim()
+                    || cache.contextLength() != config.contextLength) {
+                throw new IllegalArgumentException("The session was started with another model");
+            }
+            // resumes after the cached conversation, its latest token is not ingested yet
+            state.kvCache.release();
+            state.kvCache = previous.cache().fork();
+            state.latestToken = previous.latestToken();
+            startPosition = state.kvCache.length();
+            conversationTokens.addAll(previous.resume(chatFormat));
+        } else {
             conversationTokens.add(chatFormat.beginOfText);
             if (options.getSystemPrompt() != null) {
                 conversationTokens.addAll(
@@ -34,91 +217,619 @@ public class Llama3Service {
                                 .encodeMessage(
                                         new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.getSystemPrompt())));
             }
-            int startPosition = 0;
+        }
 
-            if (state == null) {
-                state = model.createNewState(propBatchSize);
+        conversationTokens.addAll(
+                chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.getPrompt())));
+        conversationTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        Detokenizer detokenizer = new Detokenizer(model.tokenizer(), stopStrings(options));
+        StringBuilder responseText = new StringBuilder();
+        IntPredicate onToken = token -> {
+            String decodedToken = detokenizer.next(token);
+            if (!options.isStream()) {
+                responseText.append(decodedToken);
+            } else if (!decodedToken.isEmpty()) {
+                emit.accept(decodedToken);
             }
-            conversationTokens.addAll(
-                    chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.getPrompt())));
-            conversationTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+            return !detokenizer.isStopped();
+        };
+        PromptTokens promptTokens = PromptTokens.of(conversationTokens);
+        List<Integer> responseTokens = previous == null
+                ? TokenUtils.generateTokens(model, state, promptTokens, stopTokens, options.getMaxTokens(), sampler,
+                        drafter, options.getDraftTokens(), options.isEcho(), contextPolicy(), onToken)
+                : TokenUtils.generateTokens(model, state, startPosition, promptTokens, stopTokens,
+                        options.getMaxTokens(), sampler, options.isEcho(), contextPolicy(), onToken);
+        String tail = detokenizer.flush();
+        if (options.isStream()) {
+            if (!tail.isEmpty()) {
+                emit.accept(tail);
+            }
+        }
+        // The stop token stays in the history of a session, but is not part of the response
+        // displayed to the user.
+        boolean stopped = !responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast());
+        if (!options.isStream()) {
+            emit.accept(responseText.append(tail).toString());
+        }
+        if (!stopped && !detokenizer.isStopped() && !contextPolicy().continues()) {
+            emit.accept("Ran out of context length...");
+        }
+        return responseTokens;
+    }
+
+    public Flux<Object> runInstructOnce(Llama model, Sampler sampler, Drafter drafter, LlamaOptions options,
+            Scheduling scheduling) {
+        long reservation = pooledReservation(model, options);
+        return generate(model, reservation, true, scheduling, (emit, state) -> {
+
+            ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+            Detokenizer detokenizer = new Detokenizer(model.tokenizer(), stopStrings(options));
+            // escaped incrementally, only the delta of every token is escaped
+            StringBuilder escapedResponse = new StringBuilder();
+            StringBuilder responseText = new StringBuilder();
+            PromptTokens promptTokens = instructPrompt(chatFormat, options);
+
             Set<Integer> stopTokens = chatFormat.getStopTokens();
-            List<Integer> responseTokens = TokenUtils.generateTokens(model, state, startPosition,
-                    conversationTokens.subList(startPosition, conversationTokens.size()), stopTokens,
-                    options.getMaxTokens(), sampler, options.isEcho(), token -> {
+            List<Integer> responseTokens = TokenUtils.generateTokens(model, state, promptTokens, stopTokens,
+                    options.getMaxTokens(), sampler, drafter, options.getDraftTokens(), options.isEcho(), contextPolicy(),
+                    token -> {
+                String decoded = detokenizer.next(token);
                 if (options.isStream()) {
-                    if (!model.tokenizer().isSpecialToken(token)) {
-                        emitter.next(model.tokenizer().decode(List.of(token)));
+                    emitDelta(emit, decoded, escapedResponse, options);
+                } else {
+                    responseText.append(decoded);
+                }
+                return !detokenizer.isStopped();
+            });
+            String tail = detokenizer.flush();
+            if (options.isStream()) {
+                emitDelta(emit, tail, escapedResponse, options);
+            } else {
+                emit.accept(responseText.append(tail).toString());
+            }
+
+            return responseTokens.size();
+        });
+    }
+
+    /**
+     * Several completions of one instruct prompt: independent samples, one
+     * per sampler, or the hypotheses of a beam search as wide as
+     * {@code samplers} (the samplers are then unused). The prompt is
+     * prefilled once and shared; every completion is emitted, whole, as its
+     * own event.
+     */
+    public Flux<Object> runInstructBranches(Llama model, Sampler[] samplers, boolean beamSearch,
+            LlamaOptions options, Scheduling scheduling) {
+        long reservation = reservation(model, promptEstimate(options), options.getMaxTokens(), samplers.length);
+        return generate(model, reservation, false, scheduling, (emit, state) -> {
+
+            ChatFormat chatFormat = new ChatFormat(model.tokenizer());
+            PromptTokens promptTokens = instructPrompt(chatFormat, options);
+            Set<Integer> stopTokens = chatFormat.getStopTokens();
+            List<List<Integer>> completions = beamSearch
+                    ? TokenUtils.beamSearch(model, state, 0, promptTokens, stopTokens, options.getMaxTokens(),
+                            samplers.length)
+                    : TokenUtils.generateParallel(model, state, 0, promptTokens, stopTokens,
+                            options.getMaxTokens(), samplers, null);
+            int generated = 0;
+            for (List<Integer> completion : completions) {
+                Detokenizer detokenizer = new Detokenizer(model.tokenizer(), stopStrings(options));
+                StringBuilder text = new StringBuilder();
+                for (int token : completion) {
+                    if (detokenizer.isStopped()) {
+                        break;
                     }
+                    text.append(detokenizer.next(token));
+                }
+                emit.accept(text.append(detokenizer.flush()).toString());
+                generated += completion.size();
+            }
+
+            return generated;
+        });
+    }
+
+    /**
+     * Events of {@link #runBatch}.
+     */
+    public sealed interface BatchEvent permits Delta, Finished, Usage {
+    }
+
+    // new text of the completion of the index-th prompt, only when streaming
+    public record Delta(int index, String text) implements BatchEvent {
+    }
+
+    // a completion ended, on a stop token or string if stopped, otherwise out of tokens
+    public record Finished(int index, String text, boolean stopped, int completionTokens) implements BatchEvent {
+    }
+
+    // last event: token counts and prefill (until the first generated token) and decode times
+    public record Usage(int promptTokens, int completionTokens, long promptNanos, long completionNanos)
+            implements BatchEvent {
+    }
+
+    /**
+     * Completes several tokenized prompts as one batch, see
+     * {@link TokenUtils#generateBatch}: every completion gets up to
+     * {@code options.maxTokens} tokens, stop strings apply to each. Emits
+     * {@link Delta}s while streaming, a {@link Finished} per prompt and a
+     * final {@link Usage}.
+     *
+     * @param samplers one per prompt
+     */
+    public Flux<Object> runBatch(Llama model, List<int[]> prompts, Sampler[] samplers, LlamaOptions options,
+            Scheduling scheduling) {
+        int longestPrompt = prompts.stream().mapToInt(prompt -> prompt.length).max().orElse(0);
+        long reservation = reservation(model, longestPrompt, options.getMaxTokens(), prompts.size());
+        return generate(model, reservation, false, scheduling, (emit, state) -> {
+
+            long startNanos = System.nanoTime();
+            long[] firstTokenNanos = {0};
+            int n = prompts.size();
+            Detokenizer[] detokenizers = new Detokenizer[n];
+            StringBuilder[] texts = new StringBuilder[n];
+            int[] counts = new int[n];
+            for (int b = 0; b < n; b++) {
+                detokenizers[b] = new Detokenizer(model.tokenizer(), stopStrings(options));
+                texts[b] = new StringBuilder();
+            }
+            int maxTokens = options.getMaxTokens() < 0 ? Integer.MAX_VALUE : options.getMaxTokens();
+            Set<Integer> stopTokens = new ChatFormat(model.tokenizer()).getStopTokens();
+            List<List<Integer>> completions = TokenUtils.generateBatch(model, state, prompts, stopTokens,
+                    model.configuration().contextLength, samplers, (b, token) -> {
+                if (firstTokenNanos[0] == 0) {
+                    firstTokenNanos[0] = System.nanoTime();
                 }
+                String decoded = detokenizers[b].next(token);
+                texts[b].append(decoded);
+                if (options.isStream() && !decoded.isEmpty()) {
+                    emit.accept(new Delta(b, decoded));
+                }
+                return ++counts[b] < maxTokens && !detokenizers[b].isStopped();
             });
-            // Include stop token in the prompt history, but not in the response displayed
-            // to the user.
-            conversationTokens.addAll(responseTokens);
-            Integer stopToken = null;
-            if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
-                stopToken = responseTokens.getLast();
-                responseTokens.removeLast();
+            long endNanos = System.nanoTime();
+
+            int promptTokens = 0;
+            int completionTokens = 0;
+            for (int b = 0; b < n; b++) {
+                String tail = detokenizers[b].flush();
+                texts[b].append(tail);
+                if (options.isStream() && !tail.isEmpty()) {
+                    emit.accept(new Delta(b, tail));
+                }
+                List<Integer> completion = completions.get(b);
+                boolean stopped = detokenizers[b].isStopped()
+                        || (!completion.isEmpty() && stopTokens.contains(completion.getLast()));
+                emit.accept(new Finished(b, texts[b].toString(), stopped, completion.size()));
+                promptTokens += prompts.get(b).length;
+                completionTokens += completion.size();
             }
-            if (!options.isStream()) {
-                String responseText = model.tokenizer().decode(responseTokens);
-                emitter.next(responseText);
+            long prefillEnd = firstTokenNanos[0] == 0 ? endNanos : firstTokenNanos[0];
+            emit.accept(new Usage(promptTokens, completionTokens, prefillEnd - startNanos, endNanos - prefillEnd));
+
+            return completionTokens;
+        });
+    }
+
+    /**
+     * Log-likelihood of each completion following {@code prompt}, both plain
+     * text (no chat template). The prompt is ingested once, every
+     * completion is scored in a copy-on-write fork of its cache.
+     *
+     * @throws IllegalArgumentException if a prompt and completion do not fit
+     * in the context
+     */
+    public List<Map<String, Object>> score(Llama model, String prompt, List<String> completions,
+            Scheduling scheduling) {
+        int longestCompletion = completions.stream().mapToInt(String::length).max().orElse(0);
+        Admission.Ticket ticket = admission.admit(reservation(model, prompt.length() + 1, longestCompletion,
+                Math.max(1, completions.size())), scheduling).block();
+        StatePool pool = statePool(model);
+        State state = pool.acquire();
+        try {
+            return score(model, state, prompt, completions);
+        } finally {
+            pool.release(state);
+            ticket.close();
+        }
+    }
+
+    private List<Map<String, Object>> score(Llama model, State state, String prompt, List<String> completions) {
+        Tokenizer tokenizer = model.tokenizer();
+        TokenBuffer promptTokens = new TokenBuffer();
+        promptTokens.add(new ChatFormat(tokenizer).beginOfText);
+        promptTokens.addAll(tokenizer.encode(prompt));
+        // the last prompt token is ingested with every completion, it predicts the first completion token
+        int last = promptTokens.size() - 1;
+        for (int from = 0; from < last; from += propBatchSize) {
+            TransformerUtils.forward(model, state, promptTokens.toArray(from, Math.min(last, from + propBatchSize)),
+                    from, false);
+        }
+        KvCache promptCache = state.kvCache;
+        List<Map<String, Object>> results = new ArrayList<>(completions.size());
+        for (String completion : completions) {
+            int[] completionTokens = tokenizer.encode(completion);
+            if (last + completionTokens.length >= model.configuration().contextLength) {
+                throw new IllegalArgumentException("Prompt and completion exceed the context length");
+            }
+            int[] tokens = new int[completionTokens.length + 1];
+            tokens[0] = promptTokens.get(last);
+            System.arraycopy(completionTokens, 0, tokens, 1, completionTokens.length);
+            state.kvCache = promptCache.fork();
+            float[] logProbs = TokenUtils.logProbs(model, state, last, tokens);
+            state.kvCache.release();
+
+            double logProb = 0;
+            List<Map<String, Object>> tokenLogProbs = new ArrayList<>(logProbs.length);
+            for (int i = 0; i < logProbs.length; i++) {
+                logProb += logProbs[i];
+                tokenLogProbs.add(Map.of("token", tokenizer.decode(completionTokens[i]), "logprob", logProbs[i]));
             }
-            if (stopToken == null) {
-                emitter.next("Ran out of context length...");
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("completion", completion);
+            result.put("tokens", logProbs.length);
+            result.put("logprob", logProb);
+            result.put("perplexity", Math.exp(-logProb / Math.max(1, logProbs.length)));
+            result.put("token_logprobs", tokenLogProbs);
+            results.add(result);
+        }
+        state.kvCache = promptCache;
+        return results;
+    }
+
+    /**
+     * Perplexity of the model over {@code text}, in consecutive independent
+     * windows of up to {@code window} tokens, each starting with
+     * {@code <|begin_of_text|>}. Progress is printed to {@link System#err stderr}
+     * after every window.
+     */
+    public double perplexity(Llama model, String text, int window) {
+        int[] tokens = model.tokenizer().encode(text);
+        int beginOfText = new ChatFormat(model.tokenizer()).beginOfText;
+        StatePool pool = statePool(model);
+        State state = pool.acquire();
+        try {
+            long startNanos = System.nanoTime();
+            double negativeLogLikelihood = 0;
+            long scored = 0;
+            for (int from = 0; from < tokens.length; from += window - 1) {
+                int n = Math.min(window - 1, tokens.length - from);
+                int[] chunk = new int[n + 1];
+                chunk[0] = beginOfText;
+                System.arraycopy(tokens, from, chunk, 1, n);
+                // positions are overwritten from 0, the previous window is never attended to
+                for (float logProb : TokenUtils.logProbs(model, state, 0, chunk)) {
+                    negativeLogLikelihood -= logProb;
+                }
+                scored += n;
+                System.err.printf("[%d/%d] perplexity: %.4f (%.2f tokens/s)%n", from + n, tokens.length,
+                        Math.exp(negativeLogLikelihood / scored), scored / ((System.nanoTime() - startNanos) / 1e9));
             }
+            return Math.exp(negativeLogLikelihood / Math.max(1, scored));
+        } finally {
+            pool.release(state);
+        }
+    }
 
-            emitter.complete();
-        }).subscribeOn(Schedulers.boundedElastic());
+    /**
+     * Perplexity of {@code text} scored as one sequence, evicting cache
+     * positions as {@code context} says, see
+     * {@link TokenUtils#logProbs(Llama, State, int[], TokenUtils.ContextPolicy)}.
+     */
+    public double perplexity(Llama model, String text, TokenUtils.ContextPolicy context) {
+        int[] tokens = model.tokenizer().encode(text);
+        int[] sequence = new int[tokens.length + 1];
+        sequence[0] = new ChatFormat(model.tokenizer()).beginOfText;
+        System.arraycopy(tokens, 0, sequence, 1, tokens.length);
+        StatePool pool = statePool(model);
+        State state = pool.acquire();
+        long startNanos = System.nanoTime();
+        double negativeLogLikelihood = 0;
+        try {
+            for (float logProb : TokenUtils.logProbs(model, state, sequence, context)) {
+                negativeLogLikelihood -= logProb;
+            }
+        } finally {
+            pool.release(state);
+        }
+        double perplexity = Math.exp(negativeLogLikelihood / Math.max(1, tokens.length));
+        System.err.printf("%s perplexity: %.4f (%.2f tokens/s)%n", context, perplexity,
+                tokens.length / ((System.nanoTime() - startNanos) / 1e9));
+        return perplexity;
     }
 
-    public Flux<Object> runInstructOnce(Llama model, Sampler sampler, LlamaOptions options) {
-        return Flux.create(emitter -> {
+    /**
+     * Embeddings of {@code inputs}, plain text (no chat template), see
+     * {@link TokenUtils#embed}.
+     *
+     * @return one embedding per input and the number of tokens embedded
+     * @throws IllegalArgumentException if an input does not fit in the
+     * context
+     */
+    public Embeddings embed(Llama model, List<String> inputs, TokenUtils.Pooling pooling, boolean normalize,
+            Scheduling scheduling) {
+        long startNanos = System.nanoTime();
+        int beginOfText = new ChatFormat(model.tokenizer()).beginOfText;
+        List<int[]> tokens = new ArrayList<>(inputs.size());
+        int tokenCount = 0;
+        for (String input : inputs) {
+            int[] encoded = model.tokenizer().encode(input);
+            int[] withBos = new int[encoded.length + 1];
+            withBos[0] = beginOfText;
+            System.arraycopy(encoded, 0, withBos, 1, encoded.length);
+            tokens.add(withBos);
+            tokenCount += withBos.length;
+        }
+        Admission.Ticket ticket = admission.admit(embeddingReservation(model, tokens), scheduling).block();
+        StatePool pool = statePool(model);
+        State state = pool.acquire();
+        float[][] embeddings;
+        try {
+            embeddings = TokenUtils.embed(model, state, tokens, pooling, normalize);
+        } finally {
+            pool.release(state);
+            ticket.close();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        embeddedInputs.add(inputs.size());
+        embeddedTokens.add(tokenCount);
+        embeddingNanos.add(elapsedNanos);
+        return new Embeddings(embeddings, tokenCount);
+    }
 
-            State state = model.createNewState(propBatchSize);
-            ChatFormat chatFormat = new ChatFormat(model.tokenizer());
-            StringBuilder responseBuilder = new StringBuilder();
-            List<Integer> promptTokens = new ArrayList<>();
-            promptTokens.add(chatFormat.beginOfText);
-            if (options.getSystemPrompt() != null) {
-                promptTokens.addAll(
-                        chatFormat
-                                .encodeMessage(
-                                        new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.getSystemPrompt())));
+    public record Embeddings(float[][] embeddings, int tokens) {
+    }
+
+    /**
+     * Snapshots idle session {@code id} of tenant {@code owner} to
+     * {@code options.session_dir}, in {@code options.session_compression};
+     * it stays in memory.
+     *
+     * @return size of the snapshot in bytes
+     * @throws IllegalArgumentException if {@code owner} has no such session
+     * @throws IllegalStateException if the session is taking a turn, or
+     * snapshots are disabled
+     */
+    public long saveSession(String owner, String id) throws IOException {
+        return sessions.save(owner, id);
+    }
+
+    /**
+     * Loads session {@code id} of tenant {@code owner} and {@code model} from
+     * its snapshot, e.g. after a restart, replacing the idle session in
+     * memory, if any.
+     *
+     * @return number of cached positions
+     * @throws java.nio.file.NoSuchFileException if there is no snapshot
+     * @throws IllegalArgumentException if the snapshot does not fit
+     * {@code model}
+     * @throws IllegalStateException if the session is taking a turn, or
+     * snapshots are disabled
+     */
+    public int restoreSession(Llama model, String owner, String id) throws IOException {
+        return sessions.restore(owner, id, statePool(model)::newCache);
+    }
+
+    /**
+     * Counters of the state pools, admission control, step scheduling,
+     * sessions, the KV disk tier, cancelled generations and the embeddings.
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long created = 0;
+        long reused = 0;
+        int idle = 0;
+        for (StatePool pool : modelStates.pools()) {
+            StatePool.Stats stats = pool.stats();
+            created += stats.created();
+            reused += stats.reused();
+            idle += stats.idle();
+        }
+        metrics.put("state.pool.created", created);
+        metrics.put("state.pool.reused", reused);
+        metrics.put("state.pool.idle", idle);
+        metrics.putAll(admission.metrics());
+        metrics.putAll(steps.metrics());
+        metrics.putAll(sessions.metrics());
+        if (!modelStates.tiers().isEmpty()) {
+            int files = 0;
+            long mappedBytes = 0;
+            long usedBytes = 0;
+            long pagedOut = 0;
+            for (KvTier tier : modelStates.tiers()) {
+                KvTier.Stats stats = tier.stats();
+                files += stats.files();
+                mappedBytes += stats.mappedBytes();
+                usedBytes += stats.usedBytes();
+                pagedOut += stats.pagedOut();
             }
-            promptTokens
-                    .addAll(chatFormat
-                            .encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.getPrompt())));
-            promptTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+            metrics.put("kv.tier.files", files);
+            metrics.put("kv.tier.mappedBytes", mappedBytes);
+            metrics.put("kv.tier.usedBytes", usedBytes);
+            metrics.put("kv.tier.pagedOutBlocks", pagedOut);
+        }
+        metrics.put("generation.cancelled", cancelledGenerations.sum());
+        metrics.put("generation.cancelledTokens", cancelledTokens.sum());
+        long nanos = embeddingNanos.sum();
+        metrics.put("embeddings.inputs", embeddedInputs.sum());
+        metrics.put("embeddings.tokens", embeddedTokens.sum());
+        metrics.put("embeddings.inputsPerSecond", nanos == 0 ? 0.0 : embeddedInputs.sum() / (nanos / 1e9));
+        return metrics;
+    }
 
-            Set<Integer> stopTokens = chatFormat.getStopTokens();
-            List<Integer> responseTokens = TokenUtils.generateTokens(model, state, 0, promptTokens, stopTokens,
-                    options.getMaxTokens(), sampler, options.isEcho(), token -> {
-                if (options.isStream()) {
-                    if (!model.tokenizer().isSpecialToken(token)) {
-                        String decodedToken = model.tokenizer().decode(List.of(token));
-                        responseBuilder.append(decodedToken);
-                        String escapedResponse = responseBuilder.toString()
-                                .replace("\n", "\\n") // Replace newlines with \n
-                                .replace("\r", "\\r");
-
-                        if (options.isFullResponseStream()) {
-                            emitter.next(escapedResponse + "\n\n");
-                        } else {
-                            emitter.next(decodedToken);
-                        }
+    // a blocking generation, returns the number of tokens it generated
+    @FunctionalInterface
+    private interface Generation {
+        int run(Consumer<Object> emit, State state);
+    }
+
+    /**
+     * Runs a blocking generation on its own thread with a pooled state,
+     * released when it ends. Generation is demand-driven: every emission
+     * waits until the subscriber has requested it, or it is at most
+     * {@code options.stream_read_ahead} elements ahead (see {@link Demand}),
+     * so a slow client holds generation rather than buffering its output.
+     * <p>
+     * Generation starts once {@link Admission} admits {@code reservation}
+     * bytes, or fails with {@link OverloadedException}; every forward pass
+     * then waits for its turn in the {@link StepScheduler}. Before each
+     * forward pass the state also checks for cancellation: when the
+     * subscriber cancels, e.g. an SSE client disconnects, the generation
+     * stops before its next forward pass.
+     *
+     * @param preemptible the generation keeps its sequence in
+     * {@code state.kvCache} only, so it may be parked, see {@link #step}
+     */
+    private Flux<Object> generate(Llama model, long reservation, boolean preemptible, Scheduling scheduling,
+            Generation generation) {
+        long parkedBytes = preemptible ? Admission.scratch(model.configuration(), propBatchSize) : -1;
+        return admission.admit(reservation, parkedBytes, scheduling).flatMapMany(ticket -> Flux.create(emitter -> {
+            StatePool pool = statePool(model);
+            State state = pool.acquire();
+            StepScheduler.Lane lane = steps.open(scheduling);
+            state.cancelled = () -> !step(model, state, ticket, lane, emitter::isCancelled);
+            state.prefillBudget = () -> steps.prefillTokens(lane);
+            Demand demand = new Demand(emitter, propStreamReadAhead);
+            try {
+                int tokens = generation.run(value -> {
+                    steps.release(lane); // not holding a step while the client catches up
+                    if (demand.await()) {
+                        emitter.next(value);
                     }
+                }, state);
+                // checked before completing, a completed sink reports itself cancelled
+                if (emitter.isCancelled()) {
+                    cancelledGenerations.increment();
+                    cancelledTokens.add(tokens);
                 }
-            });
-            if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast())) {
-                responseTokens.removeLast();
+                emitter.complete();
+            } finally {
+                steps.close(lane);
+                pool.release(state);
+                ticket.close();
             }
-            if (!options.isStream()) {
-                String responseText = model.tokenizer().decode(responseTokens);
-                emitter.next(responseText);
+        }).subscribeOn(Schedulers.boundedElastic(), false) // requests must not wait for the busy worker
+                .doFinally(signal -> ticket.close())); // also if cancelled before generation started
+    }
+
+    /**
+     * Runs before every forward pass of a generation: if admission asked it
+     * to park, drops its KV cache, waits to be admitted again and recomputes
+     * the cache from its recorded tokens; then waits for a step slot.
+     *
+     * @return false if the generation was cancelled meanwhile
+     */
+    private boolean step(Llama model, State state, Admission.Ticket ticket, StepScheduler.Lane lane,
+            BooleanSupplier cancelled) {
+        if (ticket.parkRequested()) {
+            steps.release(lane);
+            int[] tokens = state.kvCache.tokens();
+            state.kvCache.release();
+            if (!ticket.park(cancelled)) {
+                return false;
             }
+            for (int from = 0; from < tokens.length; ) {
+                if (!steps.acquire(lane, cancelled)) {
+                    return false;
+                }
+                from = TokenUtils.recompute(model, state, tokens, from); // in chunks, like a prompt
+            }
+        }
+        return steps.acquire(lane, cancelled);
+    }
+
+    /**
+     * What single-sequence generations do once their cache is full: evict
+     * heavy hitters within {@code options.kv_budget} positions, shift the
+     * context if {@code options.context_shift}, or stop.
+     */
+    public TokenUtils.ContextPolicy contextPolicy() {
+        int sinks = Math.max(0, propContextSinkTokens);
+        if (propKvBudget > 0) {
+            return new TokenUtils.ContextPolicy(sinks, propKvBudget, true);
+        }
+        return propContextShift ? new TokenUtils.ContextPolicy(sinks, 0, false) : TokenUtils.ContextPolicy.STOP;
+    }
+
+    // bytes reserved by sequences of promptTokens followed by up to maxTokens each
+    private long reservation(Llama model, long promptTokens, int maxTokens, int sequences) {
+        Configuration config = model.configuration();
+        long tokens = promptTokens + (maxTokens < 0 ? config.contextLength : maxTokens);
+        return Admission.estimate(config, propBatchSize, (int) Math.min(tokens, config.contextLength), sequences);
+    }
+
+    // bytes reserved by an embeddings request: the inputs packed into one batch, at most batchsize, each have a
+    // cache until they are done; at worst these are the longest ones
+    private long embeddingReservation(Llama model, List<int[]> inputs) {
+        Configuration config = model.configuration();
+        long scratch = Admission.scratch(config, propBatchSize);
+        int[] lengths = inputs.stream().mapToInt(input -> input.length).sorted().toArray();
+        long bytes = scratch;
+        for (int i = lengths.length - 1; i >= Math.max(0, lengths.length - propBatchSize); i--) {
+            bytes += Admission.estimate(config, propBatchSize, lengths[i], 1) - scratch;
+        }
+        return bytes;
+    }
+
+    // bytes reserved by a chat request generating in the cache of a pooled state; with a disk tier only its hot
+    // blocks stay on the heap
+    private long pooledReservation(Llama model, LlamaOptions options) {
+        int maxTokens = options.getMaxTokens();
+        long tokens = promptEstimate(options) + (maxTokens < 0 ? model.configuration().contextLength : maxTokens);
+        if (!propKvTierDir.isBlank()) {
+            tokens = Math.min(tokens, (long) propKvTierHotBlocks * KvCache.BLOCK_SIZE + propBatchSize);
+        }
+        return reservation(model, tokens, 0, 1);
+    }
 
-            emitter.complete();
-        }).subscribeOn(Schedulers.boundedElastic());
+    // prompt tokens of a chat request before tokenizing it, assuming at most one per character
+    private static long promptEstimate(LlamaOptions options) {
+        String system = options.getSystemPrompt();
+        return TEMPLATE_TOKENS + options.getPrompt().length() + (system == null ? 0 : system.length());
+    }
+
+    private static PromptTokens instructPrompt(ChatFormat chatFormat, LlamaOptions options) {
+        PromptTokens promptTokens = new PromptTokens();
+        promptTokens.add(new int[]{chatFormat.beginOfText});
+        if (options.getSystemPrompt() != null) {
+            promptTokens.add(
+                    chatFormat
+                            .encodeMessage(
+                                    new ChatFormat.Message(ChatFormat.Role.SYSTEM, options.getSystemPrompt())));
+        }
+        // long user prompts are tokenized in parallel segments, prefill starts on the first ready ones
+        chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, options.getPrompt()), promptTokens);
+        promptTokens.add(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        return promptTokens;
+    }
+
+    private static StopStrings stopStrings(LlamaOptions options) {
+        List<String> stop = options.getStop();
+        if (stop == null || stop.stream().allMatch(s -> s == null || s.isEmpty())) {
+            return null;
+        }
+        return new StopStrings(stop);
+    }
+
+    private static void emitDelta(Consumer<Object> emit, String decoded, StringBuilder escapedResponse,
+            LlamaOptions options) {
+        if (decoded.isEmpty()) {
+            return; // incomplete UTF-8 sequence held back, or a special token
+        }
+        if (options.isFullResponseStream()) {
+            for (int i = 0; i < decoded.length(); i++) {
+                char c = decoded.charAt(i);
+                switch (c) {
+                    case '\n' -> escapedResponse.append("\\n"); // Replace newlines with \n
+                    case '\r' -> escapedResponse.append("\\r");
+                    default -> escapedResponse.append(c);
+                }
+            }
+            emit.accept(escapedResponse + "\n\n");
+        } else {
+            emit.accept(decoded);
+        }
     }
 }
@@ -0,0 +1,266 @@
+package example.micronaut.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import example.micronaut.model.Llama;
+import example.micronaut.utils.AOT;
+import example.micronaut.utils.ModelLoader;
+import io.micronaut.context.annotation.Value;
+import jakarta.annotation.PostConstruct;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+/**
+ * Models served by name: the default one of {@code options.model_path},
+ * named after its file, and those of {@code options.models}
+ * ({@code name=path} pairs, comma-separated). Models are loaded on first
+ * use, reusing the AOT preloaded one if it matches, and stay resident while
+ * their mapped weights fit in {@code options.model_cache_mb} (0 for no
+ * limit); the least recently used ones are unloaded beyond that.
+ * <p>
+ * A model can be swapped for another file at runtime, see {@link #swap}.
+ * Unloading or swapping a model only drops the registry's reference:
+ * generations already running keep theirs, and its weights are unmapped
+ * once the last one ends.
+ */
+@Singleton
+public class ModelRegistry {
+
+    @Value("${options.model_path}")
+    private String propModelPath;
+
+    @Value("${options.max_tokens}")
+    private int propMaxTokens;
+
+    @Value("${options.models:}")
+    private String propModels;
+
+    @Value("${options.model_cache_mb:0}")
+    private long propModelCacheMb;
+
+    /**
+     * @param bytes size of the mapped weights, 0 if not resident
+     */
+    public record Info(String name, Path path, boolean resident, long bytes) {
+    }
+
+    // reads the model of a file
+    @FunctionalInterface
+    interface Loader {
+        Llama load(Path path) throws IOException;
+    }
+
+    private static final class Entry {
+
+        Path path;
+        Llama model; // null unless resident
+        long bytes;
+
+        Entry(Path path) {
+            this.path = path;
+        }
+    }
+
+    // guarded by this, except that loading a model holds its entry's lock (entry first, then this)
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU first
+    private final List<Consumer<Llama>> unloadListeners = new CopyOnWriteArrayList<>();
+    private final Loader loader;
+    private String defaultName;
+    private long residentBytes;
+    private long loads;
+    private long unloads;
+    private long swaps;
+
+    @Inject
+    public ModelRegistry() {
+        this.loader = this::load;
+    }
+
+    /**
+     * Registry of the given options, whose models {@code loader} reads, e.g.
+     * in tests.
+     */
+    ModelRegistry(String modelPath, String models, long modelCacheMb, Loader loader) {
+        this.propModelPath = modelPath;
+        this.propModels = models;
+        this.propModelCacheMb = modelCacheMb;
+        this.loader = loader;
+        init();
+    }
+
+    @PostConstruct
+    void init() {
+        Path defaultPath = Path.of(propModelPath);
+        defaultName = defaultPath.getFileName().toString();
+        entries.put(defaultName, new Entry(defaultPath));
+        for (String pair : propModels.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("options.models takes name=path pairs: " + pair);
+            }
+            entries.put(pair.substring(0, separator).trim(), new Entry(Path.of(pair.substring(separator + 1).trim())));
+        }
+    }
+
+    public String defaultName() {
+        return defaultName;
+    }
+
+    public synchronized boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Model {@code name}, or the default one if null, loaded if needed.
+     *
+     * @throws IllegalArgumentException if there is no such model
+     */
+    public Llama get(String name) throws IOException {
+        Entry entry = entry(name == null ? defaultName : name);
+        Llama model;
+        synchronized (entry) { // one load per model at a time
+            synchronized (this) {
+                model = entry.model;
+            }
+            if (model == null) {
+                Path path = entry.path;
+                model = loader.load(path);
+                long bytes = Files.size(path);
+                synchronized (this) {
+                    entry.model = model;
+                    entry.bytes = bytes;
+                    residentBytes += bytes;
+                    loads++;
+                }
+            }
+        }
+        unloadBeyondBudget(entry);
+        return model;
+    }
+
+    /**
+     * Model {@code name}, or the default one if null, if resident.
+     */
+    public synchronized Llama peek(String name) {
+        Entry entry = entries.get(name == null ? defaultName : name);
+        return entry == null ? null : entry.model;
+    }
+
+    /**
+     * Loads the model in {@code path} and makes it model {@code name},
+     * replacing the one it had, if any, at once: requests that resolve
+     * {@code name} from then on get the new model, those already running
+     * keep the previous one.
+     *
+     * @return the new model
+     */
+    public Llama swap(String name, Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        Llama model = loader.load(path);
+        long bytes = Files.size(path);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.computeIfAbsent(name, n -> new Entry(path));
+        }
+        Llama previous;
+        synchronized (entry) { // after a load of the previous file in progress
+            synchronized (this) {
+                previous = entry.model;
+                residentBytes += bytes - entry.bytes;
+                entry.path = path;
+                entry.model = model;
+                entry.bytes = bytes;
+                loads++;
+                swaps++;
+            }
+        }
+        if (previous != null) {
+            unloaded(previous);
+        }
+        unloadBeyondBudget(entry);
+        return model;
+    }
+
+    /**
+     * Calls {@code listener} with every model the registry unloads or
+     * replaces, e.g. to drop state kept per model.
+     */
+    public void onUnload(Consumer<Llama> listener) {
+        unloadListeners.add(listener);
+    }
+
+    public synchronized List<Info> models() {
+        List<Info> models = new ArrayList<>(entries.size());
+        entries.forEach((name, entry) -> models.add(new Info(name, entry.path, entry.model != null, entry.bytes)));
+        return models;
+    }
+
+    public synchronized Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("models.resident", entries.values().stream().filter(e -> e.model != null).count());
+        metrics.put("models.residentBytes", residentBytes);
+        metrics.put("models.loads", loads);
+        metrics.put("models.unloads", unloads);
+        metrics.put("models.swaps", swaps);
+        return metrics;
+    }
+
+    private synchronized Entry entry(String name) {
+        Entry entry = entries.get(name); // also marks it as recently used
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown model " + name);
+        }
+        return entry;
+    }
+
+    // the context length is options.max_tokens, as for the default model
+    private Llama load(Path path) throws IOException {
+        Llama model = AOT.tryUsePreLoaded(path, propMaxTokens);
+        if (model == null) {
+            // No compatible preloaded model found, fully parse and load the file.
+            model = ModelLoader.loadModel(path, propMaxTokens, true);
+        }
+        return model;
+    }
+
+    // unloads the least recently used models, but not keep, while the resident ones exceed the budget
+    private void unloadBeyondBudget(Entry keep) {
+        List<Llama> unloaded = new ArrayList<>();
+        synchronized (this) {
+            long budget = propModelCacheMb << 20;
+            for (Entry entry : entries.values()) {
+                if (budget <= 0 || residentBytes <= budget) {
+                    break;
+                }
+                if (entry != keep && entry.model != null) {
+                    unloaded.add(entry.model);
+                    entry.model = null;
+                    residentBytes -= entry.bytes;
+                    entry.bytes = 0;
+                }
+            }
+        }
+        unloaded.forEach(this::unloaded);
+    }
+
+    private void unloaded(Llama model) {
+        synchronized (this) {
+            unloads++;
+        }
+        unloadListeners.forEach(listener -> listener.accept(model));
+    }
+}
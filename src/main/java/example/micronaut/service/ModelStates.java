@@ -0,0 +1,79 @@
+package example.micronaut.service;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import example.micronaut.model.Configuration;
+import example.micronaut.model.KvTier;
+import example.micronaut.model.Llama;
+import example.micronaut.model.StatePool;
+
+/**
+ * State pools and KV disk tiers of the models in use. Those of a model are
+ * dropped once it is unloaded (see {@link ModelRegistry#onUnload}), and not
+ * created again: a request that resolved the model earlier, e.g. while it
+ * waited for admission, gets states that are not pooled, so the model is
+ * not pinned once the request ends.
+ */
+final class ModelStates {
+
+    private final int batchsize;
+    private final int poolSize;
+    private final Path tierDirectory;
+    private final int hotBlocks;
+    private final long tierMaxBytes;
+    private final Map<Llama, StatePool> pools = new ConcurrentHashMap<>();
+    private final Map<Llama, KvTier> tiers = new ConcurrentHashMap<>();
+    // weakly, the weights of an unloaded model go with its last request
+    private final Set<Llama> unloaded = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /**
+     * @param poolSize idle states kept per model
+     * @param tierDirectory where the disk tiers map their files, null for
+     * none
+     */
+    ModelStates(int batchsize, int poolSize, Path tierDirectory, int hotBlocks, long tierMaxBytes) {
+        this.batchsize = batchsize;
+        this.poolSize = poolSize;
+        this.tierDirectory = tierDirectory;
+        this.hotBlocks = hotBlocks;
+        this.tierMaxBytes = tierMaxBytes;
+    }
+
+    StatePool statePool(Llama model) {
+        StatePool pool = pools.computeIfAbsent(model,
+                m -> unloaded.contains(m) ? null : new StatePool(m, batchsize, poolSize, tier(m), hotBlocks));
+        return pool != null ? pool : new StatePool(model, batchsize, 0);
+    }
+
+    void unload(Llama model) {
+        unloaded.add(model); // first: a pool being created now is removed below
+        pools.remove(model);
+        tiers.remove(model);
+    }
+
+    Collection<StatePool> pools() {
+        return pools.values();
+    }
+
+    Collection<KvTier> tiers() {
+        return tiers.values();
+    }
+
+    // null if there is no disk tier
+    private KvTier tier(Llama model) {
+        if (tierDirectory == null) {
+            return null;
+        }
+        return tiers.computeIfAbsent(model, m -> {
+            Configuration config = m.configuration();
+            int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+            return new KvTier(tierDirectory, kvDim, tierMaxBytes);
+        });
+    }
+}
@@ -0,0 +1,22 @@
+package example.micronaut.service;
+
+/**
+ * A request was shed by {@link Admission}: its queue was full or the request
+ * waited longer than the queue timeout. Answered with HTTP 429.
+ */
+public class OverloadedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public OverloadedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Suggested delay before retrying, for the {@code Retry-After} header.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
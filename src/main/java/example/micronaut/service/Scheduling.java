@@ -0,0 +1,50 @@
+package example.micronaut.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * How a request is scheduled, see {@link Admission} and
+ * {@link StepScheduler}.
+ *
+ * @param priority interactive requests go first, batch jobs use the spare
+ * capacity and may be preempted
+ * @param deadlineNanos {@link System#nanoTime()} by which the request should
+ * be running, {@link Long#MAX_VALUE} if none
+ * @param tenant who is accounted for the request's compute, for fair
+ * sharing between API keys
+ */
+public record Scheduling(Priority priority, long deadlineNanos, String tenant) {
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    public static final String ANONYMOUS = "anonymous";
+
+    public static final Scheduling DEFAULT = new Scheduling(Priority.INTERACTIVE, Long.MAX_VALUE, ANONYMOUS);
+
+    /**
+     * @param deadlineMillis time from now the request should be running
+     * within, null or non-positive if none
+     * @param apiKey the caller's API key, null if anonymous; only a digest is
+     * kept, so keys do not show up in metrics
+     */
+    public static Scheduling of(Priority priority, Long deadlineMillis, String apiKey) {
+        long deadline = deadlineMillis == null || deadlineMillis <= 0
+                ? Long.MAX_VALUE
+                : System.nanoTime() + deadlineMillis * 1_000_000;
+        return new Scheduling(priority, deadline, apiKey == null || apiKey.isBlank() ? ANONYMOUS : tenant(apiKey));
+    }
+
+    private static String tenant(String apiKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package example.micronaut.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import example.micronaut.model.ChatFormat;
+import example.micronaut.model.KvCache;
+import example.micronaut.model.KvSnapshot;
+
+/**
+ * Chat sessions kept between requests: the KV cache of the conversation so
+ * far and its latest token, not yet ingested, so a new turn only prefills
+ * the new message. Up to {@code capacity} idle sessions stay in memory; the
+ * least recently used beyond that are snapshotted to {@code directory} (see
+ * {@link KvSnapshot}) and restored from there on their next turn, also after
+ * a restart. Idle sessions whose cache has a disk tier are paged out to it
+ * (see {@link KvCache#pageOut()}), so they take little heap. A session takes
+ * one turn at a time.
+ * <p>
+ * Sessions belong to the tenant that started them (see
+ * {@link Scheduling#tenant()}): they are kept and snapshotted under their
+ * owner and id, in a directory per owner, so to other tenants the id is
+ * unknown.
+ */
+final class Sessions {
+
+    /**
+     * @param cache the conversation so far, owned by the session
+     * @param latestToken follows the cache, ingested first by the next turn
+     */
+    record Session(KvCache cache, int latestToken) {
+
+        /**
+         * Tokens the next turn starts with, before its message: the latest
+         * token, then the end of turn if the previous turn ended without
+         * one, e.g. on a stop string, its maximum length or cancellation.
+         */
+        List<Integer> resume(ChatFormat chatFormat) {
+            return chatFormat.getStopTokens().contains(latestToken)
+                    ? List.of(latestToken)
+                    : List.of(latestToken, chatFormat.endOfTurn);
+        }
+    }
+
+    // a session of its owner
+    private record Key(String owner, String id) {
+    }
+
+    // ids and owners name snapshot files and directories
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Path directory;
+    private final KvSnapshot.Compression compression;
+    private final int capacity;
+    private final LinkedHashMap<Key, Session> idle = new LinkedHashMap<>(16, 0.75f, true); // LRU first
+    private final Set<Key> busy = new HashSet<>(); // taking a turn, or being saved or restored
+
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder restored = new LongAdder();
+    private final LongAdder restoreNanos = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param directory where snapshots are kept, null to drop evicted
+     * sessions
+     * @param capacity idle sessions kept in memory
+     */
+    Sessions(Path directory, KvSnapshot.Compression compression, int capacity) {
+        this.directory = directory;
+        this.compression = compression;
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Takes session {@code id} of {@code owner} for a turn, from memory or
+     * else from its snapshot, restored into a cache of {@code newCache}; must
+     * be followed by {@link #checkin}.
+     *
+     * @return null if the session is new
+     * @throws IllegalArgumentException if {@code id} is not a valid id
+     * @throws IllegalStateException if the session is taking another turn
+     */
+    Session checkout(String owner, String id, Supplier<KvCache> newCache) throws IOException {
+        Key key = key(owner, id);
+        Session session = take(key);
+        if (session != null) {
+            return session;
+        }
+        try {
+            return load(key, newCache);
+        } catch (IOException | RuntimeException e) {
+            checkin(owner, id, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Ends the turn of session {@code id} of {@code owner}, which keeps
+     * {@code session}, or is dropped if null. Idle sessions beyond the
+     * capacity are snapshotted and released.
+     */
+    void checkin(String owner, String id, Session session) {
+        checkin(key(owner, id), session);
+    }
+
+    private void checkin(Key key, Session session) {
+        if (session != null) {
+            session.cache().pageOut();
+        }
+        List<Map.Entry<Key, Session>> evictions = new ArrayList<>();
+        synchronized (this) {
+            busy.remove(key);
+            if (session != null) {
+                idle.put(key, session);
+            }
+            Iterator<Map.Entry<Key, Session>> eldest = idle.entrySet().iterator();
+            while (idle.size() > capacity) {
+                Map.Entry<Key, Session> entry = eldest.next();
+                eldest.remove();
+                busy.add(entry.getKey()); // not restored from an older snapshot meanwhile
+                evictions.add(entry);
+            }
+        }
+        for (Map.Entry<Key, Session> entry : evictions) {
+            try {
+                if (directory != null) {
+                    write(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                System.err.println("Dropping session " + entry.getKey().id() + ", its snapshot failed: " + e);
+            } finally {
+                entry.getValue().cache().release();
+                evicted.increment();
+                synchronized (this) {
+                    busy.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshots idle session {@code id} of {@code owner}; it stays in memory.
+     *
+     * @return size of the snapshot in bytes
+     * @throws IllegalArgumentException if the session is unknown
+     */
+    long save(String owner, String id) throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("Session snapshots are disabled");
+        }
+        Key key = key(owner, id);
+        Session session = take(key);
+        if (session == null) {
+            checkin(key, null);
+            throw new IllegalArgumentException("Unknown session " + id);
+        }
+        try {
+            return write(key, session);
+        } finally {
+            checkin(key, session);
+        }
+    }
+
+    /**
+     * Loads the snapshot of session {@code id} of {@code owner} into a cache
+     * of {@code newCache}, replacing the idle session, if any.
+     *
+     * @return number of cached positions
+     * @throws NoSuchFileException if there is no snapshot
+     */
+    int restore(String owner, String id, Supplier<KvCache> newCache) throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("Session snapshots are disabled");
+        }
+        Key key = key(owner, id);
+        Session stale = take(key);
+        Session session = null;
+        try {
+            session = load(key, newCache);
+            if (session == null) {
+                throw new NoSuchFileException(id);
+            }
+            if (stale != null) {
+                stale.cache().release();
+            }
+            return session.cache().length();
+        } finally {
+            checkin(key, session != null ? session : stale);
+        }
+    }
+
+    synchronized Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions.idle", idle.size());
+        metrics.put("sessions.busy", busy.size());
+        metrics.put("sessions.saved", saved.sum());
+        metrics.put("sessions.savedBytes", savedBytes.sum());
+        metrics.put("sessions.restored", restored.sum());
+        long count = restored.sum();
+        metrics.put("sessions.averageRestoreMillis", count == 0 ? 0.0 : restoreNanos.sum() / 1e6 / count);
+        metrics.put("sessions.evicted", evicted.sum());
+        return metrics;
+    }
+
+    private static Key key(String owner, String id) {
+        if (!ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Session ids are 1 to 64 letters, digits, '-' or '_'");
+        }
+        if (!ID.matcher(owner).matches()) {
+            throw new IllegalArgumentException("Invalid session owner");
+        }
+        return new Key(owner, id);
+    }
+
+    private synchronized Session take(Key key) {
+        if (!busy.add(key)) {
+            throw new IllegalStateException("Session " + key.id() + " is busy");
+        }
+        return idle.remove(key);
+    }
+
+    private long write(Key key, Session session) throws IOException {
+        Path snapshot = snapshot(key);
+        Files.createDirectories(snapshot.getParent());
+        long bytes = KvSnapshot.save(snapshot, session.cache(), session.latestToken(), compression);
+        saved.increment();
+        savedBytes.add(bytes);
+        return bytes;
+    }
+
+    // the session's snapshot, null if none
+    private Session load(Key key, Supplier<KvCache> newCache) throws IOException {
+        if (directory == null || !Files.exists(snapshot(key))) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        KvCache cache = newCache.get();
+        int latestToken = KvSnapshot.restore(snapshot(key), cache);
+        restored.increment();
+        restoreNanos.add(System.nanoTime() - startNanos);
+        return new Session(cache, latestToken);
+    }
+
+    private Path snapshot(Key key) {
+        return directory.resolve(key.owner()).resolve(key.id() + ".kv");
+    }
+}
@@ -0,0 +1,218 @@
+package example.micronaut.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Orders the forward passes of concurrent generations. Each generation runs
+ * in a {@link Lane} and calls {@link #acquire} before every forward pass: it
+ * gives up the step slot it held and waits for one of {@code slots} slots.
+ * Free slots go to interactive lanes first, then by earliest deadline, then
+ * to the tenant that used the least compute lately (fair share), then first
+ * come first served. Interactive streams thus wait for at most the steps in
+ * flight, while batch jobs run whenever no interactive step is waiting.
+ * <p>
+ * Long prompts are prefilled in chunks, one step each, interleaved with the
+ * decode steps of the other lanes. Every round of steps has a budget of
+ * {@code stepTokens} tokens: decoding lanes take one token each and the
+ * prefilling lanes share the rest (see {@link #prefillTokens}), so a huge
+ * prompt does not stall the token streams of others.
+ */
+final class StepScheduler {
+
+    private static final long POLL_MILLIS = 20; // cancellation is noticed while waiting
+    private static final double USAGE_HALF_LIFE_SECONDS = 60;
+
+    /**
+     * The step slot of one generation, see {@link StepScheduler#acquire}.
+     */
+    final class Lane {
+
+        private final Scheduling scheduling;
+        private boolean holding;
+        private long grantedNanos;
+        private long waitingSinceNanos;
+        private long ticket; // arrival order while waiting
+        private long steps;
+        private long prefillStep = -2; // last step that asked for a prefill chunk, before or after its grant
+
+        private boolean prefilling() {
+            return prefillStep >= steps - 1;
+        }
+
+        private Lane(Scheduling scheduling) {
+            this.scheduling = scheduling;
+        }
+    }
+
+    // decayed compute seconds of a tenant, and its total
+    private static final class Usage {
+
+        double recent;
+        long updatedNanos = System.nanoTime();
+        double total;
+
+        double recent(long now) {
+            recent *= Math.pow(0.5, (now - updatedNanos) / 1e9 / USAGE_HALF_LIFE_SECONDS);
+            updatedNanos = now;
+            return recent;
+        }
+    }
+
+    private final int slots;
+    private final int stepTokens;
+    private final Set<Lane> lanes = new HashSet<>();
+    private final List<Lane> waiting = new ArrayList<>();
+    private final Map<String, Usage> usage = new HashMap<>();
+    private int busy;
+    private long arrivals;
+
+    private final Map<Scheduling.Priority, LongAdder> steps = new EnumMap<>(Scheduling.Priority.class);
+    private final Map<Scheduling.Priority, LongAdder> waitNanos = new EnumMap<>(Scheduling.Priority.class);
+
+    /**
+     * @param slots forward passes that may run at once, 0 for no limit
+     * @param stepTokens tokens per round of steps, at least 1
+     */
+    StepScheduler(int slots, int stepTokens) {
+        this.slots = slots;
+        this.stepTokens = Math.max(1, stepTokens);
+        for (Scheduling.Priority priority : Scheduling.Priority.values()) {
+            steps.put(priority, new LongAdder());
+            waitNanos.put(priority, new LongAdder());
+        }
+    }
+
+    synchronized Lane open(Scheduling scheduling) {
+        Lane lane = new Lane(scheduling);
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * Releases the slot of {@code lane}, if any, once its generation ended.
+     */
+    synchronized void close(Lane lane) {
+        release(lane);
+        lanes.remove(lane);
+    }
+
+    /**
+     * Releases the slot {@code lane} holds, if any, and waits for its next
+     * turn.
+     *
+     * @return false, without a slot, if {@code cancelled} became true while
+     * waiting
+     */
+    synchronized boolean acquire(Lane lane, BooleanSupplier cancelled) {
+        release(lane);
+        lane.waitingSinceNanos = System.nanoTime();
+        lane.ticket = arrivals++;
+        waiting.add(lane);
+        while (true) {
+            if (cancelled.getAsBoolean()) {
+                waiting.remove(lane);
+                notifyAll();
+                return false;
+            }
+            if (slots == 0 || (busy < slots && next() == lane)) {
+                waiting.remove(lane);
+                busy++;
+                lane.holding = true;
+                lane.steps++;
+                lane.grantedNanos = System.nanoTime();
+                steps.get(lane.scheduling.priority()).increment();
+                waitNanos.get(lane.scheduling.priority()).add(lane.grantedNanos - lane.waitingSinceNanos);
+                if (!waiting.isEmpty()) {
+                    notifyAll(); // more slots may be free
+                }
+                return true;
+            }
+            try {
+                wait(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                waiting.remove(lane);
+                notifyAll();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Gives up the slot {@code lane} holds, if any, e.g. while its generation
+     * waits for the client or when it ends; its compute time is charged to
+     * its tenant.
+     */
+    synchronized void release(Lane lane) {
+        if (!lane.holding) {
+            return;
+        }
+        lane.holding = false;
+        busy--;
+        long now = System.nanoTime();
+        Usage tenant = usage.computeIfAbsent(lane.scheduling.tenant(), t -> new Usage());
+        double seconds = (now - lane.grantedNanos) / 1e9;
+        tenant.recent = tenant.recent(now) + seconds;
+        tenant.total += seconds;
+        notifyAll();
+    }
+
+    /**
+     * Tokens the next prefill chunk of {@code lane} may ingest: the round's
+     * budget less one token per decoding lane, shared by the prefilling
+     * ones, and at least one. Marks {@code lane} as prefilling for its
+     * current or next step.
+     */
+    synchronized int prefillTokens(Lane lane) {
+        lane.prefillStep = lane.holding ? lane.steps : lane.steps + 1;
+        int prefilling = 0;
+        for (Lane other : lanes) {
+            if (other.prefilling()) {
+                prefilling++;
+            }
+        }
+        int decoding = lanes.size() - prefilling;
+        return Math.max(1, (stepTokens - decoding) / Math.max(1, prefilling));
+    }
+
+    private Lane next() {
+        long now = System.nanoTime();
+        Comparator<Lane> order = Comparator
+                .comparing((Lane lane) -> lane.scheduling.priority())
+                .thenComparingLong(lane -> lane.scheduling.deadlineNanos())
+                .thenComparingDouble(lane -> {
+                    Usage tenant = usage.get(lane.scheduling.tenant());
+                    return tenant == null ? 0 : tenant.recent(now);
+                })
+                .thenComparingLong(lane -> lane.ticket);
+        return waiting.stream().min(order).orElse(null);
+    }
+
+    synchronized Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("scheduler.slots", slots);
+        metrics.put("scheduler.busy", busy);
+        metrics.put("scheduler.waiting", waiting.size());
+        metrics.put("scheduler.stepTokens", stepTokens);
+        metrics.put("scheduler.prefilling", lanes.stream().filter(Lane::prefilling).count());
+        for (Scheduling.Priority priority : Scheduling.Priority.values()) {
+            String name = priority.name().toLowerCase();
+            long count = steps.get(priority).sum();
+            metrics.put("scheduler.steps." + name, count);
+            metrics.put("scheduler.averageStepWaitMillis." + name,
+                    count == 0 ? 0.0 : waitNanos.get(priority).sum() / 1e6 / count);
+        }
+        usage.forEach((tenant, u) -> metrics.put("scheduler.tenant." + tenant + ".computeSeconds", u.total));
+        return metrics;
+    }
+}
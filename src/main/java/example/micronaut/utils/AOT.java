@@ -58,17 +58,23 @@ public class AOT {
         }
     }
 
+    // models may be loaded concurrently, the preloaded one is read once
+    private synchronized PartialModel preLoaded() {
+        if (preLoaded == null) {
+            preLoaded = preLoadGGUF(propPreLoadGGUF);
+        }
+        return preLoaded;
+    }
+
     /**
      * Tries to reuse a compatible AOT preloaded model. The file name (base
      * name) must match with the preloaded file name. No checksum/hash is
      * checked for performance reasons.
      */
     public Llama tryUsePreLoaded(Path modelPath, int contextLength) throws IOException {
+        PartialModel preLoaded = preLoaded();
         if (preLoaded == null) {
-            preLoaded = preLoadGGUF(propPreLoadGGUF);
-            if (preLoaded == null) {
-                return null; // no pre-loaded model stored
-            }
+            return null; // no pre-loaded model stored
         }
         String optionsModel = modelPath.getFileName().toString();
         String preLoadedModel = preLoaded.modelFileName();
@@ -1,7 +1,10 @@
 package example.micronaut.utils;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.IntConsumer;
 import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
@@ -43,4 +46,12 @@ public class Parallel {
             }
         });
     }
+
+    /**
+     * Runs {@code task} asynchronously on the same pool the parallel loops
+     * above run on.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, ForkJoinPool.commonPool());
+    }
 }
@@ -3,15 +3,15 @@ package example.micronaut.utils;
 import java.util.random.RandomGenerator;
 import java.util.random.RandomGeneratorFactory;
 
-import example.micronaut.model.tensor.CategoricalSampler;
 import example.micronaut.model.tensor.Sampler;
-import example.micronaut.model.tensor.ToppSampler;
+import example.micronaut.model.tensor.SamplerChain;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
 public class SamplingUtils {
 
-    public Sampler selectSampler(int vocabularySize, float temperature, float topp, long rngSeed) {
+    public Sampler selectSampler(int vocabularySize, float temperature, float topp, int topk, float minp,
+            long rngSeed) {
         Sampler sampler;
         if (temperature == 0.0f) {
             // greedy argmax sampling: take the token with the highest probability
@@ -19,21 +19,8 @@ public class SamplingUtils {
         } else {
             // we sample from this distribution to get the next token
             RandomGenerator rng = RandomGeneratorFactory.getDefault().create(rngSeed);
-            Sampler innerSampler;
-            if (topp <= 0 || topp >= 1) {
-                // simply sample from the predicted probability distribution
-                innerSampler = new CategoricalSampler(rng);
-            } else {
-                // top-p (nucleus) sampling, clamping the least likely tokens to zero
-                innerSampler = new ToppSampler(vocabularySize, topp, rng);
-            }
-            sampler = logits -> {
-                // apply the temperature to the logits
-                logits.divideInPlace(0, logits.size(), temperature);
-                // apply softmax to the logits to get the probabilities for next token
-                logits.softmaxInPlace(0, logits.size());
-                return innerSampler.sampleToken(logits);
-            };
+            // top-k candidates first, temperature, softmax, min-p and top-p only run on those
+            sampler = new SamplerChain(vocabularySize, topk, temperature, topp, minp, rng);
         }
         return sampler;
     }
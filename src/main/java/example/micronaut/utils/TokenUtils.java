@@ -2,24 +2,38 @@ package example.micronaut.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 import example.micronaut.model.Configuration;
+import example.micronaut.model.KvCache;
 import example.micronaut.model.Llama;
 import example.micronaut.model.Pair;
+import example.micronaut.model.PromptTokens;
 import example.micronaut.model.State;
+import example.micronaut.model.TokenBuffer;
 import example.micronaut.model.Tokenizer;
 import example.micronaut.model.Vocabulary;
+import example.micronaut.model.grammar.ConstrainedSampler;
+import example.micronaut.model.speculative.Drafter;
+import example.micronaut.model.tensor.Candidates;
+import example.micronaut.model.tensor.FloatTensor;
 import example.micronaut.model.tensor.Sampler;
+import example.micronaut.model.tensor.SamplerChain;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
 public class TokenUtils {
 
+    // Above this top-k the per-block heaps of the fused classifier cost more
+    // than writing the full logits once.
+    private static final int FUSED_TOPK_LIMIT = 1024;
+
     public Tokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary) {
         String[] mergeLines = (String[]) metadata.get("tokenizer.ggml.merges");
         List<Pair<Integer, Integer>> merges = new ArrayList<>(mergeLines.length);
@@ -85,53 +99,128 @@ public class TokenUtils {
     public List<Integer> generateTokens(Llama model, State state, int startPosition, List<Integer> promptTokens,
             Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo,
             IntConsumer onTokenGenerated) {
+        return generateTokens(model, state, startPosition, PromptTokens.of(promptTokens), stopTokens, maxTokens,
+                sampler, echo, token -> {
+                    if (onTokenGenerated != null) {
+                        onTokenGenerated.accept(token);
+                    }
+                    return true;
+                });
+    }
+
+    /**
+     * Same as {@link #generateTokens(Llama, State, int, List, Set, int, Sampler, boolean, IntConsumer)},
+     * but ingests prompt tokens as they become available, so prefill can
+     * start while later parts of the prompt are still being tokenized.
+     * Like every generation loop here, it stops before the next forward pass
+     * once {@link State#isCancelled()}, returning the tokens so far.
+     *
+     * @param onTokenGenerated callback, if non-null, it's called every time a
+     * token is inferred; returning false ends generation after that token
+     * e.g. when a stop string completed
+     */
+    public List<Integer> generateTokens(Llama model, State state, int startPosition, PromptTokens promptTokens,
+            Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo,
+            IntPredicate onTokenGenerated) {
+        return generateTokens(model, state, startPosition, promptTokens, stopTokens, maxTokens, sampler, echo,
+                ContextPolicy.STOP, onTokenGenerated);
+    }
+
+    /**
+     * What a generation does once its KV cache is full.
+     * <p>
+     * Unless it stops, positions are evicted (see
+     * {@link TransformerUtils#evict}) and generation goes on at constant
+     * memory: the first {@code sinkTokens} positions (attention sinks) are
+     * always kept. Context shifting (StreamingLLM) drops the older half of
+     * the rest; heavy-hitter eviction (H2O) keeps the recent half and drops
+     * an eighth of the cache among the older positions, those that received
+     * the least attention so far.
+     *
+     * @param sinkTokens positions always kept, negative to stop instead
+     * @param budget positions kept per sequence, 0 for the context length
+     * @param heavyHitters evict the least attended positions rather than the
+     * oldest ones
+     */
+    public record ContextPolicy(int sinkTokens, int budget, boolean heavyHitters) {
+
+        public static final ContextPolicy STOP = new ContextPolicy(-1, 0, false);
+
+        public boolean continues() {
+            return sinkTokens >= 0;
+        }
+
+        int capacity(Configuration config) {
+            return budget > 0 ? Math.min(budget, config.contextLength) : config.contextLength;
+        }
+    }
+
+    /**
+     * Same as {@link #generateTokens(Llama, State, int, PromptTokens, Set, int, Sampler, boolean, IntPredicate)},
+     * doing what {@code context} says once the cache is full. A continuing
+     * generation may run past the context length, then {@code maxTokens}
+     * limits the generated tokens only, negative for no limit.
+     */
+    public List<Integer> generateTokens(Llama model, State state, int startPosition, PromptTokens promptTokens,
+            Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo, ContextPolicy context,
+            IntPredicate onTokenGenerated) {
         long startNanos = System.nanoTime();
         long startGen = 0;
         Tokenizer tokenizer = model.tokenizer();
         Configuration config = model.configuration();
-        List<Integer> generatedTokens = new ArrayList<>(Math.min(maxTokens, 1024));
+        List<Integer> generatedTokens = new ArrayList<>(Math.clamp(maxTokens, 0, 1024));
         int token = state.latestToken; // BOS?
         int nextToken;
-        int promptIndex = 0;
+        int[] batch = new int[state.batchsize];
+        Candidates greedy = new Candidates(1);
 
-        if (maxTokens < 0 || config.contextLength < maxTokens) {
-            maxTokens = config.contextLength;
+        boolean continuing = context.continues();
+        int limit = continuing ? context.capacity(config) : maxTokens; // positions
+        if (limit < 0 || config.contextLength < limit) {
+            limit = config.contextLength;
+        }
+        int maxGenerated = continuing && maxTokens >= 0 ? maxTokens : Integer.MAX_VALUE;
+        if (context.heavyHitters()) {
+            state.kvCache.trackAttention(config.numberOfHeads);
         }
 
-        for (int position = startPosition; position < maxTokens; ++position) {
-            if (promptIndex < promptTokens.size()) {
-                final int nTokens = Math.min(Math.min(maxTokens - position, promptTokens.size() - promptIndex), state.batchsize);
-                final int[] tokens = new int[nTokens];
+        for (int position = startPosition; (continuing || position < limit) && generatedTokens.size() < maxGenerated
+                && !state.isCancelled(); ++position) {
+            if (continuing) {
+                position = makeRoom(model, state.kvCache, context, position);
+            }
+            if (promptTokens.hasNext()) {
+                final int promptIndex = promptTokens.consumed();
+                final int nTokens = promptTokens.next(batch, Math.min(limit - position, state.prefillChunk()));
+                final int[] tokens = Arrays.copyOf(batch, nTokens);
 
                 for (int i = 0; i < nTokens; i++) {
-                    tokens[i] = promptTokens.get(promptIndex + i);
                     if (echo) {
-                        System.err.print(Tokenizer.replaceControlCharacters(tokenizer.decode(List.of(tokens[i]))));
+                        System.err.print(Tokenizer.replaceControlCharacters(tokenizer.decode(tokens[i])));
                     }
                 }
                 if (echo) {
-                    System.out.format("position=%d, promptIdx=%d, promptSize=%d, tokens=%s%n", position, promptIndex, promptTokens.size(), Arrays.toString(tokens));
+                    System.out.format("position=%d, promptIdx=%d, tokens=%s%n", position, promptIndex, Arrays.toString(tokens));
                 }
                 // Only compute logits on the very last batch.
-                boolean computeLogits = promptIndex + nTokens >= promptTokens.size();
-                TransformerUtils.forward(model, state, tokens, position, computeLogits);
-                position += nTokens - 1; // -1 -> incremented later in the for loop
-                promptIndex += nTokens;
-                if (promptIndex < promptTokens.size()) {
+                if (promptTokens.hasNext()) {
+                    TransformerUtils.forward(model, state, tokens, position, false);
+                    position += nTokens - 1; // -1 -> incremented later in the for loop
                     continue;
                 }
+                nextToken = forwardAndSample(model, state, tokens, position, sampler, greedy);
+                position += nTokens - 1;
                 startGen = System.nanoTime();
             } else {
-                TransformerUtils.forward(model, state, new int[]{token}, position, true);
+                nextToken = forwardAndSample(model, state, new int[]{token}, position, sampler, greedy);
             }
-            nextToken = sampler.sampleToken(state.logits);
             if (echo) {
                 // log inferred token
-                System.err.print(Tokenizer.replaceControlCharacters(model.tokenizer().decode(List.of(nextToken))));
+                System.err.print(Tokenizer.replaceControlCharacters(tokenizer.decode(nextToken)));
             }
             generatedTokens.add(nextToken);
-            if (onTokenGenerated != null) {
-                onTokenGenerated.accept(nextToken);
+            if (onTokenGenerated != null && !onTokenGenerated.test(nextToken)) {
+                break;
             }
             if (stopTokens.contains(nextToken)) {
                 break;
@@ -143,9 +232,654 @@ public class TokenUtils {
         long promptNanos = startGen - startNanos;
         long genNanos = elapsedNanos - startGen + startNanos;
         System.err.printf("%nprompt: %.2f tokens/s (%d) generation: %.2f tokens/s (%d)%n/n/n",
-                promptTokens.size() / (promptNanos / 1_000_000_000.0), promptTokens.size(),
+                promptTokens.consumed() / (promptNanos / 1_000_000_000.0), promptTokens.consumed(),
                 generatedTokens.size() / (genNanos / 1_000_000_000.0), generatedTokens.size());
 
         return generatedTokens;
     }
+
+    /**
+     * Speculative decoding: {@code drafter} proposes up to
+     * {@code draftTokens} tokens, the target model verifies all of them in
+     * one forward pass over [last token, draft tokens], with logits for
+     * every row, and each draft token is accepted or replaced by rejection
+     * sampling (see {@link SamplerChain#verify}), so the output is
+     * distributed exactly as with regular decoding; with
+     * {@link Sampler#ARGMAX} it is identical. Every step yields between one
+     * and {@code draftTokens + 1} tokens for one pass over the target
+     * weights. Keys and values of rejected rows stay in the cache and are
+     * overwritten by the next step, attention never reads past the current
+     * position.
+     * <p>
+     * Starts from an empty state. Constrained and full-vocabulary samplers,
+     * and continuing context policies, fall back to
+     * {@link #generateTokens(Llama, State, int, PromptTokens, Set, int, Sampler, boolean, ContextPolicy, IntPredicate)}.
+     *
+     * @param drafter proposes draft tokens, null to decode normally; it is
+     * released when generation ends
+     * @param draftTokens maximum number of draft tokens per step
+     */
+    public List<Integer> generateTokens(Llama model, State state, PromptTokens promptTokens, Set<Integer> stopTokens,
+            int maxTokens, Sampler sampler, Drafter drafter, int draftTokens, boolean echo, ContextPolicy context,
+            IntPredicate onTokenGenerated) {
+        SamplerChain chain = sampler instanceof SamplerChain c && c.topK() <= FUSED_TOPK_LIMIT ? c : null;
+        if (drafter == null || draftTokens <= 0 || state.batchsize < 2 || context.continues()
+                || (sampler != Sampler.ARGMAX && chain == null)) {
+            return generateTokens(model, state, 0, promptTokens, stopTokens, maxTokens, sampler, echo, context,
+                    onTokenGenerated);
+        }
+        long startNanos = System.nanoTime();
+        Tokenizer tokenizer = model.tokenizer();
+        Configuration config = model.configuration();
+        if (maxTokens < 0 || config.contextLength < maxTokens) {
+            maxTokens = config.contextLength;
+        }
+        TokenBuffer history = new TokenBuffer();
+        Prefill prefill = prefillAllButLast(model, state, 0, promptTokens, history);
+        long startGen = System.nanoTime();
+        List<Integer> generatedTokens = new ArrayList<>(Math.min(maxTokens, 1024));
+        int[] draft = new int[Math.min(draftTokens, state.batchsize - 1)];
+        Candidates greedy = new Candidates(1);
+        int token = prefill.token();
+        long drafted = 0;
+        long accepted = 0;
+
+        try {
+            generation:
+            for (int position = prefill.position(); position < maxTokens && !state.isCancelled(); ) {
+                int proposed = drafter.propose(history, Math.min(draft.length, maxTokens - position - 1), draft);
+                int[] tokens = new int[proposed + 1];
+                tokens[0] = token;
+                System.arraycopy(draft, 0, tokens, 1, proposed);
+                TransformerUtils.forwardLayers(model, state, tokens, position);
+                // row i predicts the token following tokens[i]
+                int kept = 0;
+                int nextToken = -1;
+                while (kept < proposed && nextToken < 0) {
+                    nextToken = verifyRow(model, state, kept, chain, greedy, draft[kept], drafter.distribution(kept));
+                    if (nextToken < 0) {
+                        kept++;
+                    }
+                }
+                if (nextToken < 0) {
+                    nextToken = sampleRow(model, state, proposed, sampler, greedy);
+                }
+                drafter.accepted(kept);
+                drafted += proposed;
+                accepted += kept;
+                for (int i = 0; i <= kept; i++) {
+                    int t = i < kept ? draft[i] : nextToken;
+                    if (echo) {
+                        System.err.print(Tokenizer.replaceControlCharacters(tokenizer.decode(t)));
+                    }
+                    generatedTokens.add(t);
+                    history.add(t);
+                    if ((onTokenGenerated != null && !onTokenGenerated.test(t)) || stopTokens.contains(t)) {
+                        break generation;
+                    }
+                }
+                position += kept + 1;
+                state.latestToken = token = nextToken;
+            }
+        } finally {
+            drafter.release();
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long promptNanos = startGen - startNanos;
+        long genNanos = elapsedNanos - promptNanos;
+        System.err.printf("%nprompt: %.2f tokens/s (%d) generation: %.2f tokens/s (%d)"
+                + " draft acceptance: %.1f%% (%d/%d)%n",
+                promptTokens.consumed() / (promptNanos / 1_000_000_000.0), promptTokens.consumed(),
+                generatedTokens.size() / (genNanos / 1_000_000_000.0), generatedTokens.size(),
+                drafted == 0 ? 0.0 : 100.0 * accepted / drafted, accepted, drafted);
+
+        return generatedTokens;
+    }
+
+    /**
+     * Verifies {@code draftToken} against the target distribution of
+     * {@code state.x[row]}: -1 if it is accepted, the token to take instead
+     * otherwise. Greedy verification accepts exactly the target's argmax.
+     */
+    private int verifyRow(Llama model, State state, int row, SamplerChain chain, Candidates greedy, int draftToken,
+            Candidates distribution) {
+        if (chain == null) {
+            TransformerUtils.candidates(model, state, row, greedy, null);
+            return greedy.token(0) == draftToken ? -1 : greedy.token(0);
+        }
+        TransformerUtils.candidates(model, state, row, chain.candidates(), null);
+        return chain.verify(chain.candidates(), distribution, draftToken);
+    }
+
+    /**
+     * Scores a sequence: log-probability of every token given the previous
+     * ones, i.e. element {@code i} is log p({@code tokens[i + 1]} |
+     * {@code tokens[0..i]}). {@code tokens[0]} is ingested at
+     * {@code position}, after whatever {@code state} already holds. Runs in
+     * batches of {@code state.batchsize} positions, prefill-only.
+     */
+    public float[] logProbs(Llama model, State state, int position, int[] tokens) {
+        float[] logProbs = new float[Math.max(0, tokens.length - 1)];
+        float[] batch = new float[state.batchsize];
+        for (int from = 0; from < logProbs.length; from += state.batchsize) {
+            int n = Math.min(state.batchsize, logProbs.length - from);
+            TransformerUtils.forwardLogProbs(model, state, Arrays.copyOfRange(tokens, from, from + n), position + from,
+                    Arrays.copyOfRange(tokens, from + 1, from + n + 1), batch);
+            System.arraycopy(batch, 0, logProbs, from, n);
+        }
+        return logProbs;
+    }
+
+    /**
+     * Same as {@link #logProbs(Llama, State, int, int[])} from position 0,
+     * over a sequence of any length: whenever the cache is full, positions
+     * are evicted as {@code context} says, so later tokens are scored against
+     * what is left, e.g. to measure the perplexity cost of a KV budget.
+     *
+     * @param context a continuing policy
+     */
+    public float[] logProbs(Llama model, State state, int[] tokens, ContextPolicy context) {
+        if (context.heavyHitters()) {
+            state.kvCache.trackAttention(model.configuration().numberOfHeads);
+        }
+        int capacity = context.capacity(model.configuration());
+        float[] logProbs = new float[Math.max(0, tokens.length - 1)];
+        float[] batch = new float[state.batchsize];
+        int position = 0;
+        for (int from = 0; from < logProbs.length; ) {
+            position = makeRoom(model, state.kvCache, context, position);
+            int n = Math.min(Math.min(state.batchsize, capacity - position), logProbs.length - from);
+            TransformerUtils.forwardLogProbs(model, state, Arrays.copyOfRange(tokens, from, from + n), position,
+                    Arrays.copyOfRange(tokens, from + 1, from + n + 1), batch);
+            System.arraycopy(batch, 0, logProbs, from, n);
+            from += n;
+            position += n;
+        }
+        return logProbs;
+    }
+
+    // evicts positions once the cache is full (position == capacity), returns the position to write next
+    private int makeRoom(Llama model, KvCache cache, ContextPolicy context, int position) {
+        int capacity = context.capacity(model.configuration());
+        if (position < capacity) {
+            return position;
+        }
+        int keep = Math.min(context.sinkTokens(), capacity / 4);
+        BitSet dropped;
+        if (context.heavyHitters()) {
+            dropped = cache.leastAttended(keep, position - capacity / 2, Math.max(1, capacity / 8));
+        } else {
+            dropped = new BitSet();
+            dropped.set(keep, keep + (position - keep) / 2);
+        }
+        TransformerUtils.evict(model, cache, dropped);
+        return position - dropped.cardinality();
+    }
+
+    /**
+     * How the hidden states of an input's tokens are reduced to one
+     * embedding.
+     */
+    public enum Pooling {
+        MEAN, LAST
+    }
+
+    /**
+     * Embeddings of several inputs: the final hidden states (after the final
+     * RMSNorm, the classifier is skipped) pooled over every input's tokens,
+     * optionally L2-normalized. The tokens of all inputs are packed into
+     * rows of batches of {@code state.batchsize} (see
+     * {@link TransformerUtils#forwardBatch}), so short inputs share one
+     * batch; each input gets its own paged {@link KvCache}, released as soon
+     * as the input is done.
+     *
+     * @param inputs token ids of every input, none empty
+     */
+    public float[][] embed(Llama model, State state, List<int[]> inputs, Pooling pooling, boolean normalize) {
+        Configuration config = model.configuration();
+        int dim = config.dim;
+        int kvDim = state.kvCache.kvDim();
+        float[][] embeddings = new float[inputs.size()][dim];
+        KvCache[] caches = new KvCache[inputs.size()];
+        int[] tokens = new int[state.batchsize];
+        int[] positions = new int[state.batchsize];
+        int[] owners = new int[state.batchsize];
+        KvCache[] rowCaches = new KvCache[state.batchsize];
+        for (int i = 0; i < inputs.size(); i++) {
+            int length = inputs.get(i).length;
+            if (length == 0 || length > config.contextLength) {
+                throw new IllegalArgumentException("Input " + i + " has " + length
+                        + " tokens, must be in [1, " + config.contextLength + "]");
+            }
+        }
+        int input = 0;
+        int offset = 0;
+        while (input < inputs.size()) {
+            int rows = 0;
+            while (rows < state.batchsize && input < inputs.size()) {
+                int[] inputTokens = inputs.get(input);
+                if (offset == 0) {
+                    caches[input] = new KvCache(config.numberOfLayers, config.contextLength, kvDim);
+                }
+                tokens[rows] = inputTokens[offset];
+                positions[rows] = offset;
+                owners[rows] = input;
+                rowCaches[rows] = caches[input];
+                rows++;
+                if (++offset == inputTokens.length) {
+                    input++;
+                    offset = 0;
+                }
+            }
+            TransformerUtils.forwardBatch(model, state, Arrays.copyOf(tokens, rows), Arrays.copyOf(positions, rows),
+                    Arrays.copyOf(rowCaches, rows));
+            TransformerUtils.finalNorm(model, state, rows);
+            for (int r = 0; r < rows; r++) {
+                float[] embedding = embeddings[owners[r]];
+                FloatTensor x = state.x[r];
+                if (pooling == Pooling.MEAN) {
+                    for (int i = 0; i < dim; i++) {
+                        embedding[i] += x.getFloat(i);
+                    }
+                } else if (positions[r] == inputs.get(owners[r]).length - 1) {
+                    for (int i = 0; i < dim; i++) {
+                        embedding[i] = x.getFloat(i);
+                    }
+                }
+            }
+            // inputs before the current one are complete
+            for (int i = owners[0]; i < input; i++) {
+                if (caches[i] != null) {
+                    caches[i].release();
+                    caches[i] = null;
+                }
+            }
+        }
+        for (int e = 0; e < embeddings.length; e++) {
+            float[] embedding = embeddings[e];
+            float scale = pooling == Pooling.MEAN ? 1f / inputs.get(e).length : 1f;
+            if (normalize) {
+                double norm = 0;
+                for (float value : embedding) {
+                    norm += value * value;
+                }
+                scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 1f;
+            }
+            for (int i = 0; i < dim; i++) {
+                embedding[i] *= scale;
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Runs the forward pass and samples the next token from the last row.
+     */
+    private int forwardAndSample(Llama model, State state, int[] tokens, int position, Sampler sampler,
+            Candidates greedy) {
+        TransformerUtils.forwardLayers(model, state, tokens, position);
+        return sampleRow(model, state, tokens.length - 1, sampler, greedy);
+    }
+
+    /**
+     * Samples a token from the final hidden state {@code state.x[row]}.
+     * Greedy and top-k samplers use the fused classifier, which only keeps
+     * the top candidates and never writes the full logits; any other sampler
+     * gets {@code state.logits}. A {@link ConstrainedSampler} mask is applied
+     * inside the fused classifier, disallowed tokens are not even scored.
+     */
+    private int sampleRow(Llama model, State state, int row, Sampler sampler, Candidates greedy) {
+        ConstrainedSampler constrained = sampler instanceof ConstrainedSampler c ? c : null;
+        Sampler inner = constrained != null ? constrained.delegate() : sampler;
+        BitSet allowed = constrained != null ? constrained.allowedTokens() : null;
+        int nextToken;
+        if (inner == Sampler.ARGMAX) {
+            TransformerUtils.candidates(model, state, row, greedy, allowed);
+            nextToken = greedy.token(0);
+        } else if (inner instanceof SamplerChain chain && chain.topK() <= FUSED_TOPK_LIMIT) {
+            TransformerUtils.candidates(model, state, row, chain.candidates(), allowed);
+            nextToken = chain.sampleToken(chain.candidates());
+        } else {
+            TransformerUtils.logits(model, state, row);
+            return sampler.sampleToken(state.logits); // masks and advances the constraint itself
+        }
+        if (constrained != null) {
+            constrained.accept(nextToken);
+        }
+        return nextToken;
+    }
+
+    /**
+     * Callback of {@link #generateParallel}, returns false to end the branch.
+     */
+    @FunctionalInterface
+    public interface BranchTokenCallback {
+        boolean accept(int branch, int token);
+    }
+
+    /**
+     * Samples {@code samplers.length} independent completions of the same
+     * prompt.
+     * <p>
+     * The prompt is ingested once into {@code state}; every branch then gets
+     * a copy-on-write fork of its {@link KvCache}, so the prompt's keys and
+     * values are shared, and all live branches decode together, one row each
+     * in {@link TransformerUtils#forwardBatch}. {@code state} keeps the
+     * prompt only.
+     *
+     * @param samplers one per branch, e.g. with different seeds
+     * @param onTokenGenerated callback, if non-null, it's called every time
+     * a branch infers a token
+     * @return generated tokens of every branch, including the stop token, if
+     * any
+     */
+    public List<List<Integer>> generateParallel(Llama model, State state, int startPosition,
+            PromptTokens promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler[] samplers,
+            BranchTokenCallback onTokenGenerated) {
+        Configuration config = model.configuration();
+        if (maxTokens < 0 || config.contextLength < maxTokens) {
+            maxTokens = config.contextLength;
+        }
+        int n = samplers.length;
+        Prefill prefill = prefillAllButLast(model, state, startPosition, promptTokens, null);
+        List<List<Integer>> generated = new ArrayList<>(n);
+        KvCache[] caches = new KvCache[n];
+        int[] lastTokens = new int[n];
+        for (int b = 0; b < n; b++) {
+            generated.add(new ArrayList<>());
+            caches[b] = state.kvCache.fork();
+            lastTokens[b] = prefill.token();
+        }
+        boolean[] finished = new boolean[n];
+        Candidates greedy = new Candidates(1);
+        int[] live = new int[n];
+        for (int position = prefill.position(); position < maxTokens && !state.isCancelled(); position++) {
+            int liveCount = 0;
+            for (int b = 0; b < n; b++) {
+                if (!finished[b]) {
+                    live[liveCount++] = b;
+                }
+            }
+            if (liveCount == 0) {
+                break;
+            }
+            for (int from = 0; from < liveCount; from += state.batchsize) {
+                int rows = Math.min(state.batchsize, liveCount - from);
+                int[] tokens = new int[rows];
+                int[] positions = new int[rows];
+                KvCache[] rowCaches = new KvCache[rows];
+                for (int r = 0; r < rows; r++) {
+                    int b = live[from + r];
+                    tokens[r] = lastTokens[b];
+                    positions[r] = position;
+                    rowCaches[r] = caches[b];
+                }
+                TransformerUtils.forwardBatch(model, state, tokens, positions, rowCaches);
+                for (int r = 0; r < rows; r++) {
+                    int b = live[from + r];
+                    int nextToken = sampleRow(model, state, r, samplers[b], greedy);
+                    generated.get(b).add(nextToken);
+                    lastTokens[b] = nextToken;
+                    if (stopTokens.contains(nextToken)
+                            || (onTokenGenerated != null && !onTokenGenerated.accept(b, nextToken))) {
+                        finished[b] = true;
+                    }
+                }
+            }
+        }
+        for (KvCache cache : caches) {
+            cache.release();
+        }
+        return generated;
+    }
+
+    /**
+     * Generates completions of several prompts as one batch. Every prompt
+     * gets its own paged {@link KvCache}; all prompt tokens but the last are
+     * packed into prefill batches of {@link State#prefillChunk()} rows, then all
+     * live sequences decode together, one row each in
+     * {@link TransformerUtils#forwardBatch}, at their own positions.
+     *
+     * @param prompts token ids of every prompt, none empty
+     * @param samplers one per prompt
+     * @param maxTokens maximum length of every sequence, prompt included
+     * @param onTokenGenerated callback, if non-null, it's called every time
+     * a sequence infers a token; the branch index is the prompt index
+     * @return generated tokens of every prompt, including the stop token, if
+     * any
+     */
+    public List<List<Integer>> generateBatch(Llama model, State state, List<int[]> prompts, Set<Integer> stopTokens,
+            int maxTokens, Sampler[] samplers, BranchTokenCallback onTokenGenerated) {
+        Configuration config = model.configuration();
+        if (maxTokens < 0 || config.contextLength < maxTokens) {
+            maxTokens = config.contextLength;
+        }
+        int n = prompts.size();
+        KvCache[] caches = new KvCache[n];
+        int[] lastTokens = new int[n];
+        int[] positions = new int[n];
+        boolean[] finished = new boolean[n];
+        List<List<Integer>> generated = new ArrayList<>(n);
+        for (int b = 0; b < n; b++) {
+            int[] prompt = prompts.get(b);
+            if (prompt.length == 0) {
+                throw new IllegalArgumentException("Empty prompt " + b);
+            }
+            caches[b] = new KvCache(config.numberOfLayers, config.contextLength, state.kvCache.kvDim());
+            lastTokens[b] = prompt[prompt.length - 1];
+            positions[b] = prompt.length - 1;
+            finished[b] = positions[b] >= maxTokens;
+            generated.add(new ArrayList<>());
+        }
+
+        // prefill: the prompts' tokens but the last, packed into rows
+        int[] tokens = new int[state.batchsize];
+        int[] rowPositions = new int[state.batchsize];
+        KvCache[] rowCaches = new KvCache[state.batchsize];
+        int rows = 0;
+        int chunk = 0;
+        prefill:
+        for (int b = 0; b < n; b++) {
+            for (int p = 0; p < positions[b] && !finished[b]; p++) {
+                if (rows == 0) {
+                    chunk = state.prefillChunk();
+                }
+                tokens[rows] = prompts.get(b)[p];
+                rowPositions[rows] = p;
+                rowCaches[rows] = caches[b];
+                if (++rows == chunk) {
+                    if (state.isCancelled()) {
+                        break prefill;
+                    }
+                    TransformerUtils.prefillBatch(model, state, Arrays.copyOf(tokens, rows),
+                            Arrays.copyOf(rowPositions, rows), Arrays.copyOf(rowCaches, rows));
+                    rows = 0;
+                }
+            }
+        }
+        if (rows > 0 && !state.isCancelled()) {
+            TransformerUtils.prefillBatch(model, state, Arrays.copyOf(tokens, rows),
+                    Arrays.copyOf(rowPositions, rows), Arrays.copyOf(rowCaches, rows));
+        }
+
+        Candidates greedy = new Candidates(1);
+        int[] live = new int[n];
+        while (!state.isCancelled()) {
+            int liveCount = 0;
+            for (int b = 0; b < n; b++) {
+                if (!finished[b]) {
+                    live[liveCount++] = b;
+                }
+            }
+            if (liveCount == 0) {
+                break;
+            }
+            for (int from = 0; from < liveCount; from += state.batchsize) {
+                rows = Math.min(state.batchsize, liveCount - from);
+                for (int r = 0; r < rows; r++) {
+                    int b = live[from + r];
+                    tokens[r] = lastTokens[b];
+                    rowPositions[r] = positions[b];
+                    rowCaches[r] = caches[b];
+                }
+                TransformerUtils.forwardBatch(model, state, Arrays.copyOf(tokens, rows),
+                        Arrays.copyOf(rowPositions, rows), Arrays.copyOf(rowCaches, rows));
+                for (int r = 0; r < rows; r++) {
+                    int b = live[from + r];
+                    int nextToken = sampleRow(model, state, r, samplers[b], greedy);
+                    generated.get(b).add(nextToken);
+                    lastTokens[b] = nextToken;
+                    if (++positions[b] >= maxTokens || stopTokens.contains(nextToken)
+                            || (onTokenGenerated != null && !onTokenGenerated.accept(b, nextToken))) {
+                        finished[b] = true;
+                    }
+                }
+            }
+        }
+        for (KvCache cache : caches) {
+            cache.release();
+        }
+        return generated;
+    }
+
+    // one hypothesis of the beam search, score is its total log-probability
+    private record Beam(List<Integer> tokens, float score, KvCache cache, int lastToken) {
+    }
+
+    /**
+     * Beam search: keeps the {@code beamWidth} most likely continuations at
+     * every step, scored by total log-probability, and returns up to
+     * {@code beamWidth} hypotheses, best first (ranked by log-probability per
+     * token). Beams live in copy-on-write forks of the prompt's
+     * {@link KvCache}: when a beam is extended with several tokens its cache
+     * is forked, not copied, and all live beams decode as one batch.
+     *
+     * @return generated tokens of every hypothesis, including the stop token,
+     * if any
+     */
+    public List<List<Integer>> beamSearch(Llama model, State state, int startPosition, PromptTokens promptTokens,
+            Set<Integer> stopTokens, int maxTokens, int beamWidth) {
+        Configuration config = model.configuration();
+        if (maxTokens < 0 || config.contextLength < maxTokens) {
+            maxTokens = config.contextLength;
+        }
+        Prefill prefill = prefillAllButLast(model, state, startPosition, promptTokens, null);
+        List<Beam> beams = new ArrayList<>(List.of(new Beam(List.of(), 0f, state.kvCache.fork(), prefill.token())));
+        List<Beam> done = new ArrayList<>();
+        // enough candidates per beam that stop tokens cannot crowd out the continuations
+        Candidates[] candidates = new Candidates[beamWidth];
+        for (int i = 0; i < beamWidth; i++) {
+            candidates[i] = new Candidates(2 * beamWidth);
+        }
+        for (int position = prefill.position(); position < maxTokens && !beams.isEmpty()
+                && done.size() < beamWidth && !state.isCancelled(); position++) {
+            // (beam index, token, score) of every expansion
+            List<float[]> expansions = new ArrayList<>();
+            for (int from = 0; from < beams.size(); from += state.batchsize) {
+                int rows = Math.min(state.batchsize, beams.size() - from);
+                int[] tokens = new int[rows];
+                int[] positions = new int[rows];
+                KvCache[] rowCaches = new KvCache[rows];
+                for (int r = 0; r < rows; r++) {
+                    Beam beam = beams.get(from + r);
+                    tokens[r] = beam.lastToken();
+                    positions[r] = position;
+                    rowCaches[r] = beam.cache();
+                }
+                TransformerUtils.forwardBatch(model, state, tokens, positions, rowCaches);
+                for (int r = 0; r < rows; r++) {
+                    Candidates c = candidates[from + r];
+                    TransformerUtils.candidates(model, state, r, c, null);
+                    float score = beams.get(from + r).score();
+                    for (int i = 0; i < c.size(); i++) {
+                        float logProb = c.logit(i) - c.logSumExp();
+                        expansions.add(new float[]{from + r, c.token(i), score + logProb});
+                    }
+                }
+            }
+            expansions.sort((x, y) -> Float.compare(y[2], x[2]));
+            List<Beam> next = new ArrayList<>(beamWidth);
+            for (float[] expansion : expansions) {
+                if (next.size() == beamWidth) {
+                    break;
+                }
+                Beam parent = beams.get((int) expansion[0]);
+                int token = (int) expansion[1];
+                List<Integer> tokens = new ArrayList<>(parent.tokens().size() + 1);
+                tokens.addAll(parent.tokens());
+                tokens.add(token);
+                if (stopTokens.contains(token)) {
+                    if (done.size() < beamWidth) {
+                        done.add(new Beam(tokens, expansion[2], null, token));
+                    }
+                } else {
+                    next.add(new Beam(tokens, expansion[2], parent.cache().fork(), token));
+                }
+            }
+            for (Beam beam : beams) {
+                beam.cache().release();
+            }
+            beams = next;
+        }
+        for (Beam beam : beams) {
+            beam.cache().release();
+            done.add(beam); // ran out of tokens, still a hypothesis
+        }
+        done.sort((x, y) -> Float.compare(y.score() / Math.max(1, y.tokens().size()),
+                x.score() / Math.max(1, x.tokens().size())));
+        return done.stream().limit(beamWidth).map(Beam::tokens).toList();
+    }
+
+    /**
+     * Recomputes the keys and values of the next {@link State#prefillChunk()}
+     * of {@code tokens}, from position {@code from}, into
+     * {@code state.kvCache}, e.g. after its blocks were dropped (see
+     * {@link KvCache#tokens()}). No logits are computed; the activation
+     * buffers of {@code state} are overwritten.
+     *
+     * @return the position to continue from
+     */
+    public int recompute(Llama model, State state, int[] tokens, int from) {
+        int to = Math.min(tokens.length, from + state.prefillChunk());
+        TransformerUtils.forward(model, state, Arrays.copyOfRange(tokens, from, to), from, false);
+        return to;
+    }
+
+    // last prompt token, held back, and its position: decoding starts by ingesting it
+    private record Prefill(int token, int position) {
+    }
+
+    /**
+     * Ingests all prompt tokens but the last one without computing logits.
+     * With an empty prompt, decoding starts from {@code state.latestToken}.
+     * Stops early if the state is cancelled.
+     *
+     * @param history if non-null, receives all prompt tokens, the held back
+     * one included
+     */
+    private Prefill prefillAllButLast(Llama model, State state, int startPosition, PromptTokens promptTokens,
+            TokenBuffer history) {
+        int[] batch = new int[state.batchsize];
+        int position = startPosition;
+        int heldBack = state.latestToken;
+        while (promptTokens.hasNext() && !state.isCancelled()) {
+            int nTokens = promptTokens.next(batch, state.prefillChunk());
+            int ingest = nTokens;
+            if (!promptTokens.hasNext()) {
+                heldBack = batch[--ingest];
+            }
+            if (ingest > 0) {
+                TransformerUtils.forward(model, state, Arrays.copyOf(batch, ingest), position, false);
+                position += ingest;
+                if (history != null) {
+                    history.addAll(batch, 0, ingest);
+                }
+            }
+        }
+        if (history != null) {
+            history.add(heldBack);
+        }
+        return new Prefill(heldBack, position);
+    }
 }
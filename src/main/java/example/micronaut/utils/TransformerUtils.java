@@ -1,13 +1,16 @@
 package example.micronaut.utils;
 
 import java.nio.FloatBuffer;
+import java.util.BitSet;
 import java.util.stream.IntStream;
 
 import example.micronaut.model.Configuration;
+import example.micronaut.model.KvCache;
 import example.micronaut.model.Llama;
 import example.micronaut.model.State;
 import example.micronaut.model.Weights;
 import example.micronaut.model.tensor.ArrayFloatTensor;
+import example.micronaut.model.tensor.Candidates;
 import example.micronaut.model.tensor.FloatTensor;
 import lombok.experimental.UtilityClass;
 
@@ -36,6 +39,191 @@ public class TransformerUtils {
     }
 
     public FloatTensor forward(Llama model, State state, int[] tokens, int position, boolean computeLogits) {
+        if (!forwardLayers(model, state, tokens, position, computeLogits)) {
+            return null;
+        }
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        int nTokens = tokens.length;
+
+        finalNorm(model, state, nTokens);
+
+        // Classifier into logits
+        weights.wcls.matmul(state.x[nTokens - 1], state.logits, config.vocabularySize, config.dim);
+
+        return state.logits;
+    }
+
+    /**
+     * Like {@link #forward} with logits, but fuses the final RMSNorm of the
+     * last token with a vocabulary-parallel classifier that keeps only the
+     * top {@code out.capacity()} logits and their log-sum-exp. The full
+     * logits vector is never materialized, {@code state.logits} is left
+     * untouched.
+     */
+    public void forwardCandidates(Llama model, State state, int[] tokens, int position, Candidates out) {
+        forwardCandidates(model, state, tokens, position, out, null);
+    }
+
+    /**
+     * Same as {@link #forwardCandidates(Llama, State, int[], int, Candidates)},
+     * restricted to the {@code allowed} tokens (all if null); disallowed rows
+     * of the classifier are not computed at all.
+     */
+    public void forwardCandidates(Llama model, State state, int[] tokens, int position, Candidates out,
+            BitSet allowed) {
+        forwardLayers(model, state, tokens, position);
+        candidates(model, state, tokens.length - 1, out, allowed);
+    }
+
+    /**
+     * Forward pass over consecutive tokens of one sequence that computes the
+     * output distribution of every position, not just the last one:
+     * {@code out[i]} is the log-probability of {@code targets[i]} following
+     * {@code tokens[0..i]}. The classifier runs as one batched product over
+     * all rows (see {@link FloatTensor#matmulLogProbs}), the logits are
+     * never materialized.
+     */
+    public void forwardLogProbs(Llama model, State state, int[] tokens, int position, int[] targets, float[] out) {
+        forwardLayers(model, state, tokens, position);
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        finalNorm(model, state, tokens.length);
+        weights.wcls.matmulLogProbs(tokens.length, state.x, targets, out, config.vocabularySize, config.dim);
+    }
+
+    /**
+     * Runs all transformer layers over consecutive tokens of one sequence,
+     * leaving the final hidden states in {@code state.x} (before the final
+     * RMSNorm), see {@link #logits} and {@link #candidates}.
+     */
+    public void forwardLayers(Llama model, State state, int[] tokens, int position) {
+        forwardLayers(model, state, tokens, position, true);
+    }
+
+    /**
+     * Decodes one token for each of several independent sequences at once:
+     * row {@code i} is {@code tokens[i]} at {@code positions[i]} in
+     * {@code caches[i]}. The weights are streamed once for all rows (one
+     * matrix-matrix product instead of one matrix-vector product per
+     * sequence). Rows may also be consecutive positions of one sequence,
+     * as in prefill. At most {@code state.batchsize} rows; the final hidden
+     * states are left in {@code state.x}.
+     */
+    public void forwardBatch(Llama model, State state, int[] tokens, int[] positions, KvCache[] caches) {
+        forwardRows(model, state, tokens, positions, caches, true);
+    }
+
+    /**
+     * Same as {@link #forwardBatch} for rows whose output is not needed:
+     * only fills the caches, skipping the last layer's attention and FFN.
+     */
+    public void prefillBatch(Llama model, State state, int[] tokens, int[] positions, KvCache[] caches) {
+        forwardRows(model, state, tokens, positions, caches, false);
+    }
+
+    /**
+     * Final RMSNorm of the first {@code rows} hidden states in
+     * {@code state.x}, in place: the model's output embeddings, before the
+     * classifier.
+     */
+    public void finalNorm(Llama model, State state, int rows) {
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        Parallel.parallelFor(0, rows, state.batchsize, t -> {
+            rmsnorm(state.x[t], state.x[t], weights.rms_final_weight, config.dim, config.rmsNormEps);
+        });
+    }
+
+    /**
+     * Final RMSNorm of {@code state.x[row]} and the full classifier into
+     * {@code state.logits}.
+     */
+    public FloatTensor logits(Llama model, State state, int row) {
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        FloatTensor x = state.x[row];
+        rmsnorm(x, x, weights.rms_final_weight, config.dim, config.rmsNormEps);
+        weights.wcls.matmul(x, state.logits, config.vocabularySize, config.dim);
+        return state.logits;
+    }
+
+    /**
+     * Final RMSNorm of {@code state.x[row]} fused with the top-k classifier,
+     * see {@link FloatTensor#matmulTopK}.
+     */
+    public void candidates(Llama model, State state, int row, Candidates out, BitSet allowed) {
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        FloatTensor x = state.x[row];
+        rmsnorm(x, x, weights.rms_final_weight, config.dim, config.rmsNormEps);
+        weights.wcls.matmulTopK(x, config.vocabularySize, config.dim, out, allowed);
+    }
+
+    /**
+     * Context shift: drops positions {@code [keep, keep + discard)} of
+     * {@code cache} and moves the later ones down by {@code discard}, see
+     * {@link #evict}.
+     */
+    public void shiftContext(Llama model, KvCache cache, int keep, int discard) {
+        BitSet dropped = new BitSet();
+        dropped.set(keep, keep + discard);
+        evict(model, cache, dropped);
+    }
+
+    /**
+     * Drops the positions in {@code dropped} from {@code cache}, the others
+     * move down to close the gaps (see {@link KvCache#compact}). RoPE
+     * rotations compose, so every moved key is re-rotated by minus the
+     * distance it moved, for its new position, instead of being recomputed.
+     */
+    public void evict(Llama model, KvCache cache, BitSet dropped) {
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        int headSize = config.headSize;
+        int kvDim = cache.kvDim();
+        int[] moved = new int[cache.length()]; // distance, by new position
+        int length = 0;
+        for (int position = 0; position < moved.length; position++) {
+            if (!dropped.get(position)) {
+                moved[length] = position - length;
+                length++;
+            }
+        }
+        cache.compact(dropped);
+        for (int l = 0; l < config.numberOfLayers; l++) {
+            final int layer = l;
+            Parallel.parallelFor(0, length, position -> {
+                int distance = moved[position];
+                if (distance == 0) {
+                    return;
+                }
+                FloatTensor keys = cache.keys(layer, position);
+                int offset = cache.offset(position);
+                for (int i = 0; i < kvDim; i += 2) {
+                    int freq = distance * (headSize / 2) + (i % headSize) / 2;
+                    // rotation by -distance: the conjugate of the one by +distance
+                    applyRotation(keys, offset + i, weights.freq_cis_real.get(freq), -weights.freq_cis_imag.get(freq));
+                }
+            });
+        }
+    }
+
+    private boolean forwardLayers(Llama model, State state, int[] tokens, int position, boolean computeLogits) {
+        int[] positions = new int[tokens.length];
+        KvCache[] caches = new KvCache[tokens.length];
+        for (int t = 0; t < tokens.length; t++) {
+            positions[t] = position + t;
+            caches[t] = state.kvCache;
+        }
+        return forwardRows(model, state, tokens, positions, caches, computeLogits);
+    }
+
+    /**
+     * @return false if the last layer was skipped since no logits are needed
+     */
+    private boolean forwardRows(Llama model, State state, int[] tokens, int[] positions, KvCache[] caches,
+            boolean computeLogits) {
         Configuration config = model.configuration();
         Weights weights = model.weights();
         int dim = config.dim;
@@ -46,6 +234,10 @@ public class TransformerUtils {
         float sqrtHeadSize = (float) fastSqrt(headSize);
         final int nTokens = tokens.length;
 
+        for (int t = 0; t < nTokens; t++) {
+            caches[t].record(positions[t], tokens[t]);
+        }
+
         // Copy token embeddings
         Parallel.parallelFor(0, nTokens, batchSize, t -> {
             weights.token_embedding_table.copyTo(tokens[t] * dim, state.x[t], 0, dim);
@@ -67,19 +259,21 @@ public class TransformerUtils {
 
             // RoPE relative positional encoding
             Parallel.parallelFor(0, nTokens, batchSize, t -> {
-                applyRoPE(state.q[t], state.k[t], position + t, headSize, kvDim, weights.freq_cis_real, weights.freq_cis_imag);
+                applyRoPE(state.q[t], state.k[t], positions[t], headSize, kvDim, weights.freq_cis_real, weights.freq_cis_imag);
             });
 
-            // Save key, value to cache
+            // Save key, value to cache (blocks are allocated or unshared first)
+            for (int t = 0; t < nTokens; t++) {
+                caches[t].prepareWrite(curLayer, positions[t]);
+            }
             Parallel.parallelFor(0, nTokens, batchSize, t -> {
-                state.k[t].copyTo(0, state.keyCache[curLayer], (position + t) * kvDim, kvDim);
-                state.v[t].copyTo(0, state.valueCache[curLayer], (position + t) * kvDim, kvDim);
+                caches[t].write(curLayer, positions[t], state.k[t], state.v[t]);
             });
 
             // Skip attention and FFN if logits are not required
             if (!computeLogits && curLayer == config.numberOfLayers - 1) {
                 state.idxPrevBlock = nTokens - 1;
-                return null;
+                return false;
             }
 
             // Multihead attention
@@ -87,8 +281,9 @@ public class TransformerUtils {
                 int token = (int) (ht / config.numberOfHeads);
                 int h = (int) (ht % config.numberOfHeads);
                 int attOffset = h * config.contextLength;
-                computeAttention(state, curLayer, token, h, attOffset, position, headSize, kvDim, kvMul, sqrtHeadSize);
+                computeAttention(state, caches[token], curLayer, token, h, attOffset, positions[token], headSize, kvMul, sqrtHeadSize);
             });
+            accumulateAttention(state, caches, positions, nTokens, config);
 
             // Final matmul for attention output
             weights.wo[l].matmul(nTokens, state.xb, state.xb2, dim, dim);
@@ -117,16 +312,8 @@ public class TransformerUtils {
             });
         }
 
-        // Final RMSNorm
-        Parallel.parallelFor(0, nTokens, batchSize, t -> {
-            rmsnorm(state.x[t], state.x[t], weights.rms_final_weight, dim, config.rmsNormEps);
-        });
-
-        // Classifier into logits
-        weights.wcls.matmul(state.x[nTokens - 1], state.logits, config.vocabularySize, dim);
         state.idxPrevBlock = nTokens - 1;
-
-        return state.logits;
+        return true;
     }
 
     private static void applyRoPE(FloatTensor q, FloatTensor k, int position, int headSize, int kvDim, FloatBuffer freqCisReal, FloatBuffer freqCisImag) {
@@ -152,28 +339,48 @@ public class TransformerUtils {
         vec.setFloat(i + 1, v0 * fci + v1 * fcr);
     }
 
-    private static void computeAttention(State state, int layer, int token, int h, int attOffset, int position, int headSize, int kvDim, int kvMul, float sqrtHeadSize) {
+    private static void computeAttention(State state, KvCache cache, int layer, int token, int h, int attOffset, int position, int headSize, int kvMul, float sqrtHeadSize) {
         // Optimize memory access pattern by pre-calculating offsets
         final int qOffset = h * headSize;
-        final int baseKeyCacheOffset = (h / kvMul) * headSize;
+        final int headOffset = (h / kvMul) * headSize;
         final int xbOffset = h * headSize;
 
         // Pre-calculate scores in a batch
-        for (int t = 0; t <= position + token; t++) {
-            int keyCacheOffset = t * kvDim + baseKeyCacheOffset;
-            float score = state.q[token].dot(qOffset, state.keyCache[layer], keyCacheOffset, headSize) / sqrtHeadSize;
+        for (int t = 0; t <= position; t++) {
+            int keyCacheOffset = cache.offset(t) + headOffset;
+            float score = state.q[token].dot(qOffset, cache.keys(layer, t), keyCacheOffset, headSize) / sqrtHeadSize;
             state.att[token].setFloat(attOffset + t, score);
         }
 
-        state.att[token].softmaxInPlace(attOffset, position + token + 1);
+        state.att[token].softmaxInPlace(attOffset, position + 1);
         state.xb[token].fillInPlace(xbOffset, headSize, 0f);
-        for (int t = 0; t <= position + token; t++) {
-            int vOffset = t * kvDim + (h / kvMul) * headSize;
+        for (int t = 0; t <= position; t++) {
+            int vOffset = cache.offset(t) + headOffset;
             float a = state.att[token].getFloat(attOffset + t);
-            state.xb[token].saxpyInPlace(xbOffset, state.valueCache[layer], vOffset, headSize, a);
+            state.xb[token].saxpyInPlace(xbOffset, cache.values(layer, t), vOffset, headSize, a);
         }
     }
 
+    // attention received by every cached position, for caches that track it (heavy-hitter eviction)
+    private static void accumulateAttention(State state, KvCache[] caches, int[] positions, int nTokens,
+            Configuration config) {
+        boolean tracked = false;
+        for (int t = 0; t < nTokens && !tracked; t++) {
+            tracked = caches[t].tracksAttention();
+        }
+        if (!tracked) {
+            return;
+        }
+        // one task per head: rows of one cache add to the same positions
+        Parallel.parallelFor(0, config.numberOfHeads, h -> {
+            for (int t = 0; t < nTokens; t++) {
+                if (caches[t].tracksAttention()) {
+                    caches[t].addAttention(h, state.att[t], h * config.contextLength, positions[t] + 1);
+                }
+            }
+        });
+    }
+
     private static void applyFFN(FloatTensor hb, FloatTensor hb2) {
         final int size = hb.size();
         // Process in chunks for better cache utilization
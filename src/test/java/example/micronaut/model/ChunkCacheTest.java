@@ -0,0 +1,117 @@
+package example.micronaut.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import example.micronaut.utils.ModelLoader;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ChunkCacheTest {
+
+    private static int[] get(ChunkCache cache, String chunk) {
+        // the chunk is looked up inside a longer text, as the tokenizer does
+        String text = "<" + chunk + ">";
+        return cache.get(cache.lookup(), text, 1, text.length() - 1);
+    }
+
+    private static void put(ChunkCache cache, String chunk, int... ids) {
+        String text = "[" + chunk + "]";
+        cache.put(text, 1, text.length() - 1, ids);
+    }
+
+    // tokens of up to 4 characters over "ab c", every split of a token into two tokens is a merge
+    private static Tokenizer tokenizer() {
+        Random random = new Random(3);
+        List<String> tokens = new ArrayList<>(List.of("a", "b", " ", "c"));
+        while (tokens.size() < 30) {
+            String token = tokens.get(random.nextInt(tokens.size())) + tokens.get(random.nextInt(tokens.size()));
+            if (token.length() <= 4 && !tokens.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        List<Pair<Integer, Integer>> merges = new ArrayList<>();
+        for (String token : tokens) {
+            for (int split = 1; split < token.length(); split++) {
+                int first = tokens.indexOf(token.substring(0, split));
+                int second = tokens.indexOf(token.substring(split));
+                if (first >= 0 && second >= 0) {
+                    merges.add(new Pair<>(first, second));
+                }
+            }
+        }
+        Vocabulary vocabulary = new Vocabulary(tokens.toArray(String[]::new), new float[tokens.size()]);
+        return new Tokenizer(vocabulary, merges, ModelLoader.LLAMA_3_PATTERN, new HashMap<>());
+    }
+
+    @Test
+    void hitsReturnWhatWasPut() {
+        ChunkCache cache = new ChunkCache(64);
+        Assertions.assertNull(get(cache, "hello"));
+        put(cache, "hello", 1, 2);
+        Assertions.assertArrayEquals(new int[] {1, 2}, get(cache, "hello"));
+        Assertions.assertNull(get(cache, "hell"));
+        Assertions.assertNull(get(cache, "hello!"));
+
+        ChunkCache.Stats stats = cache.stats();
+        Assertions.assertEquals(1, stats.hits());
+        Assertions.assertEquals(3, stats.misses());
+        Assertions.assertEquals(1, stats.size());
+        Assertions.assertEquals(0.25, stats.hitRate());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedChunkAtCapacity() {
+        ChunkCache cache = new ChunkCache(3, 1);
+        put(cache, "one", 1);
+        put(cache, "two", 2);
+        put(cache, "three", 3);
+        Assertions.assertNotNull(get(cache, "one")); // now "two" is the least recently used
+
+        put(cache, "four", 4);
+        Assertions.assertEquals(3, cache.stats().size());
+        Assertions.assertNull(get(cache, "two"));
+        Assertions.assertArrayEquals(new int[] {1}, get(cache, "one"));
+        Assertions.assertArrayEquals(new int[] {3}, get(cache, "three"));
+        Assertions.assertArrayEquals(new int[] {4}, get(cache, "four"));
+    }
+
+    @Test
+    void staysWithinCapacityAcrossSegments() {
+        ChunkCache cache = new ChunkCache(64);
+        for (int i = 0; i < 1000; i++) {
+            put(cache, "chunk" + i, i);
+        }
+        Assertions.assertTrue(cache.stats().size() <= 64, () -> "size " + cache.stats().size());
+    }
+
+    @Test
+    void encodingsAreTheSameWithAndWithoutTheCache() {
+        Tokenizer cached = tokenizer();
+        Tokenizer uncached;
+        System.setProperty("llama.TokenizerCacheSize", "0");
+        try {
+            uncached = tokenizer();
+        } finally {
+            System.clearProperty("llama.TokenizerCacheSize");
+        }
+        Assertions.assertNull(uncached.cacheStats());
+
+        Random random = new Random(5);
+        for (int k = 0; k < 200; k++) {
+            StringBuilder text = new StringBuilder();
+            int length = 1 + random.nextInt(80);
+            for (int i = 0; i < length; i++) {
+                text.append("aab  c".charAt(random.nextInt(6)));
+            }
+            // twice: the second encoding comes from the cache
+            Assertions.assertEquals(uncached.encodeOrdinary(text.toString()), cached.encodeOrdinary(text.toString()),
+                    text::toString);
+            Assertions.assertEquals(uncached.encodeOrdinary(text.toString()), cached.encodeOrdinary(text.toString()),
+                    text::toString);
+        }
+        Assertions.assertTrue(cached.cacheStats().hits() > 0);
+    }
+}
@@ -0,0 +1,63 @@
+package example.micronaut.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class DetokenizerTest {
+
+    private static final int END_OF_TURN = 4;
+
+    // "日" is E6 97 A5 in UTF-8, "é" is C3 A9
+    private static final Tokenizer TOKENIZER = tokenizer(
+            new byte[] {'a'},
+            new byte[] {(byte) 0xE6},
+            new byte[] {(byte) 0x97, (byte) 0xA5, 'b'},
+            new byte[] {'c', (byte) 0xC3});
+
+    private static Tokenizer tokenizer(byte[]... pieces) {
+        String[] tokens = new String[pieces.length + 1];
+        for (int i = 0; i < pieces.length; i++) {
+            StringBuilder encoded = new StringBuilder();
+            for (byte b : pieces[i]) {
+                encoded.appendCodePoint(Tokenizer.BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+            }
+            tokens[i] = encoded.toString();
+        }
+        tokens[END_OF_TURN] = "<|eot_id|>";
+        Map<String, Integer> specialTokens = new HashMap<>(Map.of("<|eot_id|>", END_OF_TURN));
+        return new Tokenizer(new Vocabulary(tokens, new float[tokens.length]), List.of(), null, specialTokens);
+    }
+
+    @Test
+    void holdsBackACharacterSplitAcrossTokensUntilItIsComplete() {
+        Detokenizer detokenizer = new Detokenizer(TOKENIZER);
+        assertEquals("a", detokenizer.next(0));
+        assertEquals("", detokenizer.next(1));
+        assertEquals("日b", detokenizer.next(2));
+        assertEquals("", detokenizer.flush());
+    }
+
+    @Test
+    void flushReturnsWhatIsHeldBack() {
+        Detokenizer detokenizer = new Detokenizer(TOKENIZER);
+        assertEquals("c", detokenizer.next(3));
+        assertEquals("�", detokenizer.flush()); // the stream ended inside "é"
+        assertEquals("", detokenizer.flush());
+    }
+
+    @Test
+    void skipsSpecialTokens() {
+        Detokenizer detokenizer = new Detokenizer(TOKENIZER);
+        assertEquals("", detokenizer.next(1));
+        assertEquals("", detokenizer.next(END_OF_TURN));
+        assertEquals("日b", detokenizer.next(2)); // and keeps what it held back
+        assertEquals("a", detokenizer.next(0));
+        assertEquals("", detokenizer.next(END_OF_TURN));
+        assertEquals("", detokenizer.flush());
+    }
+}
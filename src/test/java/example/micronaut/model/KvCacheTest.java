@@ -0,0 +1,161 @@
+package example.micronaut.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.tensor.ArrayFloatTensor;
+import example.micronaut.model.tensor.FloatTensor;
+
+class KvCacheTest {
+
+    private static final int LAYERS = 2;
+    private static final int KV_DIM = 8;
+    private static final int B = KvCache.BLOCK_SIZE;
+
+    @TempDir
+    Path tierDirectory;
+
+    // key and value of a position: every element is its own function of (layer, position, token)
+    private static float key(int layer, int position, int token) {
+        return layer * 1000 + position + token / 1000f;
+    }
+
+    private static void write(KvCache cache, int position, int token) {
+        for (int l = 0; l < LAYERS; l++) {
+            FloatTensor key = ArrayFloatTensor.allocate(KV_DIM);
+            FloatTensor value = ArrayFloatTensor.allocate(KV_DIM);
+            for (int i = 0; i < KV_DIM; i++) {
+                key.setFloat(i, key(l, position, token) + i);
+                value.setFloat(i, -key(l, position, token) - i);
+            }
+            cache.prepareWrite(l, position);
+            cache.write(l, position, key, value);
+        }
+        cache.record(position, token);
+    }
+
+    private static KvCache filled(int length) {
+        KvCache cache = new KvCache(LAYERS, 4 * B, KV_DIM);
+        for (int position = 0; position < length; position++) {
+            write(cache, position, position + 1);
+        }
+        return cache;
+    }
+
+    // asserts that position holds what write stored for (originalPosition, token)
+    private static void assertHolds(KvCache cache, int position, int originalPosition, int token) {
+        for (int l = 0; l < LAYERS; l++) {
+            int offset = cache.offset(position);
+            for (int i = 0; i < KV_DIM; i++) {
+                assertEquals(key(l, originalPosition, token) + i, cache.keys(l, position).getFloat(offset + i));
+                assertEquals(-key(l, originalPosition, token) - i, cache.values(l, position).getFloat(offset + i));
+            }
+        }
+    }
+
+    private static long usedSlots(KvTier tier) {
+        return tier.stats().usedBytes() / (2L * B * KV_DIM * Float.BYTES);
+    }
+
+    @Test
+    void writingAForkLeavesTheParentUnchanged() {
+        KvCache parent = filled(2 * B + 3);
+        KvCache child = parent.fork();
+        assertEquals(parent.length(), child.length());
+        assertArrayEquals(parent.tokens(), child.tokens());
+
+        write(child, 1, 42); // shared full block
+        write(child, 2 * B + 3, 43); // shared partial block
+        assertHolds(child, 1, 1, 42);
+        assertHolds(child, 2 * B + 3, 2 * B + 3, 43);
+        assertHolds(parent, 1, 1, 2);
+        assertEquals(2 * B + 3, parent.length());
+        assertEquals(2, parent.tokens()[1]);
+        // the block neither wrote stays shared
+        for (int l = 0; l < LAYERS; l++) {
+            assertSame(parent.keys(l, B), child.keys(l, B));
+        }
+    }
+
+    @Test
+    void blocksAreFreedWithTheirLastReference() {
+        KvTier tier = new KvTier(tierDirectory, KV_DIM, 0);
+        KvCache parent = filled(2 * B);
+        parent.useTier(tier, 1);
+        assertEquals(2 * LAYERS, parent.pageOut());
+        assertEquals(2 * LAYERS, usedSlots(tier));
+
+        KvCache child = parent.fork();
+        write(child, B, 7); // copied to the heap, the parent keeps its slot
+        parent.release();
+        assertEquals(0, parent.blockCount());
+        assertEquals(LAYERS, usedSlots(tier)); // the child's first blocks
+        assertHolds(child, 0, 0, 1);
+
+        child.release();
+        assertEquals(0, usedSlots(tier));
+        assertEquals(0, child.length());
+    }
+
+    @Test
+    void compactionMovesPositionsDownAndFreesTrailingBlocks() {
+        KvCache cache = filled(2 * B + 1);
+        assertEquals(3 * LAYERS, cache.blockCount());
+        BitSet dropped = new BitSet();
+        dropped.set(2, B + 4); // B + 2 positions
+        cache.compact(dropped);
+
+        assertEquals(B - 1, cache.length());
+        assertEquals(LAYERS, cache.blockCount());
+        assertHolds(cache, 1, 1, 2);
+        for (int position = 2; position < cache.length(); position++) {
+            int original = position + B + 2;
+            assertHolds(cache, position, original, original + 1);
+            assertEquals(original + 1, cache.tokens()[position]);
+        }
+    }
+
+    @Test
+    void pagedOutBlocksKeepTheirContents() {
+        KvTier tier = new KvTier(tierDirectory, KV_DIM, 0);
+        KvCache cache = filled(B + 5);
+        cache.useTier(tier, 1);
+        assertEquals(2 * LAYERS, cache.pageOut());
+        assertEquals(0, cache.pageOut());
+        for (int position = 0; position < B + 5; position++) {
+            assertHolds(cache, position, position, position + 1);
+        }
+        // still writable once paged out
+        write(cache, B + 5, 9);
+        assertHolds(cache, B + 5, B + 5, 9);
+        assertHolds(cache, B + 4, B + 4, B + 5);
+    }
+
+    @Test
+    void leastAttendedSumsTheAttentionOfAllHeads() {
+        KvCache cache = filled(8);
+        cache.trackAttention(2);
+        FloatTensor weights = ArrayFloatTensor.allocate(8);
+        float[][] received = {{5, 1, 9, 0, 3, 7, 2, 8}, {0, 1, 0, 9, 3, 0, 9, 0}};
+        for (int head = 0; head < 2; head++) {
+            for (int t = 0; t < 8; t++) {
+                weights.setFloat(t, received[head][t]);
+            }
+            cache.addAttention(head, weights, 0, 8);
+        }
+        // totals 5 2 9 9 6 7 11 8; position 0 is outside the range
+        BitSet expected = new BitSet();
+        expected.set(1);
+        expected.set(4);
+        assertEquals(expected, cache.leastAttended(1, 8, 2));
+        expected.clear(4);
+        assertEquals(expected, cache.leastAttended(1, 3, 1));
+    }
+}
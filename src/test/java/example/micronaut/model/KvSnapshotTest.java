@@ -0,0 +1,137 @@
+package example.micronaut.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.tensor.ArrayFloatTensor;
+import example.micronaut.model.tensor.FloatTensor;
+
+class KvSnapshotTest {
+
+    private static final int LAYERS = 2;
+    private static final int KV_DIM = 40; // not a multiple of the Q8 block
+    private static final int CONTEXT = 3 * KvCache.BLOCK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private static KvCache filled(int length, long seed) {
+        Random random = new Random(seed);
+        KvCache cache = new KvCache(LAYERS, CONTEXT, KV_DIM);
+        for (int position = 0; position < length; position++) {
+            for (int l = 0; l < LAYERS; l++) {
+                FloatTensor key = ArrayFloatTensor.allocate(KV_DIM);
+                FloatTensor value = ArrayFloatTensor.allocate(KV_DIM);
+                for (int i = 0; i < KV_DIM; i++) {
+                    key.setFloat(i, (float) random.nextGaussian() * 4);
+                    value.setFloat(i, (float) random.nextGaussian());
+                }
+                cache.prepareWrite(l, position);
+                cache.write(l, position, key, value);
+            }
+            cache.record(position, random.nextInt(1000));
+        }
+        return cache;
+    }
+
+    // largest difference between the keys and values of two caches
+    private static float maxError(KvCache expected, KvCache actual) {
+        float error = 0;
+        for (int l = 0; l < LAYERS; l++) {
+            for (int position = 0; position < expected.length(); position++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    int offset = expected.offset(position) + i;
+                    error = Math.max(error, Math.abs(expected.keys(l, position).getFloat(offset)
+                            - actual.keys(l, position).getFloat(offset)));
+                    error = Math.max(error, Math.abs(expected.values(l, position).getFloat(offset)
+                            - actual.values(l, position).getFloat(offset)));
+                }
+            }
+        }
+        return error;
+    }
+
+    private float roundTrip(KvSnapshot.Compression compression) throws IOException {
+        KvCache cache = filled(KvCache.BLOCK_SIZE + 7, 1);
+        Path file = directory.resolve(compression + ".kv");
+        long bytes = KvSnapshot.save(file, cache, 123, compression);
+        assertEquals(Files.size(file), bytes);
+
+        KvCache restored = filled(5, 2); // replaced, not merged
+        assertEquals(123, KvSnapshot.restore(file, restored));
+        assertEquals(cache.length(), restored.length());
+        assertArrayEquals(cache.tokens(), restored.tokens());
+        return maxError(cache, restored);
+    }
+
+    @Test
+    void roundTripsF32Exactly() throws IOException {
+        assertEquals(0f, roundTrip(KvSnapshot.Compression.F32));
+    }
+
+    @Test
+    void roundTripsF16() throws IOException {
+        float error = roundTrip(KvSnapshot.Compression.F16);
+        assertTrue(error > 0 && error < 0.01f, () -> "F16 error " + error);
+    }
+
+    @Test
+    void roundTripsQ8() throws IOException {
+        // half a quantization step of the largest values, about 4 * 4 / 127 / 2
+        float error = roundTrip(KvSnapshot.Compression.Q8);
+        assertTrue(error > 0 && error < 0.1f, () -> "Q8 error " + error);
+    }
+
+    @Test
+    void compressionShrinksSnapshots() throws IOException {
+        KvCache cache = filled(KvCache.BLOCK_SIZE, 3);
+        long f32 = KvSnapshot.save(directory.resolve("f32.kv"), cache, 0, KvSnapshot.Compression.F32);
+        long f16 = KvSnapshot.save(directory.resolve("f16.kv"), cache, 0, KvSnapshot.Compression.F16);
+        long q8 = KvSnapshot.save(directory.resolve("q8.kv"), cache, 0, KvSnapshot.Compression.Q8);
+        assertTrue(f16 < f32 && q8 < f16, () -> f32 + " " + f16 + " " + q8);
+    }
+
+    @Test
+    void rejectsSnapshotsOfAnotherModel() throws IOException {
+        Path file = directory.resolve("session.kv");
+        KvSnapshot.save(file, filled(10, 4), 0, KvSnapshot.Compression.F16);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> KvSnapshot.restore(file, new KvCache(LAYERS + 1, CONTEXT, KV_DIM)));
+        assertThrows(IllegalArgumentException.class,
+                () -> KvSnapshot.restore(file, new KvCache(LAYERS, CONTEXT, KV_DIM * 2)));
+        assertThrows(IllegalArgumentException.class, () -> KvSnapshot.restore(file, new KvCache(LAYERS, 8, KV_DIM)));
+
+        KvCache cache = filled(3, 5);
+        KvSnapshot.restore(file, cache); // still fits its own shape
+        assertEquals(10, cache.length());
+    }
+
+    @Test
+    void rejectsCorruptSnapshots() throws IOException {
+        Path file = directory.resolve("session.kv");
+        KvSnapshot.save(file, filled(10, 6), 0, KvSnapshot.Compression.Q8);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> KvSnapshot.restore(file, new KvCache(LAYERS, CONTEXT, KV_DIM)));
+
+        Path other = directory.resolve("other.kv");
+        Files.write(other, new byte[64]);
+        assertThrows(IllegalArgumentException.class,
+                () -> KvSnapshot.restore(other, new KvCache(LAYERS, CONTEXT, KV_DIM)));
+    }
+}
@@ -0,0 +1,122 @@
+package example.micronaut.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import example.micronaut.utils.ModelLoader;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class PreTokenizerTest {
+
+    private static final Pattern LLAMA_3 = Pattern.compile(ModelLoader.LLAMA_3_PATTERN);
+
+    // characters that exercise the alternatives and their backtracking
+    private static final int[] INTERESTING = {
+        ' ', ' ', ' ', '\t', '\n', '\r', 0x0B, '\f', '\'', '\'', 's', 'S', 't', 'r', 'e', 'E', 'v', 'l', 'L', 'm', 'd',
+        'D', 'a', 'Z', '0', '7', '9', '.', ',', '!', '?', '-', '_', '"', '(', ')', '{', '}', 0xA0, 0x2028, 0x3000,
+        0x00E9, 0x00DF, 0x0130, 0x017F, 0x212A, 0x0301, 0x0663, 0x00B2, 0x2167, 0x4E2D, 0x65E5, 0xAC00, 0x05D0,
+        0x0E01, 0xFF11, 0x1F600, 0x1D400, 0x10400, 0x1F44D, 0xD800, 0xDC00, 0x0120, 0x010A, 0x0143
+    };
+
+    private static List<String> regexPieces(String text) {
+        List<String> pieces = new ArrayList<>();
+        Matcher matcher = LLAMA_3.matcher(text);
+        int expectedStart = 0;
+        while (matcher.find()) {
+            Assertions.assertEquals(expectedStart, matcher.start(), "regex left a gap");
+            pieces.add(matcher.group());
+            expectedStart = matcher.end();
+        }
+        return pieces;
+    }
+
+    private static List<String> scannerPieces(String text) {
+        List<String> pieces = new ArrayList<>();
+        for (int start = 0, end; start < text.length(); start = end) {
+            end = PreTokenizer.nextPiece(text, start);
+            Assertions.assertTrue(end > start, "empty piece at " + start);
+            pieces.add(text.substring(start, end));
+        }
+        return pieces;
+    }
+
+    private static void assertSamePieces(String text) {
+        Assertions.assertEquals(regexPieces(text), scannerPieces(text));
+    }
+
+    private static int randomCodePoint(Random random) {
+        return switch (random.nextInt(6)) {
+            case 0, 1 ->
+                INTERESTING[random.nextInt(INTERESTING.length)];
+            case 2 ->
+                random.nextInt(0x80);
+            case 3 ->
+                random.nextInt(0x3000);
+            default ->
+                random.nextInt(Character.MAX_CODE_POINT + 1);
+        };
+    }
+
+    @Test
+    void testMatchesRegexOnExamples() {
+        assertSamePieces("Hello world, it's 12345 o'clock!\n\n  I'LL    say: \"you're right\"\t\r\n end   ");
+        assertSamePieces("  \n \n  x  \t");
+        assertSamePieces("'s's'S'x'  '\n'12");
+        assertSamePieces("日本語のテキスト 😀😀 ñandú ٣٤٥٦ ²³ Ⅷ");
+        assertSamePieces(" !!!\r\n\r\n...  ---\n");
+    }
+
+    @Test
+    void testMatchesRegexOnRandomUnicodeCorpus() {
+        Random random = new Random(42);
+        for (int doc = 0; doc < 2_000; doc++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(400);
+            for (int i = 0; i < length; i++) {
+                sb.appendCodePoint(randomCodePoint(random));
+            }
+            assertSamePieces(sb.toString());
+        }
+    }
+
+    @Test
+    void testMatchesRegexOnAllCodePoints() {
+        // every code point once, separated by short runs of interesting characters
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder();
+        for (int cp = 0; cp <= Character.MAX_CODE_POINT; cp++) {
+            sb.appendCodePoint(cp);
+            if (random.nextInt(4) == 0) {
+                sb.appendCodePoint(INTERESTING[random.nextInt(INTERESTING.length)]);
+            }
+            if (sb.length() > 4096) {
+                assertSamePieces(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        assertSamePieces(sb.toString());
+    }
+
+    @Test
+    void testMatchesRegexOnByteEncodedText() {
+        // the tokenizer splits the GPT-2 byte-encoded form of the input
+        Random random = new Random(3);
+        for (int doc = 0; doc < 500; doc++) {
+            StringBuilder raw = new StringBuilder();
+            int length = random.nextInt(200);
+            for (int i = 0; i < length; i++) {
+                raw.appendCodePoint(randomCodePoint(random));
+            }
+            StringBuilder encoded = new StringBuilder();
+            for (byte b : raw.toString().getBytes(StandardCharsets.UTF_8)) {
+                encoded.appendCodePoint(Tokenizer.BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+            }
+            assertSamePieces(encoded.toString());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package example.micronaut.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class StopStringsTest {
+
+    private static final List<String> STOPS = List.of("\n\nUser:", "</answer>", "ab", "bab", "日本");
+
+    // every piece of text a test stream is split into becomes a token
+    private final Map<String, Integer> pieces = new LinkedHashMap<>();
+
+    private Tokenizer tokenizer() {
+        String[] tokens = new String[pieces.size()];
+        pieces.forEach((piece, id) -> {
+            StringBuilder encoded = new StringBuilder();
+            for (byte b : piece.getBytes(StandardCharsets.UTF_8)) {
+                encoded.appendCodePoint(Tokenizer.BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+            }
+            tokens[id] = encoded.toString();
+        });
+        return new Tokenizer(new Vocabulary(tokens, new float[tokens.length]), List.of(), null, new HashMap<>());
+    }
+
+    private List<Integer> split(String text, Random random) {
+        List<Integer> ids = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            int end = Math.min(text.length(), i + 1 + random.nextInt(5));
+            String piece = text.substring(i, end);
+            ids.add(pieces.computeIfAbsent(piece, p -> pieces.size()));
+            i = end;
+        }
+        return ids;
+    }
+
+    @Test
+    void matchesSpanningTokensAndHoldsBackPartialMatches() {
+        String alphabet = "ab</nswer>\nUs:日本x ";
+        Random random = new Random(3);
+        List<String> texts = new ArrayList<>();
+        List<List<Integer>> streams = new ArrayList<>();
+        for (int t = 0; t < 500; t++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(30);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            if (random.nextBoolean()) {
+                sb.insert(random.nextInt(sb.length() + 1), STOPS.get(random.nextInt(STOPS.size())));
+            }
+            texts.add(sb.toString());
+            streams.add(split(sb.toString(), random));
+        }
+        Tokenizer tokenizer = tokenizer();
+        StopStrings stopStrings = new StopStrings(STOPS);
+
+        for (int t = 0; t < texts.size(); t++) {
+            String text = texts.get(t);
+            // expected: everything before the stop string that completes first (the longest if several)
+            int stopAt = -1;
+            for (int end = 1; end <= text.length() && stopAt < 0; end++) {
+                for (String stop : STOPS) {
+                    int start = end - stop.length();
+                    if (start >= 0 && text.startsWith(stop, start) && (stopAt < 0 || start < stopAt)) {
+                        stopAt = start;
+                    }
+                }
+            }
+            String expected = stopAt < 0 ? text : text.substring(0, stopAt);
+
+            Detokenizer detokenizer = new Detokenizer(tokenizer, stopStrings);
+            StringBuilder out = new StringBuilder();
+            int consumed = 0;
+            for (int token : streams.get(t)) {
+                out.append(detokenizer.next(token));
+                consumed++;
+                assertTrue(expected.startsWith(out.toString()), () -> "emitted past the stop string in " + text);
+                if (detokenizer.isStopped()) {
+                    break;
+                }
+            }
+            out.append(detokenizer.flush());
+            assertEquals(expected, out.toString(), text);
+            assertEquals(stopAt >= 0, detokenizer.isStopped(), text);
+            if (stopAt >= 0) {
+                // generation ends on the token completing the stop string, not later
+                String before = tokenizer.decode(streams.get(t).subList(0, consumed - 1));
+                assertFalse(STOPS.stream().anyMatch(before::contains), text);
+            }
+        }
+    }
+}
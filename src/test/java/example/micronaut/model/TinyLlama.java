@@ -0,0 +1,80 @@
+package example.micronaut.model;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import example.micronaut.model.tensor.ArrayFloatTensor;
+import example.micronaut.model.tensor.FloatTensor;
+import example.micronaut.utils.RoPE;
+
+/**
+ * Randomly initialized model for tests of the inference code: two layers
+ * unless given, dim 64, 4 heads sharing 2 key/value heads, tokens
+ * {@code "t0"}, {@code "t1"}... and the last ones special.
+ */
+public final class TinyLlama {
+
+    private TinyLlama() {
+    }
+
+    public static Llama create(long seed, int vocabularySize, int contextLength) {
+        return create(seed, 2, vocabularySize, contextLength);
+    }
+
+    public static Llama create(long seed, int layers, int vocabularySize, int contextLength) {
+        Random random = new Random(seed);
+        Configuration config = new Configuration(64, 128, layers, 4, 2, vocabularySize, contextLength, 1e-5f,
+                10000f);
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        var rope = RoPE.precomputeFreqsCis(contextLength, config.headSize, config.ropeTheta, false, 8, 1, 3, 8192);
+        Weights weights = new Weights(tensor(random, vocabularySize * config.dim), ones(layers, config.dim),
+                tensors(random, layers, config.dim * config.dim), tensors(random, layers, kvDim * config.dim),
+                tensors(random, layers, kvDim * config.dim), tensors(random, layers, config.dim * config.dim),
+                ones(layers, config.dim), tensors(random, layers, config.hiddenDim * config.dim),
+                tensors(random, layers, config.dim * config.hiddenDim),
+                tensors(random, layers, config.hiddenDim * config.dim), ones(1, config.dim)[0],
+                FloatBuffer.wrap(rope.first()), FloatBuffer.wrap(rope.second()),
+                tensor(random, vocabularySize * config.dim));
+
+        String[] tokens = new String[vocabularySize];
+        Arrays.setAll(tokens, i -> "t" + i);
+        Map<String, Integer> specialTokens = new HashMap<>();
+        String[] special = {"<|begin_of_text|>", "<|start_header_id|>", "<|end_header_id|>", "<|eot_id|>",
+            "<|end_of_text|>"};
+        for (int i = 0; i < special.length; i++) {
+            tokens[vocabularySize - 1 - i] = special[i];
+            specialTokens.put(special[i], vocabularySize - 1 - i);
+        }
+        Tokenizer tokenizer = new Tokenizer(new Vocabulary(tokens, new float[vocabularySize]), List.of(), "\\S+|\\s+",
+                specialTokens);
+        return new Llama(config, tokenizer, weights);
+    }
+
+    private static FloatTensor tensor(Random random, int size) {
+        FloatTensor tensor = ArrayFloatTensor.allocate(size);
+        for (int i = 0; i < size; i++) {
+            tensor.setFloat(i, (float) random.nextGaussian() * 0.3f);
+        }
+        return tensor;
+    }
+
+    private static FloatTensor[] tensors(Random random, int layers, int size) {
+        FloatTensor[] tensors = new FloatTensor[layers];
+        Arrays.setAll(tensors, l -> tensor(random, size));
+        return tensors;
+    }
+
+    private static FloatBuffer[] ones(int layers, int size) {
+        FloatBuffer[] buffers = new FloatBuffer[layers];
+        for (int l = 0; l < layers; l++) {
+            float[] weights = new float[size];
+            Arrays.fill(weights, 1f);
+            buffers[l] = FloatBuffer.wrap(weights);
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,178 @@
+package example.micronaut.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.utils.ModelLoader;
+
+class TokenizerTest {
+
+    private record Bpe(Tokenizer tokenizer, Vocabulary vocabulary, Map<Pair<Integer, Integer>, Integer> merges) {
+
+        static Bpe of(List<String> tokens, List<Pair<Integer, Integer>> merges) {
+            Vocabulary vocabulary = new Vocabulary(tokens.toArray(String[]::new), new float[tokens.size()]);
+            Map<Pair<Integer, Integer>, Integer> ranks = new HashMap<>();
+            for (Pair<Integer, Integer> pair : merges) {
+                ranks.put(pair, vocabulary.getIndex(tokens.get(pair.first()) + tokens.get(pair.second()))
+                        .orElseThrow());
+            }
+            return new Bpe(new Tokenizer(vocabulary, merges, "\\S+", new HashMap<>()), vocabulary, ranks);
+        }
+
+        // the previous implementation: merge every occurrence of the lowest-rank pair, then count pairs again;
+        // of pairs of equal rank, the one occurring first, as in minbpe (a HashMap made that choice arbitrary)
+        List<Integer> reference(String text) {
+            List<Integer> ids = new ArrayList<>();
+            for (char c : text.toCharArray()) {
+                ids.add(vocabulary.getIndex(String.valueOf(c)).orElseThrow());
+            }
+            while (ids.size() >= 2) {
+                Map<Pair<Integer, Integer>, Integer> stats = new LinkedHashMap<>();
+                for (int i = 0; i + 1 < ids.size(); i++) {
+                    stats.merge(new Pair<>(ids.get(i), ids.get(i + 1)), 1, Integer::sum);
+                }
+                Pair<Integer, Integer> pair = null;
+                for (Pair<Integer, Integer> candidate : stats.keySet()) {
+                    if (merges.containsKey(candidate) && (pair == null || merges.get(candidate) < merges.get(pair))) {
+                        pair = candidate;
+                    }
+                }
+                if (pair == null) {
+                    break;
+                }
+                List<Integer> merged = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (i + 1 < ids.size() && new Pair<>(ids.get(i), ids.get(i + 1)).equals(pair)) {
+                        merged.add(merges.get(pair));
+                        i++;
+                    } else {
+                        merged.add(ids.get(i));
+                    }
+                }
+                ids = merged;
+            }
+            return ids;
+        }
+    }
+
+    @Test
+    void pairsMergingIntoTheSameTokenMatchThePreviousImplementation() {
+        // "ab" + "a" and "a" + "ba" both merge into "aba": their ranks tie
+        Bpe bpe = Bpe.of(List.of("a", "b", "c", "ba", "ab", "aba"),
+                List.of(new Pair<>(1, 0), new Pair<>(0, 1), new Pair<>(4, 0), new Pair<>(0, 3)));
+        for (String text : List.of("abac", "cabab", "abacabab", "ababa", "aaabbbaaa", "bababab")) {
+            assertEquals(bpe.reference(text), bpe.tokenizer().encodeOrdinary(text), text);
+        }
+    }
+
+    @Test
+    void matchesThePreviousImplementationOnRandomMergeTables() {
+        Random random = new Random(7);
+        for (int table = 0; table < 20; table++) {
+            List<String> tokens = new ArrayList<>(List.of("a", "b", "c"));
+            while (tokens.size() < 40) {
+                String token = tokens.get(random.nextInt(tokens.size())) + tokens.get(random.nextInt(tokens.size()));
+                if (token.length() <= 6 && !tokens.contains(token)) {
+                    tokens.add(token);
+                }
+            }
+            // every split of every token into two tokens is a merge, so ranks tie often
+            List<Pair<Integer, Integer>> merges = new ArrayList<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                for (int split = 1; split < tokens.get(i).length(); split++) {
+                    int first = tokens.indexOf(tokens.get(i).substring(0, split));
+                    int second = tokens.indexOf(tokens.get(i).substring(split));
+                    if (first >= 0 && second >= 0) {
+                        merges.add(new Pair<>(first, second));
+                    }
+                }
+            }
+            Bpe bpe = Bpe.of(tokens, merges);
+            for (int k = 0; k < 50; k++) {
+                StringBuilder text = new StringBuilder();
+                int length = 1 + random.nextInt(30);
+                for (int i = 0; i < length; i++) {
+                    text.append("aabbc".charAt(random.nextInt(5))); // repeated pairs
+                }
+                assertEquals(bpe.reference(text.toString()), bpe.tokenizer().encodeOrdinary(text.toString()),
+                        text::toString);
+            }
+        }
+    }
+
+    private static String byteEncode(String text) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            encoded.appendCodePoint(Tokenizer.BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+        }
+        return encoded.toString();
+    }
+
+    @Test
+    void parallelSegmentsJoinIntoTheSequentialEncoding() {
+        // every byte, then random merges of the byte-encoded letters and space
+        Random random = new Random(11);
+        List<String> tokens = new ArrayList<>();
+        for (int b = 0; b < 256; b++) {
+            tokens.add(Character.toString(Tokenizer.BYTE_ENCODER.get(b)));
+        }
+        List<String> base = List.of("a", "b", "c", "1", byteEncode(" "), byteEncode("\n"));
+        List<Pair<Integer, Integer>> merges = new ArrayList<>();
+        while (tokens.size() < 400) {
+            String first = tokens.size() == 256 || random.nextBoolean() ? base.get(random.nextInt(base.size()))
+                    : tokens.get(256 + random.nextInt(tokens.size() - 256));
+            String second = base.get(random.nextInt(base.size()));
+            if (first.length() < 6 && !tokens.contains(first + second)) {
+                merges.add(new Pair<>(tokens.indexOf(first), tokens.indexOf(second)));
+                tokens.add(first + second);
+            }
+        }
+        Tokenizer tokenizer = new Tokenizer(new Vocabulary(tokens.toArray(String[]::new), new float[tokens.size()]),
+                merges, ModelLoader.LLAMA_3_PATTERN, new HashMap<>());
+
+        // words, numbers and newlines, with pre-tokens of thousands of characters across the 4096-character cuts
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 40_000) {
+            switch (random.nextInt(20)) {
+                case 0 -> text.append("b".repeat(3000 + random.nextInt(3000)));
+                case 1 -> text.append(" ".repeat(2000 + random.nextInt(3000))).append('c');
+                case 2 -> text.append("\n\n").append(1234567);
+                default -> {
+                    text.append(' ');
+                    for (int i = random.nextInt(8); i >= 0; i--) {
+                        text.append("abc1".charAt(random.nextInt(4)));
+                    }
+                }
+            }
+        }
+        String input = text.toString();
+        int[] expected = tokenizer.encodeOrdinary(byteEncode(input)).stream().mapToInt(Integer::intValue).toArray();
+
+        List<CompletableFuture<int[]>> segments = tokenizer.encodeSegments(input);
+        assertTrue(segments.size() > 1, "not encoded in parallel");
+        int[] joined = segments.stream().map(CompletableFuture::join).flatMapToInt(Arrays::stream).toArray();
+        assertArrayEquals(expected, joined);
+        assertArrayEquals(expected, tokenizer.encode(input));
+
+        PromptTokens prompt = new PromptTokens().addAll(tokenizer.encodeSegments(input));
+        List<Integer> taken = new ArrayList<>();
+        int[] batch = new int[1000];
+        for (int n; (n = prompt.next(batch, batch.length)) > 0;) {
+            Arrays.stream(batch, 0, n).forEach(taken::add);
+        }
+        assertArrayEquals(expected, taken.stream().mapToInt(Integer::intValue).toArray());
+    }
+}
@@ -0,0 +1,150 @@
+package example.micronaut.model.grammar;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+class TokenConstraintTest {
+
+    private static boolean matches(ByteAutomaton automaton, String text) {
+        return automaton.isAccepting(automaton.walk(automaton.start(), text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void automatonAgreesWithJavaRegex() {
+        String[] patterns = {
+            "a*b", "(ab|a)*c?", "[a-c]{2,3}x", "-?(0|[1-9][0-9]*)(\\.[0-9]+)?", "[^\"\\\\]*", "(?:yes|no)",
+            "\\d+\\s\\w{1,}", "a{3}|b{0,2}", "x.y", "[\\x00-\\x1F]?z",
+            // non-ASCII: one code point per class or '.', as its UTF-8 bytes
+            "[é]", ".", "[^a]*", "[à-ÿ€]+x?", "\\W\\S", "[^a-z€]{1,2}", "é|€+|😀", "[\\u00e0-\\u20ac]*", ".*€"
+        };
+        int[] alphabet = "abcxyz0129.-\"\\ \n_\ré€😀ÿ\u2028\u07ff\uffff".codePoints().toArray();
+        Random random = new Random(42);
+        for (String pattern : patterns) {
+            ByteAutomaton automaton = ByteAutomaton.fromRegex(pattern);
+            Pattern expected = Pattern.compile(pattern);
+            for (int i = 0; i < 2000; i++) {
+                StringBuilder sb = new StringBuilder();
+                int length = random.nextInt(7);
+                for (int j = 0; j < length; j++) {
+                    sb.appendCodePoint(alphabet[random.nextInt(alphabet.length)]);
+                }
+                String text = sb.toString();
+                assertEquals(expected.matcher(text).matches(), matches(automaton, text),
+                        () -> pattern + " on '" + text + "'");
+            }
+        }
+    }
+
+    @Test
+    void acceptsOnlyValidUtf8() {
+        ByteAutomaton automaton = ByteAutomaton.fromRegex("[^a]*");
+        assertTrue(matches(automaton, "é€😀"));
+        assertEquals(ByteAutomaton.DEAD, automaton.walk(automaton.start(), new byte[]{(byte) 0xFF}));
+        assertEquals(ByteAutomaton.DEAD, automaton.walk(automaton.start(), new byte[]{(byte) 0xC3, 'x'}));
+        assertFalse(automaton.isAccepting(automaton.walk(automaton.start(), new byte[]{(byte) 0xC3})));
+        // surrogates have no UTF-8 encoding
+        assertEquals(ByteAutomaton.DEAD, automaton.walk(automaton.start(),
+                new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0x80}));
+    }
+
+    @Test
+    void jsonSchemaToRegex() {
+        Map<String, Object> schema = new LinkedHashMap<>();
+        schema.put("type", "object");
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("name", Map.of("type", "string"));
+        properties.put("age", Map.of("type", "integer"));
+        properties.put("tags", Map.of("type", "array", "items", Map.of("enum", List.of("a", "b")), "maxItems", 2));
+        properties.put("ok", Map.of("type", List.of("boolean", "null")));
+        schema.put("properties", properties);
+        ByteAutomaton automaton = ByteAutomaton.fromRegex(JsonSchema.toRegex(schema));
+
+        assertTrue(matches(automaton, "{\"name\":\"Bob\",\"age\":42,\"tags\":[],\"ok\":true}"));
+        assertTrue(matches(automaton, "{ \"name\": \"Z\\u00e9 \\\"q\\\"\", \"age\": -1, \"tags\": [\"a\", \"b\"], \"ok\": null}"));
+        assertFalse(matches(automaton, "{\"name\":\"Bob\",\"age\":4.2,\"tags\":[],\"ok\":true}"));
+        assertFalse(matches(automaton, "{\"name\":\"Bob\",\"age\":42,\"tags\":[\"a\",\"b\",\"a\"],\"ok\":true}"));
+        assertFalse(matches(automaton, "{\"name\":\"Bob\",\"age\":42,\"tags\":[\"c\"],\"ok\":true}"));
+        assertFalse(matches(automaton, "{\"name\":\"Bob\"}"));
+
+        // lengths count characters, not bytes
+        ByteAutomaton name = ByteAutomaton.fromRegex(JsonSchema.toRegex(Map.of("type", "string", "maxLength", 2)));
+        assertTrue(matches(name, "\"éé\""));
+        assertTrue(matches(name, "\"€😀\""));
+        assertFalse(matches(name, "\"éée\""));
+    }
+
+    @Test
+    void masksOnlyAllowValidContinuations() {
+        // small byte-level vocabulary: single characters plus some merged pieces, last one is "special"
+        List<String> pieces = new ArrayList<>();
+        for (char c : "{}[]\":, abcdefghijklmnopqrstuvwxyz0123456789-.".toCharArray()) {
+            pieces.add(String.valueOf(c));
+        }
+        pieces.addAll(List.of("{\"", "\":", "\",", "\"}", "true", "false", "null", "12", "ab", " \"", "<eot>"));
+        byte[][] tokenBytes = new byte[pieces.size()][];
+        for (int i = 0; i < tokenBytes.length; i++) {
+            tokenBytes[i] = pieces.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        int eot = pieces.size() - 1;
+        BitSet special = new BitSet();
+        special.set(eot);
+        VocabularyTrie trie = new VocabularyTrie(tokenBytes, special);
+        BitSet endTokens = new BitSet();
+        endTokens.set(eot);
+
+        String pattern = JsonSchema.toRegex(Map.of("type", "object", "properties",
+                Map.of("ok", Map.of("type", "boolean"))));
+        TokenConstraint constraint = new TokenConstraint(ByteAutomaton.fromRegex(pattern), trie, endTokens);
+        Pattern expected = Pattern.compile(pattern);
+
+        Random random = new Random(7);
+        for (int trial = 0; trial < 200; trial++) {
+            int state = constraint.start();
+            StringBuilder output = new StringBuilder();
+            for (int step = 0; step < 64; step++) {
+                BitSet allowed = constraint.allowedTokens(state);
+                assertFalse(allowed.isEmpty());
+                // every allowed token keeps the output a prefix of some match
+                for (int t = allowed.nextSetBit(0); t >= 0; t = allowed.nextSetBit(t + 1)) {
+                    if (t != eot) {
+                        assertTrue(constraint.advance(state, t) != ByteAutomaton.DEAD);
+                    }
+                }
+                int[] choices = allowed.stream().toArray();
+                int token = choices[random.nextInt(choices.length)];
+                if (token == eot) {
+                    break;
+                }
+                output.append(pieces.get(token));
+                state = constraint.advance(state, token);
+            }
+            if (constraint.isAccepting(state)) {
+                assertTrue(expected.matcher(output).matches(), output::toString);
+                assertEquals(endTokens, constraint.allowedTokens(state));
+            }
+        }
+        assertTrue(constraint.cachedMasks() > 0);
+    }
+
+    @Test
+    void rejectsInvalidPatterns() {
+        assertThrows(IllegalArgumentException.class, () -> ByteAutomaton.fromRegex("(ab"));
+        assertThrows(IllegalArgumentException.class, () -> ByteAutomaton.fromRegex("*a"));
+        assertThrows(IllegalArgumentException.class, () -> ByteAutomaton.fromRegex("[a-"));
+        assertThrows(IllegalArgumentException.class,
+                () -> JsonSchema.toRegex(Map.of("type", "date")));
+    }
+}
@@ -0,0 +1,45 @@
+package example.micronaut.model.speculative;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.model.Llama;
+import example.micronaut.model.StatePool;
+import example.micronaut.model.TinyLlama;
+import example.micronaut.model.TokenBuffer;
+import example.micronaut.model.tensor.Sampler;
+
+class ModelDrafterTest {
+
+    private static final Llama MODEL = TinyLlama.create(2, 300, 128);
+
+    private static int[] propose(ModelDrafter drafter, int... history) {
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.addAll(history);
+        int[] draft = new int[3];
+        assertEquals(3, drafter.propose(buffer, 3, draft));
+        return draft;
+    }
+
+    @Test
+    void draftStatesComeFromThePoolAndGoBackEmpty() {
+        StatePool pool = new StatePool(MODEL, 4, 2);
+        SpeculationMetrics metrics = new SpeculationMetrics();
+        new ModelDrafter(MODEL, pool, Sampler.ARGMAX, metrics).release(); // never proposed, holds no state
+        assertEquals(new StatePool.Stats(0, 0, 0), pool.stats());
+
+        ModelDrafter first = new ModelDrafter(MODEL, pool, Sampler.ARGMAX, metrics);
+        int[] draft = propose(first, 1, 2, 3, 4, 5, 6);
+        first.accepted(1);
+        first.release();
+        assertEquals(new StatePool.Stats(1, 0, 1), pool.stats());
+
+        // a reused state drafts as a new one
+        ModelDrafter second = new ModelDrafter(MODEL, pool, Sampler.ARGMAX, metrics);
+        assertArrayEquals(draft, propose(second, 1, 2, 3, 4, 5, 6));
+        second.release();
+        assertEquals(new StatePool.Stats(1, 1, 1), pool.stats());
+    }
+}
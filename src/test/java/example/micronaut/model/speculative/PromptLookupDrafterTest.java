@@ -0,0 +1,67 @@
+package example.micronaut.model.speculative;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.model.TokenBuffer;
+
+class PromptLookupDrafterTest {
+
+    private static TokenBuffer history(int... tokens) {
+        TokenBuffer history = new TokenBuffer();
+        history.addAll(tokens);
+        return history;
+    }
+
+    @Test
+    void proposesWhatFollowedTheLongestMostRecentMatch() {
+        SpeculationMetrics metrics = new SpeculationMetrics();
+        PromptLookupDrafter drafter = new PromptLookupDrafter(3, 1, metrics);
+        int[] draft = new int[4];
+
+        // "5 6 7" occurred before, followed by 8 9 1 2; "7" alone more recently, followed by 3
+        int n = drafter.propose(history(5, 6, 7, 8, 9, 1, 2, 7, 3, 5, 6, 7), 4, draft);
+        assertArrayEquals(new int[]{8, 9, 1, 2}, Arrays.copyOf(draft, n));
+        drafter.accepted(2);
+
+        // only the 1-gram matches, the proposal stops at the end of the history
+        n = drafter.propose(history(1, 2, 3, 4, 2), 4, draft);
+        assertArrayEquals(new int[]{3, 4, 2}, Arrays.copyOf(draft, n));
+        drafter.accepted(3);
+
+        assertEquals(0, drafter.propose(history(1, 2, 3), 4, draft));
+        drafter.accepted(0);
+
+        SpeculationMetrics.Stats stats = metrics.stats();
+        assertEquals(2, stats.proposals());
+        assertEquals(7, stats.drafted());
+        assertEquals(5, stats.accepted());
+        assertEquals(1, stats.skipped());
+    }
+
+    @Test
+    void pausesWhenAcceptanceIsLow() {
+        SpeculationMetrics metrics = new SpeculationMetrics();
+        PromptLookupDrafter drafter = new PromptLookupDrafter(2, 1, metrics);
+        TokenBuffer history = history(1, 2, 1, 2, 1, 2);
+        int[] draft = new int[4];
+        int rejected = 0;
+        while (drafter.propose(history, 4, draft) > 0) {
+            drafter.accepted(0);
+            rejected++;
+        }
+        assertEquals(6, rejected); // 0.8^6 < MIN_ACCEPTANCE
+        // paused: regular decoding for a while, then drafting again
+        int pausedSteps = 1;
+        while (drafter.propose(history, 4, draft) == 0) {
+            drafter.accepted(0);
+            pausedSteps++;
+        }
+        assertEquals(8, pausedSteps);
+        assertEquals(pausedSteps, metrics.stats().skipped());
+    }
+}
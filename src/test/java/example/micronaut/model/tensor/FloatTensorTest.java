@@ -0,0 +1,90 @@
+package example.micronaut.model.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.model.Llama;
+import example.micronaut.model.State;
+import example.micronaut.model.TinyLlama;
+import example.micronaut.utils.TransformerUtils;
+
+class FloatTensorTest {
+
+    // not a multiple of the blocks matmulTopK splits the rows into
+    private static final int VOCABULARY_SIZE = 1500;
+    private static final Llama MODEL = TinyLlama.create(3, 1, VOCABULARY_SIZE, 16);
+
+    // top-k and log-sum-exp of the full classifier output, over the allowed rows (all if null)
+    private static void assertMatchesFullMatmul(FloatTensor x, BitSet allowed) {
+        int dim = MODEL.configuration().dim;
+        FloatTensor logits = ArrayFloatTensor.allocate(VOCABULARY_SIZE);
+        MODEL.weights().wcls.matmul(x, logits, VOCABULARY_SIZE, dim);
+        int[] rows = IntStream.range(0, VOCABULARY_SIZE).filter(i -> allowed == null || allowed.get(i)).toArray();
+        double max = IntStream.of(rows).mapToDouble(logits::getFloat).max().orElseThrow();
+        double logSumExp = max + Math.log(IntStream.of(rows).mapToDouble(i -> Math.exp(logits.getFloat(i) - max)).sum());
+        int[] expected = IntStream.of(rows).boxed()
+                .sorted(Comparator.comparingDouble(i -> -logits.getFloat(i)))
+                .mapToInt(Integer::intValue)
+                .limit(8)
+                .toArray();
+
+        Candidates candidates = new Candidates(8);
+        MODEL.weights().wcls.matmulTopK(x, VOCABULARY_SIZE, dim, candidates, allowed);
+        assertEquals(expected.length, candidates.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], candidates.token(i), "rank " + i);
+            assertEquals(logits.getFloat(expected[i]), candidates.logit(i), 1e-5f, "rank " + i);
+        }
+        assertEquals(logSumExp, candidates.logSumExp(), 1e-4, "log-sum-exp");
+    }
+
+    @Test
+    void topKMatchesTheFullClassifier() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 5; trial++) {
+            FloatTensor x = ArrayFloatTensor.allocate(MODEL.configuration().dim);
+            for (int i = 0; i < x.size(); i++) {
+                x.setFloat(i, (float) random.nextGaussian());
+            }
+            assertMatchesFullMatmul(x, null);
+
+            BitSet allowed = new BitSet(VOCABULARY_SIZE);
+            for (int i = 0; i < VOCABULARY_SIZE; i++) {
+                if (random.nextInt(3) == 0) {
+                    allowed.set(i);
+                }
+            }
+            assertMatchesFullMatmul(x, allowed);
+
+            // fewer allowed rows than candidates, and all in one block
+            BitSet few = new BitSet(VOCABULARY_SIZE);
+            few.set(VOCABULARY_SIZE - 3, VOCABULARY_SIZE);
+            assertMatchesFullMatmul(x, few);
+        }
+    }
+
+    @Test
+    void candidatesNormalizeLikeTheFullLogits() {
+        Random random = new Random(2);
+        State full = MODEL.createNewState(1);
+        State fused = MODEL.createNewState(1);
+        for (int i = 0; i < MODEL.configuration().dim; i++) {
+            float value = (float) random.nextGaussian() * 3;
+            full.x[0].setFloat(i, value);
+            fused.x[0].setFloat(i, value);
+        }
+        FloatTensor logits = TransformerUtils.logits(MODEL, full, 0);
+        Candidates candidates = new Candidates(4);
+        TransformerUtils.candidates(MODEL, fused, 0, candidates, null);
+        for (int i = 0; i < candidates.size(); i++) {
+            assertEquals(logits.getFloat(candidates.token(i)), candidates.logit(i), 1e-5f);
+        }
+        assertEquals(logits.getFloat(logits.argmax(0, VOCABULARY_SIZE)), candidates.logit(0), 1e-5f);
+    }
+}
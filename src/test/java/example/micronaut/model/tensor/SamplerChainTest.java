@@ -0,0 +1,64 @@
+package example.micronaut.model.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.random.RandomGeneratorFactory;
+
+import org.junit.jupiter.api.Test;
+
+class SamplerChainTest {
+
+    private static final int[] TARGET_TOKENS = {0, 1, 2, 3, 4};
+    private static final float[] TARGET_LOGITS = {2.0f, 1.5f, 0.5f, -1.0f, -3.0f};
+    // the draft prefers other tokens
+    private static final int[] DRAFT_TOKENS = {3, 1, 4, 2, 0};
+    private static final float[] DRAFT_LOGITS = {2.5f, 1.0f, 0.5f, 0.0f, -0.5f};
+
+    private static Candidates candidates(int[] tokens, float[] logits) {
+        Candidates candidates = new Candidates(tokens.length);
+        System.arraycopy(tokens, 0, candidates.tokens, 0, tokens.length);
+        System.arraycopy(logits, 0, candidates.logits, 0, logits.length);
+        candidates.size = tokens.length;
+        return candidates;
+    }
+
+    private static SamplerChain sampler(long seed) {
+        return new SamplerChain(5, 0, 0.8f, 0.95f, 0f, RandomGeneratorFactory.getDefault().create(seed));
+    }
+
+    private static void assertDistribution(int[] counts, int trials) {
+        Candidates expected = candidates(TARGET_TOKENS, TARGET_LOGITS);
+        sampler(0).truncate(expected);
+        for (int t = 0; t < counts.length; t++) {
+            assertEquals(expected.probs[t], counts[t] / (float) trials, 0.005f, "token " + t);
+        }
+    }
+
+    @Test
+    void speculativeVerificationKeepsTheTargetDistribution() {
+        SamplerChain target = sampler(1);
+        SamplerChain draft = sampler(2);
+        int trials = 200_000;
+        int[] counts = new int[5];
+        for (int i = 0; i < trials; i++) {
+            Candidates q = candidates(DRAFT_TOKENS, DRAFT_LOGITS);
+            int draftToken = draft.sampleToken(q);
+            int replacement = target.verify(candidates(TARGET_TOKENS, TARGET_LOGITS), q, draftToken);
+            counts[replacement < 0 ? draftToken : replacement]++;
+        }
+        assertDistribution(counts, trials);
+    }
+
+    @Test
+    void deterministicDraftsKeepTheTargetDistribution() {
+        SamplerChain target = sampler(3);
+        int trials = 200_000;
+        int[] counts = new int[5];
+        for (int i = 0; i < trials; i++) {
+            int draftToken = i % 5;
+            int replacement = target.verify(candidates(TARGET_TOKENS, TARGET_LOGITS), null, draftToken);
+            counts[replacement < 0 ? draftToken : replacement]++;
+        }
+        assertDistribution(counts, trials);
+    }
+}
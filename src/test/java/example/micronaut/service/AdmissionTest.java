@@ -0,0 +1,132 @@
+package example.micronaut.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AdmissionTest {
+
+    private static Scheduling scheduling(Scheduling.Priority priority, String tenant) {
+        return new Scheduling(priority, Long.MAX_VALUE, tenant);
+    }
+
+    private static Admission.Ticket admitted(CompletableFuture<Admission.Ticket> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void admitsQueuedRequestsInOrder() throws Exception {
+        Admission admission = new Admission(100, 1, 8, Duration.ofSeconds(30));
+        Admission.Ticket running = admission.admit(10, Scheduling.DEFAULT).block();
+
+        CompletableFuture<Admission.Ticket> batch = admission.admit(10,
+                scheduling(Scheduling.Priority.BATCH, "a")).toFuture();
+        CompletableFuture<Admission.Ticket> interactive = admission.admit(10,
+                scheduling(Scheduling.Priority.INTERACTIVE, "a")).toFuture();
+        CompletableFuture<Admission.Ticket> deadline = admission.admit(10,
+                new Scheduling(Scheduling.Priority.INTERACTIVE, System.nanoTime() + 20_000_000_000L, "a")).toFuture();
+        assertEquals(3, admission.metrics().get("admission.queueDepth"));
+
+        // priority, then deadline, then arrival; one at a time
+        List<CompletableFuture<Admission.Ticket>> expected = List.of(deadline, interactive, batch);
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(expected.subList(i, expected.size()).stream().noneMatch(CompletableFuture::isDone));
+            running.close();
+            running = admitted(expected.get(i));
+            assertEquals(1, admission.metrics().get("admission.active"));
+        }
+        running.close();
+        assertEquals(0L, admission.metrics().get("admission.reservedBytes"));
+    }
+
+    @Test
+    void tenantsWithFewerRunningRequestsGoFirst() throws Exception {
+        Admission admission = new Admission(100, 2, 8, Duration.ofSeconds(30));
+        Admission.Ticket busyTenant = admission.admit(10, scheduling(Scheduling.Priority.INTERACTIVE, "a")).block();
+        Admission.Ticket other = admission.admit(10, scheduling(Scheduling.Priority.INTERACTIVE, "c")).block();
+
+        CompletableFuture<Admission.Ticket> a = admission.admit(10,
+                scheduling(Scheduling.Priority.INTERACTIVE, "a")).toFuture();
+        CompletableFuture<Admission.Ticket> b = admission.admit(10,
+                scheduling(Scheduling.Priority.INTERACTIVE, "b")).toFuture();
+        other.close(); // one slot for two: "a" already has a request running
+        Admission.Ticket ticket = admitted(b);
+        assertFalse(a.isDone());
+        ticket.close();
+        admitted(a).close();
+        busyTenant.close();
+    }
+
+    @Test
+    void shedsRequestsWhenTheQueueIsFullOrTheWaitTimesOut() {
+        Admission admission = new Admission(100, 1, 1, Duration.ofMillis(100));
+        Admission.Ticket running = admission.admit(10, Scheduling.DEFAULT).block();
+
+        CompletableFuture<Admission.Ticket> queued = admission.admit(10, Scheduling.DEFAULT).toFuture();
+        OverloadedException full = assertThrows(OverloadedException.class,
+                () -> admission.admit(10, Scheduling.DEFAULT).block());
+        assertTrue(full.getMessage().contains("queue is full"));
+        assertTrue(full.getRetryAfterSeconds() >= 1);
+
+        Exception timedOut = assertThrows(Exception.class, () -> admitted(queued));
+        assertTrue(timedOut.getCause() instanceof OverloadedException, timedOut::toString);
+        assertEquals(0, admission.metrics().get("admission.queueDepth"));
+        assertEquals(1L, admission.metrics().get("admission.rejected"));
+        assertEquals(1L, admission.metrics().get("admission.timedOut"));
+
+        // a request past its deadline is shed at once
+        assertThrows(OverloadedException.class, () -> admission.admit(10,
+                new Scheduling(Scheduling.Priority.INTERACTIVE, System.nanoTime() - 1, "a")).block());
+        running.close();
+    }
+
+    @Test
+    void interactiveRequestsPreemptBatchOnes() throws Exception {
+        Admission admission = new Admission(100, 4, 8, Duration.ofSeconds(30));
+        Admission.Ticket batch = admission.admit(80, 10, scheduling(Scheduling.Priority.BATCH, "a")).block();
+        Admission.Ticket pinned = admission.admit(10, scheduling(Scheduling.Priority.BATCH, "a")).block();
+        assertFalse(batch.parkRequested());
+
+        CompletableFuture<Admission.Ticket> interactive = admission.admit(50, Scheduling.DEFAULT).toFuture();
+        assertTrue(batch.parkRequested());
+        assertFalse(pinned.parkRequested()); // not preemptible
+        assertFalse(interactive.isDone());
+
+        // parking gives back all but the parked bytes, the interactive request fits and the batch one waits
+        CompletableFuture<Boolean> resumed = CompletableFuture.supplyAsync(() -> batch.park(() -> false));
+        Admission.Ticket ticket = admitted(interactive);
+        assertEquals(10L + 10 + 50, admission.metrics().get("admission.reservedBytes"));
+        assertFalse(resumed.isDone());
+
+        ticket.close();
+        assertTrue(resumed.get(5, TimeUnit.SECONDS));
+        assertFalse(batch.parkRequested());
+        assertEquals(90L, admission.metrics().get("admission.reservedBytes"));
+        assertEquals(1L, admission.metrics().get("admission.preempted"));
+        assertEquals(1L, admission.metrics().get("admission.parked"));
+
+        batch.close();
+        pinned.close();
+        assertEquals(0L, admission.metrics().get("admission.reservedBytes"));
+    }
+
+    @Test
+    void cancelledParkedRequestsGiveBackTheirBytes() throws Exception {
+        Admission admission = new Admission(100, 4, 8, Duration.ofSeconds(30));
+        Admission.Ticket batch = admission.admit(80, 10, scheduling(Scheduling.Priority.BATCH, "a")).block();
+        CompletableFuture<Admission.Ticket> interactive = admission.admit(50, Scheduling.DEFAULT).toFuture();
+        CompletableFuture<Boolean> resumed = CompletableFuture.supplyAsync(() -> batch.park(() -> true));
+        assertFalse(resumed.get(5, TimeUnit.SECONDS));
+        admitted(interactive).close();
+        assertEquals(0L, admission.metrics().get("admission.reservedBytes"));
+        assertEquals(0, admission.metrics().get("admission.queueDepth"));
+    }
+}
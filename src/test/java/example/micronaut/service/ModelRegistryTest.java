@@ -0,0 +1,96 @@
+package example.micronaut.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.Llama;
+import example.micronaut.model.State;
+import example.micronaut.model.StatePool;
+import example.micronaut.model.TinyLlama;
+
+class ModelRegistryTest {
+
+    @TempDir
+    Path directory;
+
+    // a new model on every load, its file only names it
+    private ModelRegistry registry(Path... files) throws IOException {
+        for (Path file : files) {
+            Files.write(file, new byte[16]);
+        }
+        return new ModelRegistry(files[0].toString(), "", 0, path -> TinyLlama.create(1, 300, 64));
+    }
+
+    @Test
+    void swappingAModelKeepsItsRunningRequestsButReplacesItForNewOnes() throws IOException {
+        Path first = directory.resolve("first.gguf");
+        Path second = directory.resolve("second.gguf");
+        ModelRegistry registry = registry(first, second);
+        List<Llama> unloaded = new ArrayList<>();
+        registry.onUnload(unloaded::add);
+
+        Llama previous = registry.get(null);
+        assertSame(previous, registry.get("first.gguf"));
+        Llama swapped = registry.swap("first.gguf", second);
+        assertNotSame(previous, swapped);
+        assertSame(swapped, registry.get(null));
+        assertEquals(List.of(previous), unloaded);
+        assertEquals(1L, registry.metrics().get("models.swaps"));
+    }
+
+    @Test
+    void requestsQueuedOnASwappedModelDoNotPinItsStates() throws Exception {
+        Path first = directory.resolve("first.gguf");
+        Path second = directory.resolve("second.gguf");
+        ModelRegistry registry = registry(first, second);
+        ModelStates states = new ModelStates(8, 2, directory.resolve("tier"), 1, 0);
+        registry.onUnload(states::unload);
+
+        // a request resolves the model, then waits for admission behind a running one
+        Admission admission = new Admission(100, 1, 8, Duration.ofSeconds(30));
+        Admission.Ticket running = admission.admit(10, Scheduling.DEFAULT).block();
+        Llama model = registry.get(null);
+        states.statePool(model).release(states.statePool(model).acquire());
+        CompletableFuture<StatePool> queued = admission.admit(10, Scheduling.DEFAULT)
+                .map(ticket -> {
+                    StatePool pool = states.statePool(model);
+                    State state = pool.acquire();
+                    pool.release(state);
+                    ticket.close();
+                    return pool;
+                })
+                .toFuture();
+
+        Llama swapped = registry.swap("first.gguf", second);
+        assertTrue(states.pools().isEmpty());
+        assertTrue(states.tiers().isEmpty());
+        running.close();
+
+        // the queued request runs on the previous model, without pooling anything for it
+        StatePool pool = queued.get(5, TimeUnit.SECONDS);
+        assertEquals(new StatePool.Stats(1, 0, 0), pool.stats());
+        assertNotSame(pool, states.statePool(model));
+        assertTrue(states.pools().isEmpty());
+        assertTrue(states.tiers().isEmpty());
+
+        // the new model is pooled as usual
+        assertSame(states.statePool(swapped), states.statePool(swapped));
+        assertEquals(1, states.pools().size());
+        assertFalse(states.tiers().isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package example.micronaut.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import example.micronaut.model.ChatFormat;
+import example.micronaut.model.KvCache;
+import example.micronaut.model.KvSnapshot;
+import example.micronaut.model.TinyLlama;
+import example.micronaut.model.tensor.ArrayFloatTensor;
+
+class SessionsTest {
+
+    private static final int KV_DIM = 8;
+    private static final Supplier<KvCache> NEW_CACHE = () -> new KvCache(1, KvCache.BLOCK_SIZE, KV_DIM);
+
+    @TempDir
+    Path directory;
+
+    private static Sessions.Session session(int length, int latestToken) {
+        KvCache cache = NEW_CACHE.get();
+        for (int position = 0; position < length; position++) {
+            cache.prepareWrite(0, position);
+            cache.write(0, position, ArrayFloatTensor.allocate(KV_DIM), ArrayFloatTensor.allocate(KV_DIM));
+            cache.record(position, position);
+        }
+        return new Sessions.Session(cache, latestToken);
+    }
+
+    @Test
+    void sessionsAreSeparatePerOwner() throws IOException {
+        Sessions sessions = new Sessions(directory, KvSnapshot.Compression.F32, 4);
+        assertNull(sessions.checkout("alice", "chat", NEW_CACHE));
+        Sessions.Session alice = session(3, 7);
+        sessions.checkin("alice", "chat", alice);
+
+        // the same id of another owner is a new session, which may take a turn meanwhile
+        assertNull(sessions.checkout("bob", "chat", NEW_CACHE));
+        assertSame(alice, sessions.checkout("alice", "chat", NEW_CACHE));
+        sessions.checkin("alice", "chat", alice);
+        sessions.checkin("bob", "chat", null);
+        assertThrows(IllegalArgumentException.class, () -> sessions.save("bob", "chat"));
+
+        sessions.save("alice", "chat");
+        assertThrows(NoSuchFileException.class, () -> sessions.restore("bob", "chat", NEW_CACHE));
+        assertEquals(3, sessions.restore("alice", "chat", NEW_CACHE));
+    }
+
+    @Test
+    void evictedSessionsComeBackToTheirOwnerOnly() throws IOException {
+        Sessions sessions = new Sessions(directory, KvSnapshot.Compression.F32, 0);
+        sessions.checkout("alice", "chat", NEW_CACHE);
+        sessions.checkin("alice", "chat", session(5, 9)); // snapshotted at once
+
+        assertNull(sessions.checkout("bob", "chat", NEW_CACHE));
+        sessions.checkin("bob", "chat", session(2, 1));
+        Sessions.Session restored = sessions.checkout("alice", "chat", NEW_CACHE);
+        assertEquals(5, restored.cache().length());
+        assertEquals(9, restored.latestToken());
+        sessions.checkin("alice", "chat", restored);
+
+        assertThrows(IllegalArgumentException.class, () -> sessions.checkout("../alice", "chat", NEW_CACHE));
+    }
+
+    @Test
+    void turnsThatEndedWithoutAStopTokenAreClosedOnResume() {
+        ChatFormat chatFormat = new ChatFormat(TinyLlama.create(1, 300, 64).tokenizer());
+        int endOfTurn = chatFormat.endOfTurn;
+        int endOfText = chatFormat.getTokenizer().getSpecialTokens().get("<|end_of_text|>");
+
+        assertEquals(List.of(endOfTurn), session(3, endOfTurn).resume(chatFormat));
+        assertEquals(List.of(endOfText), session(3, endOfText).resume(chatFormat));
+        // cut short by a stop string, max_tokens or cancellation
+        assertEquals(List.of(42, endOfTurn), session(3, 42).resume(chatFormat));
+    }
+}
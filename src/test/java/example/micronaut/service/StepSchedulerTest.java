@@ -0,0 +1,103 @@
+package example.micronaut.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class StepSchedulerTest {
+
+    private static final Scheduling BATCH = new Scheduling(Scheduling.Priority.BATCH, Long.MAX_VALUE, "a");
+
+    private static void awaitWaiting(StepScheduler scheduler, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && !scheduler.metrics().get("scheduler.waiting").equals(count); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.metrics().get("scheduler.waiting"));
+    }
+
+    @Test
+    void grantsSlotsByPriorityDeadlineFairShareThenArrival() throws Exception {
+        StepScheduler scheduler = new StepScheduler(1, 16);
+        StepScheduler.Lane holder = scheduler.open(new Scheduling(Scheduling.Priority.BATCH, Long.MAX_VALUE, "busy"));
+        assertTrue(scheduler.acquire(holder, () -> false));
+        Thread.sleep(20); // compute charged to the tenant "busy"
+
+        Map<String, Scheduling> lanes = Map.of(
+                "batch busy", new Scheduling(Scheduling.Priority.BATCH, Long.MAX_VALUE, "busy"),
+                "batch idle", new Scheduling(Scheduling.Priority.BATCH, Long.MAX_VALUE, "idle"),
+                "interactive", new Scheduling(Scheduling.Priority.INTERACTIVE, Long.MAX_VALUE, "busy"),
+                "interactive deadline", new Scheduling(Scheduling.Priority.INTERACTIVE,
+                        System.nanoTime() + 60_000_000_000L, "busy"));
+        List<String> granted = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> steps = new ArrayList<>();
+        int waiting = 0;
+        for (String name : List.of("batch busy", "batch idle", "interactive", "interactive deadline")) {
+            StepScheduler.Lane lane = scheduler.open(lanes.get(name));
+            steps.add(CompletableFuture.runAsync(() -> {
+                assertTrue(scheduler.acquire(lane, () -> false));
+                granted.add(name);
+                scheduler.close(lane);
+            }));
+            awaitWaiting(scheduler, ++waiting); // arrival order is fixed
+        }
+        assertTrue(granted.isEmpty());
+
+        scheduler.close(holder);
+        CompletableFuture.allOf(steps.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("interactive deadline", "interactive", "batch idle", "batch busy"), granted);
+    }
+
+    @Test
+    void cancelledLanesStopWaiting() throws Exception {
+        StepScheduler scheduler = new StepScheduler(1, 16);
+        StepScheduler.Lane holder = scheduler.open(Scheduling.DEFAULT);
+        assertTrue(scheduler.acquire(holder, () -> false));
+        StepScheduler.Lane lane = scheduler.open(Scheduling.DEFAULT);
+        CompletableFuture<Boolean> cancelled = new CompletableFuture<>();
+        CompletableFuture<Boolean> acquired = CompletableFuture.supplyAsync(
+                () -> scheduler.acquire(lane, () -> cancelled.getNow(false)));
+        awaitWaiting(scheduler, 1);
+        cancelled.complete(true);
+        assertFalse(acquired.get(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.metrics().get("scheduler.waiting"));
+        assertEquals(1, scheduler.metrics().get("scheduler.busy"));
+    }
+
+    @Test
+    void prefillingLanesShareTheTokensDecodingLanesLeave() {
+        StepScheduler scheduler = new StepScheduler(0, 16);
+        StepScheduler.Lane first = scheduler.open(BATCH);
+        StepScheduler.Lane second = scheduler.open(BATCH);
+        scheduler.open(BATCH);
+        scheduler.open(BATCH);
+
+        assertEquals(16 - 3, scheduler.prefillTokens(first)); // three lanes decode one token each
+        assertEquals((16 - 2) / 2, scheduler.prefillTokens(second));
+        assertEquals(2L, scheduler.metrics().get("scheduler.prefilling"));
+
+        // the chunk is ingested in the next step; a lane that stops asking decodes again after it
+        assertTrue(scheduler.acquire(first, () -> false));
+        assertEquals(2L, scheduler.metrics().get("scheduler.prefilling"));
+        assertTrue(scheduler.acquire(first, () -> false));
+        assertTrue(scheduler.acquire(first, () -> false));
+        assertEquals(1L, scheduler.metrics().get("scheduler.prefilling"));
+        assertEquals(16 - 3, scheduler.prefillTokens(second));
+
+        // at least one token, however many lanes decode
+        StepScheduler crowded = new StepScheduler(0, 2);
+        StepScheduler.Lane lane = crowded.open(BATCH);
+        for (int i = 0; i < 4; i++) {
+            crowded.open(BATCH);
+        }
+        assertEquals(1, crowded.prefillTokens(lane));
+    }
+}
@@ -0,0 +1,114 @@
+package example.micronaut.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.model.KvCache;
+import example.micronaut.model.Llama;
+import example.micronaut.model.State;
+import example.micronaut.model.TinyLlama;
+import example.micronaut.model.tensor.FloatTensor;
+
+class TokenUtilsTest {
+
+    private static final Llama MODEL = TinyLlama.create(1, 300, 256);
+
+    private static int[] randomTokens(long seed, int length) {
+        Random random = new Random(seed);
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++) {
+            tokens[i] = random.nextInt(250);
+        }
+        return tokens;
+    }
+
+    private static void recomputeAll(State state, int[] tokens) {
+        for (int from = 0; from < tokens.length; ) {
+            from = TokenUtils.recompute(MODEL, state, tokens, from);
+        }
+    }
+
+    @Test
+    void recomputedCacheKeepsTrackingAttention() {
+        // as a parked heavy-hitter generation: its cache is dropped, then recomputed, then evicts
+        int[] tokens = randomTokens(3, 100);
+        State state = MODEL.createNewState(8);
+        KvCache cache = state.kvCache;
+        cache.trackAttention(MODEL.configuration().numberOfHeads);
+        recomputeAll(state, tokens);
+        BitSet before = cache.leastAttended(4, tokens.length, 10);
+
+        cache.release();
+        assertTrue(cache.tracksAttention());
+        recomputeAll(state, tokens);
+        assertEquals(tokens.length, cache.length());
+        assertEquals(before, cache.leastAttended(4, tokens.length, 10));
+        cache.compact(before);
+        assertEquals(tokens.length - 10, cache.length());
+    }
+
+    @Test
+    void heavyHitterEvictionDropsTheLeastAttendedOlderPositions() {
+        int capacity = 64;
+        int[] tokens = randomTokens(9, capacity + 2);
+        // the cache once full, its attention tracked the same way
+        State full = MODEL.createNewState(8);
+        full.kvCache.trackAttention(MODEL.configuration().numberOfHeads);
+        TokenUtils.logProbs(MODEL, full, 0, Arrays.copyOf(tokens, capacity + 1));
+        assertEquals(capacity, full.kvCache.length());
+        BitSet expected = full.kvCache.leastAttended(4, capacity / 2, capacity / 8);
+
+        State state = MODEL.createNewState(8);
+        TokenUtils.logProbs(MODEL, state, tokens, new TokenUtils.ContextPolicy(4, capacity, true));
+        // sinks and the recent half survive, an eighth of the older positions goes
+        assertEquals(capacity / 8, expected.cardinality());
+        assertTrue(expected.nextSetBit(0) >= 4 && expected.length() <= capacity / 2, expected::toString);
+        int[] kept = new int[capacity + 1 - expected.cardinality()];
+        for (int position = 0, i = 0; position <= capacity; position++) {
+            if (!expected.get(position)) {
+                kept[i++] = tokens[position];
+            }
+        }
+        assertArrayEquals(kept, state.kvCache.tokens());
+    }
+
+    // log-softmax of the full logits, one token at a time
+    private static float[] naiveLogProbs(int[] tokens) {
+        State state = MODEL.createNewState(1);
+        float[] logProbs = new float[tokens.length - 1];
+        for (int position = 0; position < logProbs.length; position++) {
+            FloatTensor logits = TransformerUtils.forward(MODEL, state, new int[] {tokens[position]}, position, true);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < MODEL.configuration().vocabularySize; i++) {
+                max = Math.max(max, logits.getFloat(i));
+            }
+            double sum = 0;
+            for (int i = 0; i < MODEL.configuration().vocabularySize; i++) {
+                sum += Math.exp(logits.getFloat(i) - max);
+            }
+            logProbs[position] = (float) (logits.getFloat(tokens[position + 1]) - max - Math.log(sum));
+        }
+        return logProbs;
+    }
+
+    @Test
+    void logProbsMatchTheLogSoftmaxOfTheFullLogits() {
+        int[] tokens = randomTokens(5, 30); // three batches and a partial one
+        float[] expected = naiveLogProbs(tokens);
+        float[] actual = TokenUtils.logProbs(MODEL, MODEL.createNewState(8), 0, tokens);
+        assertEquals(expected.length, actual.length);
+        float error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            error = Math.max(error, Math.abs(expected[i] - actual[i]));
+        }
+        float maxError = error;
+        assertTrue(maxError <= 1.4e-6f, () -> "max error " + maxError);
+    }
+}
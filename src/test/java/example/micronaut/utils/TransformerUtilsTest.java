@@ -0,0 +1,78 @@
+package example.micronaut.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import example.micronaut.model.KvCache;
+import example.micronaut.model.Llama;
+import example.micronaut.model.State;
+import example.micronaut.model.TinyLlama;
+import example.micronaut.model.tensor.FloatTensor;
+
+class TransformerUtilsTest {
+
+    // one layer: its keys and values only depend on the token and its position, not on the context
+    private static final Llama ONE_LAYER = TinyLlama.create(4, 1, 300, 256);
+
+    private static int[] randomTokens(long seed, int length) {
+        Random random = new Random(seed);
+        int[] tokens = new int[length];
+        Arrays.setAll(tokens, i -> random.nextInt(250));
+        return tokens;
+    }
+
+    private static State ingested(Llama model, int[] tokens) {
+        State state = model.createNewState(8);
+        for (int from = 0; from < tokens.length; from += state.batchsize) {
+            int to = Math.min(tokens.length, from + state.batchsize);
+            TransformerUtils.forward(model, state, Arrays.copyOfRange(tokens, from, to), from, false);
+        }
+        return state;
+    }
+
+    private static void assertClose(float expected, float actual, String what) {
+        assertTrue(Math.abs(expected - actual) <= 1e-4f * Math.max(1, Math.abs(expected)),
+                () -> what + ": expected " + expected + " but was " + actual);
+    }
+
+    @Test
+    void shiftedKeysMatchThoseComputedAtTheirNewPositions() {
+        int keep = 4;
+        int discard = KvCache.BLOCK_SIZE + 5; // positions move across blocks
+        int[] tokens = randomTokens(1, 2 * KvCache.BLOCK_SIZE + 10);
+        State shifted = ingested(ONE_LAYER, tokens);
+        TransformerUtils.shiftContext(ONE_LAYER, shifted.kvCache, keep, discard);
+
+        int[] surviving = new int[tokens.length - discard];
+        System.arraycopy(tokens, 0, surviving, 0, keep);
+        System.arraycopy(tokens, keep + discard, surviving, keep, surviving.length - keep);
+        State fresh = ingested(ONE_LAYER, surviving);
+        assertEquals(fresh.kvCache.length(), shifted.kvCache.length());
+        assertArrayEquals(surviving, shifted.kvCache.tokens());
+        int kvDim = fresh.kvCache.kvDim();
+        for (int position = 0; position < surviving.length; position++) {
+            int expectedOffset = fresh.kvCache.offset(position);
+            int actualOffset = shifted.kvCache.offset(position);
+            for (int i = 0; i < kvDim; i++) {
+                assertClose(fresh.kvCache.keys(0, position).getFloat(expectedOffset + i),
+                        shifted.kvCache.keys(0, position).getFloat(actualOffset + i), "key " + position + "/" + i);
+                assertClose(fresh.kvCache.values(0, position).getFloat(expectedOffset + i),
+                        shifted.kvCache.values(0, position).getFloat(actualOffset + i), "value " + position + "/" + i);
+            }
+        }
+
+        // and so does what the model predicts next
+        int[] next = {7};
+        FloatTensor expected = TransformerUtils.forward(ONE_LAYER, fresh, next, surviving.length, true);
+        FloatTensor actual = TransformerUtils.forward(ONE_LAYER, shifted, next, surviving.length, true);
+        for (int i = 0; i < ONE_LAYER.configuration().vocabularySize; i++) {
+            assertClose(expected.getFloat(i), actual.getFloat(i), "logit " + i);
+        }
+    }
+}